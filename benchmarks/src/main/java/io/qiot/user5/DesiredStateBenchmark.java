@@ -0,0 +1,181 @@
+package io.qiot.user5;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.fabric8.kubernetes.api.model.EnvVar;
+import io.fabric8.kubernetes.api.model.HasMetadata;
+import io.fabric8.kubernetes.api.model.ObjectMeta;
+import io.fabric8.kubernetes.api.model.ObjectMetaBuilder;
+import io.fabric8.kubernetes.client.utils.KubernetesResourceUtil;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * CPU and allocation cost of building the desired state of one CR, without any
+ * API call. Run with the GC profiler to get bytes allocated per operation:
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar DesiredStateBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DesiredStateBenchmark {
+
+  private ComponentExecutor executor;
+  private DatacenterReconciler datacenterReconciler;
+  private FactoryReconciler factoryReconciler;
+  private Datacenter datacenter;
+  private Factory factory;
+  private Map<String, String> bindings;
+  private Map<String, String> labels;
+
+  @Setup
+  public void setup() {
+    executor = new ComponentExecutor(1);
+    final var serverSideApply = new ServerSideApply(null, "benchmark", true);
+    final var metrics = new ReconcileMetrics(new SimpleMeterRegistry());
+    final var ownership = new ReconcileOwnership(null, "none", Optional.of("benchmark"), Optional.of("default"),
+      Duration.ofSeconds(15), Duration.ofSeconds(5));
+    final var throttle = new ReconcileThrottle(0, 1, Duration.ofSeconds(1), Duration.ofMinutes(5), 2);
+    final var lagScaler = new ConsumerLagScaler(null, (servers, group, topic) -> Optional.empty(), metrics, ownership, Duration.ofSeconds(30));
+    datacenterReconciler = new DatacenterReconciler(null, executor, serverSideApply, metrics, ownership, throttle, lagScaler, true);
+    factoryReconciler = new FactoryReconciler(null, executor, serverSideApply, metrics, ownership, throttle, true);
+    datacenter = datacenter("qiotdctest");
+    factory = factory("qiotfactorytest");
+    bindings = Map.of(
+      "PG_USER", "admin",
+      "PG_PASSWORD", "Sx7ke2LqPz0aVb1c",
+      "INFLUXDB_USERNAME", "root",
+      "INFLUXDB_PASSWORD", "Tq3uYw8mNc5rZe2d",
+      "MONGODB_ROOT_USER", "qiotroot",
+      "MONGODB_ROOT_PASSWORD", "Hp6jLs1xKv9bQa4f",
+      "BINDING_SECRET_NAME", "qiotdctest-bindings"
+    );
+    labels = datacenterReconciler.createLabels(datacenter, datacenter.getSpec().registrationService);
+  }
+
+  @TearDown
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Benchmark
+  public Map<String, String> createLabels() {
+    return datacenterReconciler.createLabels(datacenter, datacenter.getSpec().registrationService);
+  }
+
+  @Benchmark
+  public ObjectMeta createMetadata() {
+    return datacenterReconciler.createMetadata(datacenter, datacenter.getSpec().registrationService, labels);
+  }
+
+  @Benchmark
+  public List<EnvVar> convertMapToEnvVarList() {
+    return KubernetesResourceUtil.convertMapToEnvVarList(new TreeMap<>(Map.of(
+      "LOG_LEVEL", "INFO",
+      "QIOT_LOG_LEVEL", "INFO",
+      "KAFKA_BOOTSTRAP_URL", "my-cluster-kafka-bootstrap.kafka.svc.cluster.local:9092",
+      "GENERATE_RANDOM_PRODUCTLINE", "true",
+      "MONGODB_DATABASE", "admin"
+    )));
+  }
+
+  @Benchmark
+  public List<HasMetadata> statefulSetGraph() {
+    return datacenterReconciler.desiredPostgresDatastore(datacenter, new HashMap<>(bindings));
+  }
+
+  @Benchmark
+  public List<HasMetadata> deploymentGraph() {
+    return datacenterReconciler.desiredRegistrationService(datacenter, new HashMap<>(bindings));
+  }
+
+  @Benchmark
+  public String specHash() {
+    return ResourceApplier.hash(datacenterReconciler.desiredPostgresDatastore(datacenter, new HashMap<>(bindings)).get(0));
+  }
+
+  @Benchmark
+  public List<HasMetadata> datacenterFullPass() {
+    return datacenterReconciler.desiredState(datacenter, new HashMap<>(bindings));
+  }
+
+  @Benchmark
+  public List<HasMetadata> factoryFullPass() {
+    return factoryReconciler.desiredState(factory, new HashMap<>(bindings));
+  }
+
+  static Datacenter datacenter(String name) {
+    final var spec = new DatacenterSpec();
+    spec.registry = "quay.io/qiotmanufacturing/";
+    spec.kafkaBootstrapURL = "my-cluster-kafka-bootstrap.kafka.svc.cluster.local:9092";
+    spec.registrationService.image = "datacenter-registration";
+    spec.registrationService.version = "latest";
+    spec.registrationService.logLevel = "INFO";
+    spec.plantManagerService.image = "datacenter-plant-manager";
+    spec.plantManagerService.version = "latest";
+    spec.plantManagerService.logLevel = "INFO";
+    spec.globalProductLineService.image = "datacenter-product-line";
+    spec.globalProductLineService.version = "latest";
+    spec.globalProductLineService.logLevel = "DEBUG";
+    spec.eventCollectorService.image = "datacenter-event-collector-jvm";
+    spec.eventCollectorService.version = "latest";
+    spec.eventCollectorService.logLevel = "INFO";
+
+    final var datacenter = new Datacenter();
+    datacenter.setMetadata(metadata(name));
+    datacenter.setSpec(spec);
+    return datacenter;
+  }
+
+  static Factory factory(String name) {
+    final var spec = new FactorySpec();
+    spec.registry = "quay.io/qiotmanufacturing/";
+    spec.kafkaBootstrapURL = "my-cluster-kafka-bootstrap.kafka.svc.cluster.local:9092";
+    spec.factoryFacilityManagerService.image = "factory-facility-manager";
+    spec.factoryFacilityManagerService.version = "latest";
+    spec.factoryFacilityManagerService.logLevel = "INFO";
+    spec.factoryProductLineService.image = "factory-product-line";
+    spec.factoryProductLineService.version = "latest";
+    spec.factoryProductLineService.logLevel = "INFO";
+    spec.factoryProductionValidatorService.image = "factory-production-validator";
+    spec.factoryProductionValidatorService.version = "latest";
+    spec.factoryProductionValidatorService.logLevel = "DEBUG";
+
+    final var factory = new Factory();
+    factory.setMetadata(metadata(name));
+    factory.setSpec(spec);
+    return factory;
+  }
+
+  private static ObjectMeta metadata(String name) {
+    return new ObjectMetaBuilder()
+      .withName(name)
+      .withNamespace("default")
+      .withUid("00000000-0000-0000-0000-"+String.format("%012x", name.hashCode() & 0xffffffffL))
+      .withGeneration(1L)
+      .build();
+  }
+}
@@ -0,0 +1,70 @@
+#!/bin/sh
+# Time from process start to the first completed reconcile, and resident memory, of the
+# JVM and native builds of the operator. Needs a cluster in the current kubeconfig with
+# the CRDs installed (make install) and both builds in ../target:
+#
+#   mvn package -DskipTests && mvn package -DskipTests -Pnative
+#   benchmarks/startup.sh [jvm|native|both] [cr.yaml]
+#
+# The CR is applied before the operator starts, so the first reconcile happens as soon
+# as the informers have synced. RSS is read from /proc once the first reconcile is done
+# and again, with its peak, after SETTLE seconds.
+set -eu
+
+MODE=${1:-both}
+CR=${2:-testfactory.yaml}
+PORT=${PORT:-8080}
+SETTLE=${SETTLE:-30}
+TIMEOUT=${TIMEOUT:-120}
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+
+now_ms() {
+  date +%s%3N
+}
+
+first_reconcile() {
+  curl -sf "http://localhost:$PORT/q/metrics" 2>/dev/null \
+    | awk '/^qiot_reconcile_seconds_count/ { n += $NF } END { exit !(n > 0) }'
+}
+
+rss_kb() {
+  awk -v key="$2:" '$1 == key { print $2 }' "/proc/$1/status"
+}
+
+run() {
+  name=$1
+  shift
+  start=$(now_ms)
+  QUARKUS_HTTP_PORT=$PORT "$@" > "$ROOT/target/startup-$name.log" 2>&1 &
+  pid=$!
+  trap 'kill $pid 2>/dev/null || true' EXIT
+  until first_reconcile; do
+    if ! kill -0 $pid 2>/dev/null; then
+      echo "$name: operator exited, see target/startup-$name.log" >&2
+      exit 1
+    fi
+    if [ $(( $(now_ms) - start )) -gt $(( TIMEOUT * 1000 )) ]; then
+      echo "$name: no reconcile within ${TIMEOUT}s" >&2
+      exit 1
+    fi
+    sleep 0.05
+  done
+  ready=$(( $(now_ms) - start ))
+  rss_first=$(rss_kb $pid VmRSS)
+  sleep "$SETTLE"
+  rss_settled=$(rss_kb $pid VmRSS)
+  rss_peak=$(rss_kb $pid VmHWM)
+  kill $pid
+  wait $pid 2>/dev/null || true
+  trap - EXIT
+  printf '%-8s %12s %14s %16s %12s\n' "$name" "$ready" "$(( rss_first / 1024 ))" "$(( rss_settled / 1024 ))" "$(( rss_peak / 1024 ))"
+}
+
+kubectl apply -f "$ROOT/$CR" > /dev/null
+printf '%-8s %12s %14s %16s %12s\n' "build" "first ms" "RSS first MB" "RSS settled MB" "RSS peak MB"
+if [ "$MODE" = jvm ] || [ "$MODE" = both ]; then
+  run jvm java ${JAVA_OPTS:-} -jar "$ROOT/target/quarkus-app/quarkus-run.jar"
+fi
+if [ "$MODE" = native ] || [ "$MODE" = both ]; then
+  run native "$(ls "$ROOT"/target/*-runner | head -1)" ${NATIVE_OPTS:-}
+fi
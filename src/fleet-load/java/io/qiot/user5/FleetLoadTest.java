@@ -0,0 +1,247 @@
+package io.qiot.user5;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+
+import io.fabric8.kubernetes.api.model.NamespaceBuilder;
+import io.fabric8.kubernetes.api.model.ObjectMetaBuilder;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.server.mock.KubernetesServer;
+import io.fabric8.kubernetes.client.utils.Serialization;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.QuarkusTestProfile;
+import io.quarkus.test.junit.TestProfile;
+import io.quarkus.test.kubernetes.client.KubernetesTestServer;
+import io.quarkus.test.kubernetes.client.WithKubernetesTestServer;
+
+/**
+ * Reconcile throughput, latency, API calls and heap of the operator as the fleet
+ * grows, against the fabric8 mock API server in CRUD mode instead of a cluster.
+ * Every fleet size, half Datacenters and half Factories, is created in its own
+ * namespace, which tells the per-namespace qiot.api.calls counters apart. The
+ * qiot.reconcile timers are not tagged by namespace, so a size gets the difference
+ * of their counts and histogram buckets before and after it. A run ends once there
+ * have been as many reconciles as CRs.
+ *
+ * <pre>
+ * mvn -Pfleet-load test -Dfleet.sizes=100,1000,5000
+ * </pre>
+ *
+ * The sizes run one after the other in the same JVM, whose heap also holds the
+ * mock server and every object it stores, so the peak heap of a size includes the
+ * sizes before it; run a single size for its own figure. Nothing ever becomes
+ * ready on the mock server, so the steps behind a datastore stay held back, as on
+ * a cluster still pulling images.
+ */
+@QuarkusTest
+@WithKubernetesTestServer(crud = true)
+@TestProfile(FleetLoadTest.Profile.class)
+public class FleetLoadTest {
+
+  private static final Duration TIMEOUT = Duration.ofMinutes(30);
+  private static final String HEADER = String.format("%8s %10s %10s %10s %14s %14s %10s",
+    "CRs", "rec/s", "p50 ms", "p99 ms", "writes/rec", "requests/rec", "heap MB");
+
+  @KubernetesTestServer
+  KubernetesServer server;
+
+  @Inject
+  KubernetesClient client;
+
+  @Inject
+  MeterRegistry registry;
+
+  public static class Profile implements QuarkusTestProfile {
+
+    @Override
+    public Map<String, String> getConfigOverrides() {
+      return Map.of(
+        "quarkus.operator-sdk.namespaces", "JOSDK_ALL_NAMESPACES",
+        "quarkus.operator-sdk.crd.validate", "false",
+        "quarkus.container-image.build", "false",
+        // Not started by default in tests
+        "quarkus.operator-sdk.start-operator", "true",
+        // One line per request otherwise
+        "quarkus.log.category.\"okhttp3.mockwebserver\".level", "WARN",
+        // The mock server does not implement server-side apply
+        "qiot.operator.server-side-apply", "false",
+        // Unthrottled by default, to measure what the operator can do rather than the configured rate
+        "qiot.operator.reconcile-rate", System.getProperty("fleet.reconcile-rate", "0"));
+    }
+  }
+
+  @Test
+  public void fleet() throws Exception {
+    // The spec classes serialize derived getters such as imageName, which the API server prunes and the mock server
+    // rejects
+    Serialization.jsonMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    final var sizes = Arrays.stream(System.getProperty("fleet.sizes", "100,1000,5000").split(","))
+      .map(String::trim).map(Integer::parseInt).collect(Collectors.toList());
+    final var results = new ArrayList<String>();
+    for(int i = 0; i < sizes.size(); i++) {
+      results.add(run(sizes.get(i), i == sizes.size()-1));
+    }
+    System.out.println();
+    System.out.println(HEADER);
+    results.forEach(System.out::println);
+  }
+
+  private String run(int size, boolean last) throws InterruptedException {
+    final var namespace = "fleet-"+size;
+    client.namespaces().create(new NamespaceBuilder().withNewMetadata().withName(namespace).endMetadata().build());
+    System.gc();
+    final var heap = new AtomicLong();
+    final var sampler = new Thread(() -> {
+      final var memory = ManagementFactory.getMemoryMXBean();
+      while(!Thread.currentThread().isInterrupted()) {
+        heap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+        try {
+          Thread.sleep(100);
+        }
+        catch(InterruptedException e) {
+          return;
+        }
+      }
+    }, "fleet-heap-sampler");
+    sampler.setDaemon(true);
+    sampler.start();
+
+    final var before = Histogram.of(reconcileTimers());
+    final var requestsBefore = server.getKubernetesMockServer().getRequestCount();
+    final var start = System.nanoTime();
+    for(int i = 0; i < size; i++) {
+      if(i % 2 == 0) {
+        client.resources(Datacenter.class).inNamespace(namespace).create(datacenter(namespace, "dc-"+i));
+      }
+      else {
+        client.resources(Factory.class).inNamespace(namespace).create(factory(namespace, "factory-"+i));
+      }
+    }
+    final var deadline = start+TIMEOUT.toNanos();
+    while(Histogram.of(reconcileTimers()).count-before.count < size && System.nanoTime() < deadline) {
+      Thread.sleep(200);
+    }
+    final var elapsed = (System.nanoTime()-start) / 1e9;
+    sampler.interrupt();
+
+    final var histogram = Histogram.of(reconcileTimers()).minus(before);
+    final var reconciles = histogram.count;
+    if(reconciles < size) {
+      System.out.println("Only "+reconciles+" of "+size+" CRs reconciled within "+TIMEOUT);
+    }
+    final var writes = registry.find("qiot.api.calls").tag("namespace", namespace).counters().stream()
+      .mapToDouble(Counter::count).sum();
+    final var requests = server.getKubernetesMockServer().getRequestCount()-requestsBefore;
+    final var result = String.format("%8d %10.1f %10.1f %10.1f %14.1f %14.1f %10d",
+      size, reconciles / elapsed, histogram.percentile(0.5), histogram.percentile(0.99),
+      writes / reconciles, (double) requests / reconciles, heap.get() / (1024 * 1024));
+    // Right away, since deleting thousands of CRs from the mock server takes long
+    System.out.println(HEADER+"\n"+result);
+    if(!last) {
+      // Their held back and retried reconciles would otherwise count towards the next size
+      client.resources(Datacenter.class).inNamespace(namespace).delete();
+      client.resources(Factory.class).inNamespace(namespace).delete();
+    }
+    return result;
+  }
+
+  private Collection<Timer> reconcileTimers() {
+    return registry.find("qiot.reconcile").timers();
+  }
+
+  /** Reconciles of every kind and result, by the upper bound of their duration bucket */
+  private static class Histogram {
+    long count;
+    // bucket upper bound in ms -> reconciles that took at most as long
+    final TreeMap<Double, Double> buckets = new TreeMap<>();
+
+    static Histogram of(Collection<Timer> timers) {
+      final var histogram = new Histogram();
+      for(var timer : timers) {
+        final var snapshot = timer.takeSnapshot();
+        histogram.count += snapshot.count();
+        for(var bucket : snapshot.histogramCounts()) {
+          histogram.buckets.merge(bucket.bucket(TimeUnit.MILLISECONDS), bucket.count(), Double::sum);
+        }
+      }
+      return histogram;
+    }
+
+    Histogram minus(Histogram before) {
+      final var difference = new Histogram();
+      difference.count = count-before.count;
+      buckets.forEach((le, n) -> difference.buckets.put(le, n-before.buckets.getOrDefault(le, 0d)));
+      return difference;
+    }
+
+    /** The upper bound of the bucket the percentile falls in */
+    double percentile(double percentile) {
+      for(var bucket : buckets.entrySet()) {
+        if(bucket.getValue() >= percentile * count) {
+          return bucket.getKey();
+        }
+      }
+      return Double.NaN;
+    }
+  }
+
+  private static Datacenter datacenter(String namespace, String name) {
+    final var spec = new DatacenterSpec();
+    spec.registry = "quay.io/qiotmanufacturing/";
+    spec.kafkaBootstrapURL = "my-cluster-kafka-bootstrap.kafka.svc.cluster.local:9092";
+    spec.registrationService.image = "datacenter-registration";
+    spec.registrationService.version = "latest";
+    spec.registrationService.logLevel = "INFO";
+    spec.plantManagerService.image = "datacenter-plant-manager";
+    spec.plantManagerService.version = "latest";
+    spec.plantManagerService.logLevel = "INFO";
+    spec.globalProductLineService.image = "datacenter-product-line";
+    spec.globalProductLineService.version = "latest";
+    spec.globalProductLineService.logLevel = "INFO";
+    spec.eventCollectorService.image = "datacenter-event-collector-jvm";
+    spec.eventCollectorService.version = "latest";
+    spec.eventCollectorService.logLevel = "INFO";
+
+    final var datacenter = new Datacenter();
+    datacenter.setMetadata(new ObjectMetaBuilder().withName(name).withNamespace(namespace).build());
+    datacenter.setSpec(spec);
+    return datacenter;
+  }
+
+  private static Factory factory(String namespace, String name) {
+    final var spec = new FactorySpec();
+    spec.registry = "quay.io/qiotmanufacturing/";
+    spec.kafkaBootstrapURL = "my-cluster-kafka-bootstrap.kafka.svc.cluster.local:9092";
+    spec.factoryFacilityManagerService.image = "factory-facility-manager";
+    spec.factoryFacilityManagerService.version = "latest";
+    spec.factoryFacilityManagerService.logLevel = "INFO";
+    spec.factoryProductLineService.image = "factory-product-line";
+    spec.factoryProductLineService.version = "latest";
+    spec.factoryProductLineService.logLevel = "INFO";
+    spec.factoryProductionValidatorService.image = "factory-production-validator";
+    spec.factoryProductionValidatorService.version = "latest";
+    spec.factoryProductionValidatorService.logLevel = "INFO";
+
+    final var factory = new Factory();
+    factory.setMetadata(new ObjectMetaBuilder().withName(name).withNamespace(namespace).build());
+    factory.setSpec(spec);
+    return factory;
+  }
+}
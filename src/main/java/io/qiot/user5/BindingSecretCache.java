@@ -0,0 +1,74 @@
+package io.qiot.user5;
+
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.fabric8.kubernetes.api.model.HasMetadata;
+import io.fabric8.kubernetes.api.model.Secret;
+import io.javaoperatorsdk.operator.api.config.informer.InformerConfiguration;
+import io.javaoperatorsdk.operator.api.reconciler.EventSourceContext;
+import io.javaoperatorsdk.operator.processing.event.source.informer.InformerEventSource;
+import io.javaoperatorsdk.operator.processing.event.source.informer.Mappers;
+
+/**
+ * Holds the decoded content of the binding secrets, keyed by the Secret's
+ * resourceVersion, so that a steady-state reconcile neither lists Secrets
+ * nor Base64-decodes the same data again. The Secrets themselves are served
+ * by a label-filtered informer created with {@link #eventSource}.
+ */
+public class BindingSecretCache {
+
+  public static final String COMPONENT = "bindings";
+
+  private final Map<String, Entry> decoded = new ConcurrentHashMap<>();
+
+  /**
+   * Informer limited to the binding secrets created by the given controller, so the
+   * operator never caches the other Secrets of a shared namespace.
+   */
+  public static <P extends HasMetadata> InformerEventSource<Secret, P> eventSource(EventSourceContext<P> context) {
+    final var kind = HasMetadata.getKind(context.getControllerConfiguration().getResourceClass());
+    return new InformerEventSource<>(InformerConfiguration.from(Secret.class, context)
+      .withLabelSelector("app.kubernetes.io/component="+COMPONENT+",app.kubernetes.io/managed-by="+kind)
+      .withSecondaryToPrimaryMapper(Mappers.fromOwnerReference())
+      .build(), context);
+  }
+
+  /**
+   * Returns a mutable copy of the decoded secret data. The informer's cached
+   * Secret is never modified.
+   */
+  public Map<String, String> decode(Secret secret) {
+    final var key = secret.getMetadata().getNamespace()+"/"+secret.getMetadata().getName();
+    final var resourceVersion = secret.getMetadata().getResourceVersion();
+    var entry = decoded.get(key);
+    if(entry == null || resourceVersion == null || !resourceVersion.equals(entry.resourceVersion)) {
+      entry = new Entry(resourceVersion, decodeData(secret));
+      decoded.put(key, entry);
+    }
+    return new HashMap<>(entry.properties);
+  }
+
+  private static Map<String, String> decodeData(Secret secret) {
+    final var properties = new HashMap<String, String>();
+    if(secret.getData() != null) {
+      final var decoder = Base64.getDecoder();
+      for(Map.Entry<String, String> e: secret.getData().entrySet()) {
+        properties.put(e.getKey(), new String(decoder.decode(e.getValue())));
+      }
+    }
+    return Map.copyOf(properties);
+  }
+
+  private static class Entry {
+    final String resourceVersion;
+    final Map<String, String> properties;
+
+    Entry(String resourceVersion, Map<String, String> properties) {
+      this.resourceVersion = resourceVersion;
+      this.properties = properties;
+    }
+  }
+}
@@ -0,0 +1,531 @@
+package io.qiot.user5;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import io.fabric8.kubernetes.api.model.AffinityBuilder;
+import io.fabric8.kubernetes.api.model.ConfigMap;
+import io.fabric8.kubernetes.api.model.ConfigMapBuilder;
+import io.fabric8.kubernetes.api.model.ContainerBuilder;
+import io.fabric8.kubernetes.api.model.ContainerPortBuilder;
+import io.fabric8.kubernetes.api.model.EnvVarBuilder;
+import io.fabric8.kubernetes.api.model.HasMetadata;
+import io.fabric8.kubernetes.api.model.IntOrString;
+import io.fabric8.kubernetes.api.model.ObjectMeta;
+import io.fabric8.kubernetes.api.model.ObjectMetaBuilder;
+import io.fabric8.kubernetes.api.model.PersistentVolumeClaim;
+import io.fabric8.kubernetes.api.model.PersistentVolumeClaimBuilder;
+import io.fabric8.kubernetes.api.model.PodAffinityTermBuilder;
+import io.fabric8.kubernetes.api.model.PodAntiAffinity;
+import io.fabric8.kubernetes.api.model.PodAntiAffinityBuilder;
+import io.fabric8.kubernetes.api.model.PodSpec;
+import io.fabric8.kubernetes.api.model.Probe;
+import io.fabric8.kubernetes.api.model.ProbeBuilder;
+import io.fabric8.kubernetes.api.model.Quantity;
+import io.fabric8.kubernetes.api.model.ServiceBuilder;
+import io.fabric8.kubernetes.api.model.ServicePort;
+import io.fabric8.kubernetes.api.model.ServicePortBuilder;
+import io.fabric8.kubernetes.api.model.TopologySpreadConstraintBuilder;
+import io.fabric8.kubernetes.api.model.Volume;
+import io.fabric8.kubernetes.api.model.VolumeBuilder;
+import io.fabric8.kubernetes.api.model.VolumeMountBuilder;
+import io.fabric8.kubernetes.api.model.WeightedPodAffinityTerm;
+import io.fabric8.kubernetes.api.model.apps.DeploymentBuilder;
+import io.fabric8.kubernetes.api.model.apps.StatefulSetBuilder;
+import io.fabric8.kubernetes.client.CustomResource;
+import io.fabric8.kubernetes.client.utils.KubernetesResourceUtil;
+
+/**
+ * What makes up one component of a Datacenter or Factory: image, ports, env,
+ * probes, configuration files and data volume. {@link #render} turns it into the owned objects, a StatefulSet and
+ * Service for a datastore or a Deployment, Service, HorizontalPodAutoscaler and
+ * PodDisruptionBudget for a stateless service, plus a ConfigMap with the
+ * configuration files, if any.
+ */
+public class ComponentDescriptor {
+
+  /** Hash of the mounted configuration files on the pod template, so that a change rolls the pods */
+  public static final String CONFIG_HASH_ANNOTATION = "user5.qiot.io/config-hash";
+  /** Owner uid on the pods of every datastore, which the datastore anti-affinity selects */
+  public static final String DATASTORE_LABEL = "user5.qiot.io/datastore-of";
+
+  private final String component;
+  private final QiotResource resource;
+  private final String image;
+  private final boolean datastore;
+  private final Sizing sizing;
+  private final List<Port> ports = new ArrayList<>();
+  private final Map<String, String> env = new TreeMap<>();
+  // env name -> key in the binding secret, in declaration order
+  private final Map<String, String> secretEnv = new LinkedHashMap<>();
+  private final List<Claim> claims = new ArrayList<>();
+  private boolean autoscaler = true;
+  private boolean headless;
+  private Integer replicas;
+  private Placement placement;
+  private List<String> command;
+  private List<String> args;
+  private String configMountPath;
+  private final Map<String, String> configFiles = new TreeMap<>();
+  private List<String> probeCommand;
+  private String probePort;
+  private boolean tcpProbe;
+  private String readyPath;
+  private String livePath;
+
+  private ComponentDescriptor(String component, QiotResource resource, String image, boolean datastore,
+      Sizing sizing) {
+    this.component = component;
+    this.resource = resource;
+    this.image = image;
+    this.datastore = datastore;
+    this.sizing = sizing;
+  }
+
+  /**
+   * @param component graph step name, e.g. postgres
+   * @param sizing spec.sizing
+   * @param sizingOverrides spec.sizingOverrides
+   */
+  public static ComponentDescriptor datastore(String component, Datastore datastore, int sizing,
+      Map<String, SizingOverride> sizingOverrides) {
+    return new ComponentDescriptor(component, datastore, datastore.getImage()+":"+datastore.getVersion(), true,
+      Sizing.of(sizing, component, sizingOverrides));
+  }
+
+  /**
+   * @param component graph step name, e.g. plant-manager
+   * @param imageRef full image reference including registry and tag
+   */
+  public static ComponentDescriptor service(String component, QiotResource service, String imageRef, int sizing,
+      Map<String, SizingOverride> sizingOverrides) {
+    return new ComponentDescriptor(component, service, imageRef, false, Sizing.of(sizing, component, sizingOverrides));
+  }
+
+  /** A container port exposed by the Service on the same port */
+  public ComponentDescriptor port(String name, int port) {
+    return port(name, port, port);
+  }
+
+  /** A container port exposed by the Service on servicePort */
+  public ComponentDescriptor port(String name, int containerPort, int servicePort) {
+    ports.add(new Port(name, containerPort, servicePort));
+    return this;
+  }
+
+  public ComponentDescriptor env(String name, String value) {
+    env.put(name, value);
+    return this;
+  }
+
+  /** An env var read from the binding secret */
+  public ComponentDescriptor secretEnv(String name, String secretKey) {
+    secretEnv.put(name, secretKey);
+    return this;
+  }
+
+  /**
+   * A volume of a datastore, one PVC per pod
+   *
+   * @param storage spec.storage of the component or its WAL volume, may be null
+   * @param defaultCapacity capacity unless storage has one
+   */
+  public ComponentDescriptor volume(String name, String mountPath, DatastoreVolume storage, String defaultCapacity) {
+    final var s = storage != null ? storage : new DatastoreVolume();
+    claims.add(new Claim(name, mountPath, s.storageClass, s.accessMode,
+      s.capacity != null ? s.capacity : defaultCapacity));
+    return this;
+  }
+
+  /** Startup, readiness and liveness probes that run the command in the container, e.g. pg_isready */
+  public ComponentDescriptor commandProbes(String... command) {
+    this.probeCommand = List.of(command);
+    return this;
+  }
+
+  /**
+   * HTTP probes on the port the named port targets: readiness on readyPath,
+   * startup and liveness on livePath.
+   */
+  public ComponentDescriptor httpProbes(String port, String readyPath, String livePath) {
+    this.probePort = port;
+    this.readyPath = readyPath;
+    this.livePath = livePath;
+    return this;
+  }
+
+  /** Replaces the image's entrypoint */
+  public ComponentDescriptor command(String... command) {
+    this.command = List.of(command);
+    return this;
+  }
+
+  /** Replaces the arguments of the image's entrypoint */
+  public ComponentDescriptor args(String... args) {
+    this.args = List.of(args);
+    return this;
+  }
+
+  /**
+   * A configuration file, rendered into the component's ConfigMap and mounted
+   * read-only with the others in mountPath
+   */
+  public ComponentDescriptor configFile(String mountPath, String fileName, String content) {
+    this.configMountPath = mountPath;
+    this.configFiles.put(fileName, content);
+    return this;
+  }
+
+  /**
+   * Fixed replicas: of a datastore, instead of the single one of its sizing
+   * profile, or of a service without autoscaler
+   */
+  public ComponentDescriptor replicas(int replicas) {
+    this.replicas = replicas;
+    return this;
+  }
+
+  /**
+   * A headless Service, resolving to every pod including the ones not ready yet,
+   * so that the pods of a datastore can reach each other by name, e.g. the members
+   * of a replica set
+   */
+  public ComponentDescriptor headless() {
+    this.headless = true;
+    return this;
+  }
+
+  public boolean isHeadless() {
+    return headless;
+  }
+
+  /** Startup, readiness and liveness probes that open a connection to the named port */
+  public ComponentDescriptor tcpProbes(String port) {
+    this.probePort = port;
+    this.tcpProbe = true;
+    return this;
+  }
+
+  /** Where the pods are scheduled, from spec.placement */
+  public ComponentDescriptor placement(Placement placement) {
+    this.placement = placement;
+    return this;
+  }
+
+  /** Leaves replicas of a service to someone else, e.g. {@link ConsumerLagScaler}, instead of a CPU autoscaler */
+  public ComponentDescriptor withoutAutoscaler() {
+    this.autoscaler = false;
+    return this;
+  }
+
+  public String getComponent() {
+    return component;
+  }
+
+  public Sizing getSizing() {
+    return sizing;
+  }
+
+  /** Name of every object of the component, CR name and image name, at most 62 characters */
+  public String name(CustomResource<?, ?> owner) {
+    return name(owner, resource);
+  }
+
+  public List<HasMetadata> render(CustomResource<?, ?> owner, String bindingSecretName) {
+    final var labels = labels(owner, resource);
+    final var metadata = metadata(owner, resource, labels);
+
+    final var container = new ContainerBuilder()
+      .withName(owner.getMetadata().getName()).withImage(image)
+      .withResources(sizing.resources());
+    if(command != null) {
+      container.withCommand(command);
+    }
+    if(args != null) {
+      container.withArgs(args);
+    }
+    final var podLabels = new TreeMap<String, String>(labels);
+    if(datastore && placement != null) {
+      podLabels.put(DATASTORE_LABEL, owner.getMetadata().getUid());
+    }
+    final var podAnnotations = new TreeMap<String, String>();
+    final var volumes = new ArrayList<Volume>();
+    ConfigMap configMap = null;
+    if(!configFiles.isEmpty()) {
+      final var configName = configName(owner, resource);
+      configMap = new ConfigMapBuilder()
+        .withMetadata(new ObjectMetaBuilder(metadata).withName(configName).build())
+        .withData(configFiles)
+      .build();
+      volumes.add(new VolumeBuilder().withName("config").withNewConfigMap().withName(configName).endConfigMap().build());
+      container.addToVolumeMounts(new VolumeMountBuilder()
+        .withName("config").withMountPath(configMountPath).withReadOnly(true).build());
+      podAnnotations.put(CONFIG_HASH_ANNOTATION, sha256(configFiles.toString()));
+    }
+    for(var p : ports) {
+      container.addToPorts(new ContainerPortBuilder()
+        .withName(p.name).withProtocol("TCP").withContainerPort(p.containerPort).build());
+    }
+    if(probeCommand != null || probePort != null) {
+      // Startup allows 5 minutes, e.g. for a datastore initialising its volume, before liveness takes over
+      container
+        .withStartupProbe(probe(livePath, 5, 60))
+        .withReadinessProbe(probe(readyPath, 10, 3))
+        .withLivenessProbe(probe(livePath, 20, 3));
+    }
+    container.withEnv(KubernetesResourceUtil.convertMapToEnvVarList(env));
+    for(var e : secretEnv.entrySet()) {
+      container.addToEnv(new EnvVarBuilder()
+        .withName(e.getKey())
+        .withNewValueFrom()
+          .withNewSecretKeyRef(e.getValue(), bindingSecretName, false)
+        .endValueFrom()
+      .build());
+    }
+
+    final var servicePorts = new ArrayList<ServicePort>();
+    for(var p : ports) {
+      servicePorts.add(new ServicePortBuilder()
+        .withName(p.name)
+        .withPort(p.servicePort)
+        .withNewTargetPort().withIntVal(p.containerPort).endTargetPort()
+      .build());
+    }
+    final var service = new ServiceBuilder()
+      .withMetadata(metadata)
+      .withNewSpec()
+        .withPorts(servicePorts)
+        .withSelector(labels)
+        .withType("ClusterIP")
+      .endSpec()
+    .build();
+    if(headless) {
+      service.getSpec().setClusterIP("None");
+      service.getSpec().setPublishNotReadyAddresses(true);
+    }
+
+    if(!datastore) {
+      final var deployment = new DeploymentBuilder()
+        .withMetadata(metadata)
+        .withNewSpec()
+          .withReplicas(autoscaler ? null : replicas)
+          .withNewSelector().withMatchLabels(labels).endSelector()
+          .withNewTemplate()
+            .withNewMetadata().withLabels(podLabels).withAnnotations(podAnnotations).endMetadata()
+            .withNewSpec()
+              .withContainers(container.build())
+              .withVolumes(volumes)
+            .endSpec()
+          .endTemplate()
+        .endSpec()
+      .build();
+      place(deployment.getSpec().getTemplate().getSpec(), labels, owner);
+      final var objects = new ArrayList<HasMetadata>(List.of(deployment, service));
+      if(autoscaler) {
+        objects.add(sizing.autoscaler(deployment));
+      }
+      objects.add(sizing.disruptionBudget(deployment));
+      if(configMap != null) {
+        objects.add(configMap);
+      }
+      return objects;
+    }
+
+    final var volumeClaimTemplates = new ArrayList<PersistentVolumeClaim>();
+    for(var c : claims) {
+      container.addToVolumeMounts(new VolumeMountBuilder().withName(c.name).withMountPath(c.mountPath).build());
+      volumeClaimTemplates.add(new PersistentVolumeClaimBuilder()
+        .withMetadata(new ObjectMetaBuilder(metadata).withName(c.name).build())
+        .withNewSpec()
+          .withStorageClassName(c.storageClass)
+          .withAccessModes(c.accessMode)
+          .withNewResources().addToRequests("storage", new Quantity(c.capacity)).endResources()
+        .endSpec()
+      .build());
+    }
+
+    final var statefulSet = new StatefulSetBuilder()
+      .withMetadata(metadata)
+      .withNewSpec()
+        .withNewSelector().withMatchLabels(labels).endSelector()
+        .withReplicas(replicas != null ? replicas : sizing.replicas).withServiceName(metadata.getName())
+        .withNewTemplate()
+          .withNewMetadata().withLabels(podLabels).withAnnotations(podAnnotations).endMetadata()
+          .withNewSpec()
+            .withContainers(container.build())
+            .withVolumes(volumes)
+          .endSpec()
+        .endTemplate()
+        .withVolumeClaimTemplates(volumeClaimTemplates)
+      .endSpec()
+    .build();
+    place(statefulSet.getSpec().getTemplate().getSpec(), labels, owner);
+    return configMap != null ? List.of(statefulSet, service, configMap) : List.of(statefulSet, service);
+  }
+
+  /**
+   * Spreads the replicas of a service across zones; keeps datastores on their
+   * node pool and off each other's nodes
+   */
+  private void place(PodSpec pod, Map<String, String> labels, CustomResource<?, ?> owner) {
+    if(placement == null) {
+      return;
+    }
+    if(!datastore) {
+      if(placement.zoneSpread) {
+        pod.setTopologySpreadConstraints(List.of(new TopologySpreadConstraintBuilder()
+          .withMaxSkew(1)
+          .withTopologyKey(placement.zoneTopologyKey)
+          .withWhenUnsatisfiable("ScheduleAnyway")
+          .withNewLabelSelector().withMatchLabels(labels).endLabelSelector()
+        .build()));
+      }
+      return;
+    }
+    if(placement.datastoreNodeSelector != null && !placement.datastoreNodeSelector.isEmpty()) {
+      pod.setNodeSelector(placement.datastoreNodeSelector);
+    }
+    if(placement.datastoreTolerations != null && !placement.datastoreTolerations.isEmpty()) {
+      pod.setTolerations(placement.datastoreTolerations);
+    }
+    final var term = new PodAffinityTermBuilder()
+      .withNewLabelSelector().addToMatchLabels(DATASTORE_LABEL, owner.getMetadata().getUid()).endLabelSelector()
+      .withTopologyKey("kubernetes.io/hostname")
+    .build();
+    PodAntiAffinity antiAffinity;
+    switch(String.valueOf(placement.datastoreAntiAffinity)) {
+      case "required":
+        antiAffinity = new PodAntiAffinityBuilder().withRequiredDuringSchedulingIgnoredDuringExecution(term).build();
+        break;
+      case "preferred":
+        antiAffinity = new PodAntiAffinityBuilder()
+          .withPreferredDuringSchedulingIgnoredDuringExecution(new WeightedPodAffinityTerm(term, 100)).build();
+        break;
+      case "none":
+        antiAffinity = null;
+        break;
+      default:
+        throw new IllegalArgumentException("Invalid datastore anti-affinity '"+placement.datastoreAntiAffinity
+          +"', expected preferred, required or none");
+    }
+    if(antiAffinity != null || placement.datastoreNodeAffinity != null) {
+      pod.setAffinity(new AffinityBuilder()
+        .withNodeAffinity(placement.datastoreNodeAffinity)
+        .withPodAntiAffinity(antiAffinity)
+      .build());
+    }
+  }
+
+  private Probe probe(String path, int periodSeconds, int failureThreshold) {
+    final var probe = new ProbeBuilder()
+      .withPeriodSeconds(periodSeconds)
+      .withTimeoutSeconds(5)
+      .withFailureThreshold(failureThreshold);
+    if(probeCommand != null) {
+      return probe.withNewExec().withCommand(probeCommand).endExec().build();
+    }
+    final var port = ports.stream().filter(p -> p.name.equals(probePort)).findFirst()
+      .orElseThrow(() -> new IllegalStateException("No port "+probePort+" on "+component));
+    if(tcpProbe) {
+      return probe.withNewTcpSocket().withPort(new IntOrString(port.containerPort)).endTcpSocket().build();
+    }
+    return probe.withNewHttpGet()
+        .withPath(path)
+        .withPort(new IntOrString(port.containerPort))
+      .endHttpGet()
+    .build();
+  }
+
+  static String name(CustomResource<?, ?> owner, QiotResource component) {
+    var name = owner.getMetadata().getName()+"-"+component.getImageName();
+    if(name.length() > 63) {
+      name = name.substring(0,62);
+    }
+    return name;
+  }
+
+  /** Name of the ConfigMap with the configuration files of the component */
+  static String configName(CustomResource<?, ?> owner, QiotResource component) {
+    final var name = name(owner, component);
+    return name.substring(0, Math.min(name.length(), 56))+"-config";
+  }
+
+  /**
+   * Name of a Job of the component with a hash of what it runs, so that a change
+   * creates a new Job, since the pod template of a Job cannot be updated
+   */
+  static String jobName(CustomResource<?, ?> owner, QiotResource component, String content) {
+    final var name = name(owner, component);
+    return name.substring(0, Math.min(name.length(), 53))+"-"+sha256(content).substring(0, 8);
+  }
+
+  private static String sha256(String content) {
+    try {
+      final var digest = MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8));
+      return String.format("%064x", new BigInteger(1, digest));
+    }
+    catch(NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static Map<String, String> labels(CustomResource<?, ?> owner, QiotResource component) {
+    return Map.of(
+      "app.kubernetes.io/name", name(owner, component),
+      "app.kubernetes.io/version", component.getVersion(),
+      "app.kubernetes.io/component", component.getImageName(),
+      "app.kubernetes.io/part-of", owner.getCRDName(),
+      "app.kubernetes.io/managed-by", owner.getKind()
+    );
+  }
+
+  static ObjectMeta metadata(CustomResource<?, ?> owner, QiotResource component, Map<String, String> labels) {
+    final var metadata = owner.getMetadata();
+    return new ObjectMetaBuilder()
+      .withName(name(owner, component))
+      .withNamespace(metadata.getNamespace())
+      .addNewOwnerReference()
+        .withUid(metadata.getUid())
+        .withApiVersion(owner.getApiVersion())
+        .withName(metadata.getName())
+        .withKind(owner.getKind())
+      .endOwnerReference()
+      .withLabels(labels)
+    .build();
+  }
+
+  private static class Claim {
+    final String name;
+    final String mountPath;
+    final String storageClass;
+    final String accessMode;
+    final String capacity;
+
+    Claim(String name, String mountPath, String storageClass, String accessMode, String capacity) {
+      this.name = name;
+      this.mountPath = mountPath;
+      this.storageClass = storageClass;
+      this.accessMode = accessMode;
+      this.capacity = capacity;
+    }
+  }
+
+  private static class Port {
+    final String name;
+    final int containerPort;
+    final int servicePort;
+
+    Port(String name, int containerPort, int servicePort) {
+      this.name = name;
+      this.containerPort = containerPort;
+      this.servicePort = servicePort;
+    }
+  }
+}
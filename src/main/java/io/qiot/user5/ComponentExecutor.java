@@ -0,0 +1,40 @@
+package io.qiot.user5;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Singleton;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Bounded pool shared by both reconcilers to run independent component steps
+ * concurrently.
+ */
+@Singleton
+public class ComponentExecutor implements Executor {
+
+  private final ExecutorService delegate;
+
+  public ComponentExecutor(@ConfigProperty(name = "qiot.operator.component-parallelism", defaultValue = "4") int parallelism) {
+    final var count = new AtomicInteger();
+    this.delegate = Executors.newFixedThreadPool(parallelism, r -> {
+      final var thread = new Thread(r, "qiot-component-"+count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    delegate.execute(command);
+  }
+
+  @PreDestroy
+  void shutdown() {
+    delegate.shutdown();
+  }
+}
@@ -0,0 +1,171 @@
+package io.qiot.user5;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import io.fabric8.kubernetes.api.model.HasMetadata;
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.apps.Deployment;
+import io.fabric8.kubernetes.api.model.apps.StatefulSet;
+import io.fabric8.kubernetes.client.KubernetesClient;
+
+/**
+ * Builds the per-component part of a CR's status from the cached StatefulSets and
+ * Deployments, so clients watch the CR instead of polling every workload.
+ *
+ * A rollout starts when a component's workload reaches a new generation and ends
+ * when every desired replica runs the new pod template and is available; the time
+ * in between is the component's time-to-ready, also recorded as the
+ * qiot.component.time.to.ready timer. Image digests are read from the pods once
+ * per rollout, when it becomes ready.
+ */
+public class ComponentReadiness<P extends HasMetadata> {
+
+  private static final Set<Class<? extends HasMetadata>> WORKLOADS = Set.of(StatefulSet.class, Deployment.class);
+
+  private final KubernetesClient client;
+  private final ResourceApplier<P> applier;
+  private final ReconcileMetrics metrics;
+  private final Clock clock;
+
+  public ComponentReadiness(KubernetesClient client, ResourceApplier<P> applier, ReconcileMetrics metrics,
+      Clock clock) {
+    this.client = client;
+    this.applier = applier;
+    this.metrics = metrics;
+    this.clock = clock;
+  }
+
+  /** Whether every desired replica of the component is available, from the cache */
+  public boolean isReady(P primary, String component) {
+    final var live = applier.liveByComponent(primary, WORKLOADS).get(component);
+    return live != null && !live.isEmpty() && replicaCounts(live.get(0)).ready;
+  }
+
+  /**
+   * @param previous the components of the current status, empty if there is none
+   */
+  public Map<String, ComponentStatus> observe(P primary, Map<String, ComponentStatus> previous) {
+    final var now = clock.instant().truncatedTo(ChronoUnit.SECONDS);
+    final var components = new TreeMap<String, ComponentStatus>();
+    for(var e : applier.liveByComponent(primary, WORKLOADS).entrySet()) {
+      final var before = previous.get(e.getKey());
+      components.put(e.getKey(), e.getValue().isEmpty()
+        ? missing(before)
+        : observe(primary, e.getKey(), e.getValue().get(0), before, now));
+    }
+    return components;
+  }
+
+  private static ComponentStatus missing(ComponentStatus before) {
+    final var status = new ComponentStatus();
+    if(before != null) {
+      status.kind = before.kind;
+      status.name = before.name;
+    }
+    return status;
+  }
+
+  private ComponentStatus observe(P primary, String component, HasMetadata workload, ComponentStatus before,
+      Instant now) {
+    final var status = replicaCounts(workload);
+    final var sameRollout = before != null && Objects.equals(before.name, status.name)
+      && Objects.equals(before.generation, status.generation);
+    if(sameRollout) {
+      status.rolloutStartedAt = before.rolloutStartedAt;
+      status.readyAt = before.readyAt;
+      status.timeToReadySeconds = before.timeToReadySeconds;
+      status.imageDigests = before.imageDigests;
+    }
+    else if(before != null || Objects.equals(status.generation, 1L)) {
+      status.rolloutStartedAt = before != null ? now.toString() : workload.getMetadata().getCreationTimestamp();
+    }
+    // Unknown when the operator first sees a workload past its first generation, e.g. after an upgrade
+
+    if(status.ready && status.readyAt == null) {
+      status.readyAt = now.toString();
+      if(status.rolloutStartedAt != null) {
+        final var timeToReady = Duration.between(Instant.parse(status.rolloutStartedAt), now);
+        status.timeToReadySeconds = timeToReady.toSeconds();
+        metrics.timeToReady(primary, component, timeToReady);
+      }
+    }
+    if(status.ready && !(sameRollout && before.ready)) {
+      status.imageDigests = imageDigests(primary, component, workload);
+    }
+    return status;
+  }
+
+  private static ComponentStatus replicaCounts(HasMetadata workload) {
+    final var status = new ComponentStatus();
+    status.kind = workload.getKind();
+    status.name = workload.getMetadata().getName();
+    status.generation = workload.getMetadata().getGeneration();
+    Long observedGeneration = null;
+    if(workload instanceof StatefulSet) {
+      final var sts = (StatefulSet) workload;
+      status.replicas = sts.getSpec().getReplicas();
+      if(sts.getStatus() != null) {
+        observedGeneration = sts.getStatus().getObservedGeneration();
+        status.readyReplicas = sts.getStatus().getReadyReplicas();
+        // Only reported from Kubernetes 1.22 on
+        status.availableReplicas = sts.getStatus().getAvailableReplicas() != null
+          ? sts.getStatus().getAvailableReplicas() : sts.getStatus().getReadyReplicas();
+        status.updatedReplicas = sts.getStatus().getUpdatedReplicas();
+      }
+    }
+    else {
+      final var deployment = (Deployment) workload;
+      status.replicas = deployment.getSpec().getReplicas();
+      if(deployment.getStatus() != null) {
+        observedGeneration = deployment.getStatus().getObservedGeneration();
+        status.readyReplicas = deployment.getStatus().getReadyReplicas();
+        status.availableReplicas = deployment.getStatus().getAvailableReplicas();
+        status.updatedReplicas = deployment.getStatus().getUpdatedReplicas();
+      }
+    }
+    final var desired = status.replicas != null ? status.replicas : 1;
+    status.ready = Objects.equals(observedGeneration, status.generation)
+      && count(status.updatedReplicas) >= desired && count(status.availableReplicas) >= desired
+      && count(status.readyReplicas) >= desired;
+    return status;
+  }
+
+  private static int count(Integer replicas) {
+    return replicas != null ? replicas : 0;
+  }
+
+  private ArrayList<String> imageDigests(P primary, String component, HasMetadata workload) {
+    final var selector = workload instanceof StatefulSet
+      ? ((StatefulSet) workload).getSpec().getSelector() : ((Deployment) workload).getSpec().getSelector();
+    final var namespace = workload.getMetadata().getNamespace();
+    final var digests = new TreeSet<String>();
+    final var pods = client.pods().inNamespace(namespace).withLabelSelector(selector).list().getItems();
+    metrics.apiCall(primary, component, "list");
+    for(Pod pod : pods) {
+      if(!isReady(pod) || pod.getStatus().getContainerStatuses() == null) {
+        continue;
+      }
+      for(var container : pod.getStatus().getContainerStatuses()) {
+        final var imageID = container.getImageID();
+        if(imageID != null && imageID.contains("@")) {
+          digests.add(imageID.replaceFirst("^[a-z-]+://", ""));
+        }
+      }
+    }
+    return new ArrayList<>(digests);
+  }
+
+  private static boolean isReady(Pod pod) {
+    return pod.getStatus() != null && pod.getStatus().getConditions() != null && pod.getStatus().getConditions()
+      .stream().anyMatch(c -> "Ready".equals(c.getType()) && "True".equals(c.getStatus()));
+  }
+}
@@ -0,0 +1,68 @@
+package io.qiot.user5;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import com.fasterxml.jackson.annotation.JsonPropertyDescription;
+
+public class ComponentStatus {
+
+    @JsonPropertyDescription("StatefulSet or Deployment running the component")
+    public String kind;
+
+    @JsonPropertyDescription("Name of the StatefulSet or Deployment")
+    public String name;
+
+    @JsonPropertyDescription("The metadata.generation of the StatefulSet or Deployment these counts are for")
+    public Long generation;
+
+    @JsonPropertyDescription("Desired number of replicas")
+    public Integer replicas;
+
+    @JsonPropertyDescription("Replicas whose pod is ready")
+    public Integer readyReplicas;
+
+    @JsonPropertyDescription("Replicas whose pod has been ready for at least minReadySeconds")
+    public Integer availableReplicas;
+
+    @JsonPropertyDescription("Replicas running the current pod template")
+    public Integer updatedReplicas;
+
+    @JsonPropertyDescription("Whether every desired replica runs the current pod template and is available")
+    public boolean ready;
+
+    @JsonPropertyDescription("Digests of the images the ready pods run, e.g. quay.io/qiotmanufacturing/datacenter-registration@sha256:...")
+    public List<String> imageDigests = new ArrayList<>();
+
+    @JsonPropertyDescription("When the current generation of the StatefulSet or Deployment was first seen")
+    public String rolloutStartedAt;
+
+    @JsonPropertyDescription("When the current generation first became ready")
+    public String readyAt;
+
+    @JsonPropertyDescription("Seconds from rolloutStartedAt to readyAt")
+    public Long timeToReadySeconds;
+
+    @Override
+    public boolean equals(Object o) {
+        if(!(o instanceof ComponentStatus)) {
+            return false;
+        }
+        final var other = (ComponentStatus) o;
+        return Objects.equals(kind, other.kind) && Objects.equals(name, other.name)
+            && Objects.equals(generation, other.generation) && Objects.equals(replicas, other.replicas)
+            && Objects.equals(readyReplicas, other.readyReplicas)
+            && Objects.equals(availableReplicas, other.availableReplicas)
+            && Objects.equals(updatedReplicas, other.updatedReplicas) && ready == other.ready
+            && Objects.equals(imageDigests, other.imageDigests)
+            && Objects.equals(rolloutStartedAt, other.rolloutStartedAt) && Objects.equals(readyAt, other.readyAt)
+            && Objects.equals(timeToReadySeconds, other.timeToReadySeconds);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(kind, name, generation, replicas, readyReplicas, availableReplicas, updatedReplicas, ready,
+            imageDigests, rolloutStartedAt, readyAt, timeToReadySeconds);
+    }
+}
@@ -0,0 +1,101 @@
+package io.qiot.user5;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.fabric8.kubernetes.api.model.HasMetadata;
+
+/**
+ * Cache of the rendered objects of each component, per custom resource.
+ * A component is rendered once per CR generation; later reconciles of the same
+ * generation reuse the objects, already carrying their spec hash, and only render
+ * again when one of the commonProperties the step reads, or the live state the
+ * render depends on, has changed, e.g. a recreated binding secret.
+ *
+ * The commonProperties a render writes are kept with the objects and put back on
+ * a cache hit, so dependent steps still see them. The cache holds one entry per
+ * watched CR and component; a CR's entries go when the CR is deleted.
+ */
+public class ComponentTemplates<P extends HasMetadata> {
+
+  @FunctionalInterface
+  public interface Renderer<P> {
+    List<HasMetadata> render(P resource, Map<String, String> commonProperties);
+  }
+
+  private final ReconcileGraph<P> graph;
+  // primary uid -> component -> template
+  private final Map<String, Map<String, Template>> templates = new ConcurrentHashMap<>();
+
+  public ComponentTemplates(ReconcileGraph<P> graph) {
+    this.graph = graph;
+  }
+
+  /**
+   * The objects of the component, from the cache or from the renderer. The
+   * returned objects are shared between reconciles and must not be modified.
+   */
+  public List<HasMetadata> render(P resource, String component, Map<String, String> commonProperties,
+      Renderer<P> renderer) {
+    return render(resource, component, commonProperties, "", renderer);
+  }
+
+  /**
+   * @param liveState everything outside the CR and commonProperties the renderer
+   *          reads, e.g. the live StatefulSet's volume claims; a change renders again
+   */
+  public List<HasMetadata> render(P resource, String component, Map<String, String> commonProperties,
+      String liveState, Renderer<P> renderer) {
+    final var metadata = resource.getMetadata();
+    final var inputs = select(commonProperties, graph.reads(component));
+    final var cached = templates.getOrDefault(metadata.getUid(), Map.of()).get(component);
+    if(cached != null && Objects.equals(cached.generation, metadata.getGeneration()) && cached.inputs.equals(inputs)
+        && cached.liveState.equals(liveState)) {
+      commonProperties.putAll(cached.outputs);
+      return cached.objects;
+    }
+
+    final var objects = List.copyOf(renderer.render(resource, commonProperties));
+    objects.forEach(ResourceApplier::annotate);
+    final var template = new Template(metadata.getGeneration(), inputs, liveState,
+      select(commonProperties, graph.writes(component)), objects);
+    templates.computeIfAbsent(metadata.getUid(), uid -> new ConcurrentHashMap<>()).put(component, template);
+    return objects;
+  }
+
+  public void forget(String uid) {
+    templates.remove(uid);
+  }
+
+  private static Map<String, String> select(Map<String, String> commonProperties, Set<String> keys) {
+    final var selected = new HashMap<String, String>();
+    for(var key : keys) {
+      final var value = commonProperties.get(key);
+      if(value != null) {
+        selected.put(key, value);
+      }
+    }
+    return selected;
+  }
+
+  private static class Template {
+    final Long generation;
+    final Map<String, String> inputs;
+    final String liveState;
+    final Map<String, String> outputs;
+    final List<HasMetadata> objects;
+
+    Template(Long generation, Map<String, String> inputs, String liveState, Map<String, String> outputs,
+        List<HasMetadata> objects) {
+      this.generation = generation;
+      this.inputs = inputs;
+      this.liveState = liveState;
+      this.outputs = outputs;
+      this.objects = objects;
+    }
+  }
+}
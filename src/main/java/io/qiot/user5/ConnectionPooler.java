@@ -0,0 +1,46 @@
+package io.qiot.user5;
+
+import java.util.Map;
+
+/**
+ * PgBouncer in transaction-pooling mode in front of a Datacenter's PostgreSQL,
+ * so that the autoscaled plant manager replicas share a bounded number of server
+ * connections. No Factory service connects to PostgreSQL, so Factories have none. When it is enabled, PG_URL points at the pooler; PG_DIRECT_URL
+ * always points at PostgreSQL itself.
+ */
+public class ConnectionPooler {
+
+  static final Datastore PGBOUNCER = new Datastore("pgbouncer", "1.17.0", "bitnami/pgbouncer");
+
+  static ComponentDescriptor descriptor(int sizing, PgBouncer spec, Map<String, SizingOverride> sizingOverrides,
+      String postgresServiceName, String database) {
+    final var pooler = Sizing.pooler(sizing, spec, sizingOverrides);
+    return ComponentDescriptor.service("pgbouncer", PGBOUNCER, PGBOUNCER.getImage()+":"+PGBOUNCER.getVersion(),
+        sizing, sizingOverrides)
+      .port("tcp", 5432)
+      .tcpProbes("tcp")
+      // A CPU autoscaler would multiply the server connections with the replicas
+      .withoutAutoscaler()
+      .replicas(pooler.replicas)
+      .env("POSTGRESQL_HOST", postgresServiceName)
+      .env("POSTGRESQL_PORT", "5432")
+      .env("POSTGRESQL_DATABASE", database)
+      .env("PGBOUNCER_DATABASE", database)
+      .env("PGBOUNCER_PORT", "5432")
+      .env("PGBOUNCER_POOL_MODE", "transaction")
+      .env("PGBOUNCER_DEFAULT_POOL_SIZE", Integer.toString(pooler.defaultPoolSize))
+      .env("PGBOUNCER_MAX_CLIENT_CONN", Integer.toString(pooler.maxClientConnections))
+      // Sent by the PostgreSQL JDBC driver on connect
+      .env("PGBOUNCER_IGNORE_STARTUP_PARAMETERS", "extra_float_digits")
+      .secretEnv("POSTGRESQL_USERNAME", "PG_USER")
+      .secretEnv("POSTGRESQL_PASSWORD", "PG_PASSWORD");
+  }
+
+  /**
+   * JDBC URL for a Quarkus datasource behind the pooler. Server-side prepared
+   * statements do not survive transaction pooling, so the driver must not use them.
+   */
+  static String jdbcURL(String pgURL, String database) {
+    return "jdbc:postgresql://"+pgURL+"/"+database+"?prepareThreshold=0";
+  }
+}
@@ -0,0 +1,31 @@
+package io.qiot.user5;
+
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Reads the lag of a consumer group on a topic, through the Kafka admin client
+ * in {@link KafkaConsumerLagProbe}. Tests can substitute a stand-in.
+ */
+public interface ConsumerLagProbe {
+
+  /**
+   * @return empty if the cluster, group or topic cannot be read right now
+   */
+  Optional<LagSample> sample(String bootstrapServers, String consumerGroup, String topic);
+
+  /** Releases whatever the probe holds for bootstrap URLs no longer in use */
+  default void retain(Set<String> bootstrapServers) {
+  }
+
+  class LagSample {
+    /** Records behind, summed over all partitions of the topic */
+    public final long lag;
+    public final int partitions;
+
+    public LagSample(long lag, int partitions) {
+      this.lag = lag;
+      this.partitions = partitions;
+    }
+  }
+}
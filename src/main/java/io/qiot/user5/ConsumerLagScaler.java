@@ -0,0 +1,181 @@
+package io.qiot.user5;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import io.fabric8.kubernetes.api.model.HasMetadata;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.quarkus.logging.Log;
+
+/**
+ * Scales Deployments on Kafka consumer-group lag. Every interval the lag of each
+ * tracked consumer group is read through the {@link ConsumerLagProbe} and the
+ * Deployment's scale subresource is set to one replica per lagPerReplica records,
+ * within the min/max bounds and never above the topic's partition count, since
+ * extra consumers would sit idle. After a change the Deployment is left alone
+ * for the cooldown.
+ *
+ * The Deployment is rendered without replicas, so applying it never undoes a
+ * scale decision.
+ */
+@Singleton
+public class ConsumerLagScaler {
+
+  private final KubernetesClient client;
+  private final ConsumerLagProbe probe;
+  private final ReconcileMetrics metrics;
+  private final ReconcileOwnership ownership;
+  private final Clock clock;
+  private final ScheduledExecutorService scheduler;
+  // primary uid -> what to scale
+  private final Map<String, Target> targets = new ConcurrentHashMap<>();
+
+  @Inject
+  public ConsumerLagScaler(KubernetesClient client, ConsumerLagProbe probe, ReconcileMetrics metrics,
+      ReconcileOwnership ownership,
+      @ConfigProperty(name = "qiot.operator.lag-autoscaler.interval", defaultValue = "30s") Duration interval) {
+    this(client, probe, metrics, ownership, Clock.systemUTC(), Executors.newSingleThreadScheduledExecutor(r -> {
+      final var thread = new Thread(r, "qiot-lag-autoscaler");
+      thread.setDaemon(true);
+      return thread;
+    }));
+    scheduler.scheduleWithFixedDelay(this::checkAll, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /** Without a schedule, for driving {@link #checkAll} by hand */
+  ConsumerLagScaler(KubernetesClient client, ConsumerLagProbe probe, ReconcileMetrics metrics,
+      ReconcileOwnership ownership, Clock clock, ScheduledExecutorService scheduler) {
+    this.client = client;
+    this.probe = probe;
+    this.metrics = metrics;
+    this.ownership = ownership;
+    this.clock = clock;
+    this.scheduler = scheduler;
+  }
+
+  /** Whether lag scaling applies instead of the CPU autoscaler */
+  public boolean isEnabled(LagAutoscaling spec) {
+    return spec.enabled;
+  }
+
+  /**
+   * Starts or updates scaling of the owner's Deployment.
+   *
+   * @param currentReplicas spec.replicas of the live Deployment, negative if it is not there yet
+   */
+  public void track(HasMetadata owner, String component, String deployment, String bootstrapServers, String topic,
+      LagAutoscaling spec, int minReplicas, int maxReplicas, IntSupplier currentReplicas) {
+    final var min = Math.max(1, spec.minReplicas != null ? spec.minReplicas : minReplicas);
+    final var max = Math.max(min, spec.maxReplicas != null ? spec.maxReplicas : maxReplicas);
+    targets.compute(owner.getMetadata().getUid(), (uid, previous) -> new Target(owner, component, deployment,
+      bootstrapServers, spec.consumerGroup, topic, min, max, Math.max(1, spec.lagPerReplica),
+      Duration.ofSeconds(Math.max(0, spec.cooldownSeconds)), currentReplicas,
+      previous != null ? previous.lastScaled : null));
+  }
+
+  public void forget(String uid) {
+    targets.remove(uid);
+  }
+
+  void checkAll() {
+    final var bootstrapServers = new HashSet<String>();
+    for(var target : targets.values()) {
+      bootstrapServers.add(target.bootstrapServers);
+      // Left to the replica that owns the shard, if it moved
+      if(!ownership.owns(target.owner)) {
+        continue;
+      }
+      try {
+        check(target);
+      }
+      catch(RuntimeException e) {
+        Log.warn("Lag check of "+target.deployment+" in "+target.owner.getMetadata().getNamespace()+" failed", e);
+      }
+    }
+    probe.retain(bootstrapServers);
+  }
+
+  private void check(Target target) {
+    final var current = target.currentReplicas.getAsInt();
+    if(current < 0) {
+      return;
+    }
+    final var sample = probe.sample(target.bootstrapServers, target.consumerGroup, target.topic);
+    if(sample.isEmpty()) {
+      return;
+    }
+    final var desired = desiredReplicas(sample.get(), target.lagPerReplica, target.minReplicas, target.maxReplicas);
+    final var now = clock.instant();
+    if(desired == current || (target.lastScaled != null && now.isBefore(target.lastScaled.plus(target.cooldown)))) {
+      return;
+    }
+    client.apps().deployments().inNamespace(target.owner.getMetadata().getNamespace()).withName(target.deployment)
+      .scale(desired);
+    metrics.apiCall(target.owner, target.component, "scale");
+    target.lastScaled = now;
+    Log.info("Scaled "+target.deployment+" from "+current+" to "+desired+" replicas for a lag of "+sample.get().lag
+      +" on "+sample.get().partitions+" partitions");
+  }
+
+  /**
+   * One replica per lagPerReplica records, within min and max and at most one
+   * replica per partition.
+   */
+  static int desiredReplicas(ConsumerLagProbe.LagSample sample, long lagPerReplica, int minReplicas, int maxReplicas) {
+    final var upper = sample.partitions > 0 ? Math.min(maxReplicas, sample.partitions) : maxReplicas;
+    final var wanted = (int) Math.min(Integer.MAX_VALUE,
+      sample.lag / lagPerReplica + (sample.lag % lagPerReplica > 0 ? 1 : 0));
+    return Math.max(Math.min(minReplicas, upper), Math.min(wanted, upper));
+  }
+
+  @PreDestroy
+  void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  private static class Target {
+    final HasMetadata owner;
+    final String component;
+    final String deployment;
+    final String bootstrapServers;
+    final String consumerGroup;
+    final String topic;
+    final int minReplicas;
+    final int maxReplicas;
+    final long lagPerReplica;
+    final Duration cooldown;
+    final IntSupplier currentReplicas;
+    volatile Instant lastScaled;
+
+    Target(HasMetadata owner, String component, String deployment, String bootstrapServers, String consumerGroup,
+        String topic, int minReplicas, int maxReplicas, long lagPerReplica, Duration cooldown,
+        IntSupplier currentReplicas, Instant lastScaled) {
+      this.owner = owner;
+      this.component = component;
+      this.deployment = deployment;
+      this.bootstrapServers = bootstrapServers;
+      this.consumerGroup = consumerGroup;
+      this.topic = topic;
+      this.minReplicas = minReplicas;
+      this.maxReplicas = maxReplicas;
+      this.lagPerReplica = lagPerReplica;
+      this.cooldown = cooldown;
+      this.currentReplicas = currentReplicas;
+      this.lastScaled = lastScaled;
+    }
+  }
+}
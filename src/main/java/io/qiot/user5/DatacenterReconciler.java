@@ -1,101 +1,282 @@
 package io.qiot.user5;
 
 import java.security.SecureRandom;
-import java.util.Base64;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
 import java.util.Random;
 
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import io.fabric8.kubernetes.api.model.ConfigMap;
+import io.fabric8.kubernetes.api.model.HasMetadata;
 import io.fabric8.kubernetes.api.model.ObjectMeta;
-import io.fabric8.kubernetes.api.model.ObjectMetaBuilder;
-import io.fabric8.kubernetes.api.model.PersistentVolumeClaim;
-import io.fabric8.kubernetes.api.model.PersistentVolumeClaimSpec;
-import io.fabric8.kubernetes.api.model.Quantity;
-import io.fabric8.kubernetes.api.model.ResourceRequirements;
+import io.fabric8.kubernetes.api.model.Secret;
 import io.fabric8.kubernetes.api.model.SecretBuilder;
-import io.fabric8.kubernetes.api.model.ServiceBuilder;
-import io.fabric8.kubernetes.api.model.VolumeMount;
-import io.fabric8.kubernetes.api.model.apps.DeploymentBuilder;
-import io.fabric8.kubernetes.api.model.apps.StatefulSetBuilder;
+import io.fabric8.kubernetes.api.model.Service;
+import io.fabric8.kubernetes.api.model.apps.Deployment;
+import io.fabric8.kubernetes.api.model.apps.StatefulSet;
+import io.fabric8.kubernetes.api.model.autoscaling.v1.HorizontalPodAutoscaler;
+import io.fabric8.kubernetes.api.model.batch.v1.Job;
+import io.fabric8.kubernetes.api.model.policy.v1.PodDisruptionBudget;
 import io.fabric8.kubernetes.client.KubernetesClient;
-import io.fabric8.kubernetes.client.utils.KubernetesResourceUtil;
+import io.javaoperatorsdk.operator.api.reconciler.Cleaner;
 import io.javaoperatorsdk.operator.api.reconciler.Context;
+import io.javaoperatorsdk.operator.api.reconciler.DeleteControl;
+import io.javaoperatorsdk.operator.api.reconciler.EventSourceContext;
+import io.javaoperatorsdk.operator.api.reconciler.EventSourceInitializer;
 import io.javaoperatorsdk.operator.api.reconciler.ControllerConfiguration;
 import io.javaoperatorsdk.operator.api.reconciler.Reconciler;
 import io.javaoperatorsdk.operator.api.reconciler.UpdateControl;
+import io.javaoperatorsdk.operator.processing.event.ResourceID;
+import io.javaoperatorsdk.operator.processing.event.source.EventSource;
+import io.javaoperatorsdk.operator.processing.event.source.informer.InformerEventSource;
 import io.quarkus.logging.Log;
 import io.javaoperatorsdk.operator.api.reconciler.Constants;
 
 @ControllerConfiguration(namespaces = Constants.WATCH_CURRENT_NAMESPACE, name = "datacenter")
-public class DatacenterReconciler implements Reconciler<Datacenter> { 
-  private final KubernetesClient client;
+public class DatacenterReconciler implements Reconciler<Datacenter>, EventSourceInitializer<Datacenter>,
+    Cleaner<Datacenter> { 
+  private static final Duration HELD_BACK_RETRY = Duration.ofSeconds(30);
+  private static final Datastore POSTGRES = new Datastore("postgres", "14");
+  private static final Datastore INFLUXDB_1 = new Datastore("influxdb", "1.6.4");
+  private static final Datastore INFLUXDB_2 = new Datastore("influxdb2", "2.3.0-alpine", "influxdb");
+  private static final Set<String> LATER_BINDINGS = Set.of("INFLUXDB_ORG", "INFLUXDB_BUCKET", "INFLUXDB_TOKEN",
+    "MONGODB_KEYFILE");
 
-  public DatacenterReconciler(KubernetesClient client) {
+  private final KubernetesClient client;
+  private final ComponentExecutor executor;
+  private final ServerSideApply serverSideApply;
+  private final ReconcileMetrics metrics;
+  private final ReconcileOwnership ownership;
+  private final ReconcileThrottle throttle;
+  private final boolean strimziTopics;
+  private final ConsumerLagScaler lagScaler;
+  private final ReconcileGraph<Datacenter> graph;
+  private final ComponentTemplates<Datacenter> templates;
+  private final BindingSecretCache bindingSecrets = new BindingSecretCache();
+  private InformerEventSource<Secret, Datacenter> bindingSecretSource;
+  private OwnedResources<Datacenter> owned;
+  private ResourceApplier<Datacenter> applier;
+  private ComponentReadiness<Datacenter> readiness;
+  private VolumeClaims<Datacenter> volumes;
+
+  public DatacenterReconciler(KubernetesClient client, ComponentExecutor executor, ServerSideApply serverSideApply,
+      ReconcileMetrics metrics, ReconcileOwnership ownership, ReconcileThrottle throttle, ConsumerLagScaler lagScaler,
+      @ConfigProperty(name = "qiot.operator.strimzi-topics", defaultValue = "false") boolean strimziTopics) {
     this.client = client;
+    this.executor = executor;
+    this.serverSideApply = serverSideApply;
+    this.metrics = metrics;
+    this.ownership = ownership;
+    this.throttle = throttle;
+    this.strimziTopics = strimziTopics;
+    this.lagScaler = lagScaler;
+    // Edges come from the commonProperties keys each step reads and writes
+    this.graph = new ReconcileGraph<Datacenter>(metrics, (r, step) -> readiness.isReady(r, step))
+      .add("bindings", Set.of(), Set.of("BINDING_SECRET_NAME", "PG_USER", "PG_PASSWORD", "INFLUXDB_USERNAME",
+          "INFLUXDB_PASSWORD", "INFLUXDB_ORG", "INFLUXDB_BUCKET", "INFLUXDB_TOKEN", "MONGODB_ROOT_USER",
+          "MONGODB_ROOT_PASSWORD", "MONGODB_KEYFILE"), this::createBindingSecret)
+      .add("postgres", Set.of("BINDING_SECRET_NAME"), Set.of("PG_SERVICE_NAME", "PG_DIRECT_URL", "PG_DATABASE"),
+          this::reconcilePostgresDatastore)
+      .add("pgbouncer", Set.of("BINDING_SECRET_NAME", "PG_SERVICE_NAME", "PG_DIRECT_URL", "PG_DATABASE"),
+          Set.of("PG_URL"), this::reconcilePgBouncer)
+      .add("influxdb", Set.of("BINDING_SECRET_NAME", "INFLUXDB_BUCKET"),
+          Set.of("INFLUXDB_SERVICE_NAME", "INFLUXDB_URL", "INFLUXDB_DATABASE"), this::reconcileInfluxDB)
+      .add("influxdb-setup", Set.of("BINDING_SECRET_NAME", "INFLUXDB_URL"), Set.of(), this::reconcileInfluxDBSetup)
+      .add("mongo", Set.of("BINDING_SECRET_NAME", "MONGODB_ROOT_USER", "MONGODB_ROOT_PASSWORD"),
+          Set.of("MONGODB_SERVICE_NAME", "MONGODB_URL", "MONGODB_DATABASE"), this::reconcileMongoDatastore)
+      .add("mongo-setup", Set.of("BINDING_SECRET_NAME", "MONGODB_SERVICE_NAME"), Set.of(), this::reconcileMongoSetup)
+      .add("kafka-topics", Set.of(), Set.of("KAFKA_TOPIC_TELEMETRY"), this::reconcileKafkaTopics)
+      .add("registration", Set.of(), Set.of("REGISTRATION_SERVICE_URL"), this::reconcileRegistrationService)
+      .add("plant-manager", Set.of("BINDING_SECRET_NAME", "PG_URL", "PG_DATABASE", "REGISTRATION_SERVICE_URL"), Set.of(),
+          this::reconcilePlantManagerService)
+      .add("global-product-line", Set.of("BINDING_SECRET_NAME", "MONGODB_URL"), Set.of(),
+          this::reconcileGlobalProductLineService)
+      .add("event-collector", Set.of("BINDING_SECRET_NAME", "INFLUXDB_URL", "KAFKA_TOPIC_TELEMETRY"), Set.of(),
+          this::reconcileEventCollectorService)
+      .waitFor("plant-manager", "postgres")
+      .waitFor("global-product-line", "mongo")
+      .waitFor("influxdb-setup", "influxdb")
+      .waitFor("mongo-setup", "mongo");
+    this.templates = new ComponentTemplates<>(graph);
+  }
+
+  @Override
+  public Map<String, EventSource> prepareEventSources(EventSourceContext<Datacenter> context) {
+    bindingSecretSource = BindingSecretCache.eventSource(context);
+    owned = new OwnedResources<>(context, StatefulSet.class, Deployment.class, Service.class,
+      HorizontalPodAutoscaler.class, PodDisruptionBudget.class, ConfigMap.class, Job.class);
+    if(strimziTopics) {
+      // Needs the Strimzi CRDs and list/watch on KafkaTopics in every namespace
+      owned.withCrossNamespace(KafkaTopic.class);
+    }
+    applier = new ResourceApplier<>(client, owned, serverSideApply, metrics);
+    readiness = new ComponentReadiness<>(client, applier, metrics, Clock.systemUTC());
+    volumes = new VolumeClaims<>(client, owned);
+    owned.onOwnerDeleted(applier::forget);
+    owned.onOwnerDeleted(graph::forget);
+    owned.onOwnerDeleted(templates::forget);
+    owned.onOwnerDeleted(volumes::forget);
+    owned.onOwnerDeleted(throttle::forget);
+    owned.onOwnerDeleted(lagScaler::forget);
+    final var sources = new ArrayList<EventSource>(List.of(owned.eventSources()));
+    sources.add(bindingSecretSource);
+    sources.add(ownership.eventSource(context));
+    return EventSourceInitializer.nameEventSources(sources.toArray(new EventSource[0]));
   }
 
   @Override
   public UpdateControl<Datacenter> reconcile(Datacenter resource, Context context) {
-    
-    // final var spec = resource.getSpec();
-    // final var sizing = spec.getSizing();
+    if(!ownership.owns(resource)) {
+      // Reconciled by the operator replica that owns its shard
+      return UpdateControl.noUpdate();
+    }
+    final var uid = resource.getMetadata().getUid();
+    final var drifted = isApplied(resource) ? applier.driftedComponents(resource) : Optional.<Set<String>>empty();
+    // A resync with nothing drifted only refreshes the status
+    final var wait = throttle.admit(uid, drifted.isEmpty() || !drifted.get().isEmpty());
+    if(wait.isPresent()) {
+      // Backing off after a failure, or over the global reconcile rate
+      return UpdateControl.<Datacenter>noUpdate().rescheduleAfter(wait.get().toMillis());
+    }
+    final var sample = metrics.start();
+    try {
+      final var control = reconcileComponents(resource, drifted);
+      metrics.reconciled(resource, sample, false);
+      throttle.succeeded(uid);
+      return control;
+    }
+    catch(RuntimeException e) {
+      metrics.reconciled(resource, sample, true);
+      // Retried here rather than by the framework so that CRs failing together spread out
+      final var delay = throttle.failed(uid);
+      Log.warn("Reconcile of "+resource.getMetadata().getName()+" failed, retrying in "+delay.toMillis()+"ms", e);
+      return UpdateControl.<Datacenter>noUpdate().rescheduleAfter(delay.toMillis());
+    }
+  }
+
+  @Override
+  public DeleteControl cleanup(Datacenter resource, Context context) {
+    if(!ownership.owns(resource)) {
+      // The replica that owns its shard deletes the topics and removes the finalizer
+      return DeleteControl.noFinalizerRemoval();
+    }
+    if(!strimziTopics) {
+      return DeleteControl.defaultDelete();
+    }
+    final var name = resource.getMetadata().getName();
+    final var namespace = resource.getMetadata().getNamespace();
+    // Not garbage collected, they live in the Kafka cluster's namespace without an owner reference
+    for(var topic : owned.list(KafkaTopic.class, t -> KafkaTopics.isOwnedBy(t, name, namespace))) {
+      final var topicNamespace = topic.getMetadata().getNamespace();
+      final var topicName = topic.getSpec().topicName;
+      if(!owned.owners(o -> !o.getMetadata().getUid().equals(resource.getMetadata().getUid())
+          && o.getSpec().telemetryTopic.equals(topicName) && topicNamespace.equals(topicNamespace(o))).isEmpty()) {
+        // Still used by another Datacenter, which takes it over on its next reconcile
+        continue;
+      }
+      client.resource(topic).delete();
+      metrics.apiCall(resource, "kafka-topics", "delete");
+    }
+    return DeleteControl.defaultDelete();
+  }
+
+  private boolean isApplied(Datacenter resource) {
+    return resource.getStatus() != null
+      && Objects.equals(resource.getMetadata().getGeneration(), resource.getStatus().observedGeneration);
+  }
+
+  /** @param drifted components whose owned objects drifted, empty if unknown or the generation is not applied yet */
+  private UpdateControl<Datacenter> reconcileComponents(Datacenter resource, Optional<Set<String>> drifted) {
+
+    final var generation = resource.getMetadata().getGeneration();
+    if(isApplied(resource)) {
+      // Nothing to do when this generation was already applied and no owned object drifted
+      if(drifted.isPresent() && drifted.get().isEmpty()) {
+        return updateStatus(resource, resource.getStatus().observedGeneration, Set.of());
+      }
+      // A deleted or modified owned object only repairs its own component
+      final var heldBack = drifted.isPresent()
+        ? graph.repair(resource, executor, drifted.get()) : Optional.<Set<String>>empty();
+      if(heldBack.isPresent()) {
+        Log.info("Repaired "+drifted.get()+" of "+resource.getMetadata().getName());
+        return updateStatus(resource, resource.getStatus().observedGeneration, heldBack.get());
+      }
+    }
 
     // Common Properties thread thorugh all the services so that details such as 
     // database URL can be shared with subsewquent services
     // Prefixes are: PG_ , RS_, PMS_, GPLS_, ECS_ 
-    Map<String, String> commonProperties = new HashMap<String, String>();
-
-    // TOTO configure applications to connect to datastores
-    commonProperties = createBindingSecret(resource, commonProperties);
-    commonProperties = reconcilePostgresDatastore(resource, commonProperties);
-    commonProperties = reconcileInfluxDB(resource, commonProperties);
-    commonProperties = reconcileMongoDatastore(resource, commonProperties);
-    commonProperties = reconcileRegistrationService(resource, commonProperties);
-    commonProperties = reconcilePlantManagerService(resource, commonProperties);
-    commonProperties = reconcileGlobalProductLineService(resource, commonProperties);
-    commonProperties = reconcileEventCollectorService(resource, commonProperties);
-
-    return UpdateControl.noUpdate();
-  }
-
-  private Map<String, String> createLabels(Datacenter resource, QiotResource component) {
-    var name = resource.getMetadata().getName()+"-"+component.getImageName();
-    if(name.length() > 63) {
-      name = name.substring(0,62);
-    }
-    
-    return Map.of(
-      "app.kubernetes.io/name", name,
-      "app.kubernetes.io/version", component.getVersion(),
-      "app.kubernetes.io/component", component.getImageName(),
-      "app.kubernetes.io/part-of", resource.getCRDName(),
-      "app.kubernetes.io/managed-by", resource.getKind()
-    );
-  }
-
-  private ObjectMeta createMetadata(Datacenter resource, QiotResource component, Map<String, String> labels) {
-    final var metadata = resource.getMetadata();
-    // Example of a Kubernetes specific check
-    var name = metadata.getName()+"-"+component.getImageName();
-    Log.info("Name of the metadata: "+name);
-    Log.info("Name of the component name: "+component.getImageName());
-    if(name.length() > 63) {
-      name = name.substring(0,62);
-    }
-
-    return new ObjectMetaBuilder()
-      .withName(name)
-      .withNamespace(metadata.getNamespace())
-      .addNewOwnerReference()
-        .withUid(metadata.getUid())
-        .withApiVersion(resource.getApiVersion())
-        .withName(metadata.getName())
-        .withKind(resource.getKind())
-      .endOwnerReference()
-      .withLabels(labels)
-    .build();
-      
+    final var heldBack = graph.run(resource, executor);
+    // The generation only counts as applied once no component waits for a datastore
+    return updateStatus(resource, heldBack.isEmpty() ? generation
+      : resource.getStatus() != null ? resource.getStatus().observedGeneration : null, heldBack);
+  }
+
+  /**
+   * Patches the status when the observed generation or the readiness of a
+   * component changed, and only then. Held back components are retried once what
+   * they wait for becomes ready, at the latest after {@link #HELD_BACK_RETRY}.
+   */
+  private UpdateControl<Datacenter> updateStatus(Datacenter resource, Long observedGeneration, Set<String> heldBack) {
+    final var previous = resource.getStatus();
+    final var status = new DatacenterStatus();
+    status.observedGeneration = observedGeneration;
+    status.components = readiness.observe(resource, previous != null ? previous.components : Map.of());
+    status.ready = heldBack.isEmpty() && !status.components.isEmpty()
+      && status.components.values().stream().allMatch(c -> c.ready);
+    UpdateControl<Datacenter> control;
+    if(status.equals(previous)) {
+      control = UpdateControl.noUpdate();
+    }
+    else {
+      resource.setStatus(status);
+      // Sent by the framework once this method returns
+      metrics.apiCall(resource, "status", "patch");
+      control = UpdateControl.patchStatus(resource);
+    }
+    if(!heldBack.isEmpty()) {
+      Log.info("Holding back "+heldBack+" of "+resource.getMetadata().getName()+" until their datastores are ready");
+      control.rescheduleAfter(HELD_BACK_RETRY.toMillis());
+    }
+    return control;
+  }
+
+  /**
+   * Builds the desired objects of every component, in graph order, without any
+   * API call. The binding secret values must already be in commonProperties.
+   * Used by the desired-state benchmarks.
+   */
+  List<HasMetadata> desiredState(Datacenter resource, Map<String, String> commonProperties) {
+    final var desired = new ArrayList<HasMetadata>();
+    desired.addAll(desiredPostgresDatastore(resource, commonProperties));
+    desired.addAll(desiredPgBouncer(resource, commonProperties));
+    desired.addAll(desiredInfluxDB(resource, commonProperties));
+    desired.addAll(desiredInfluxDBSetup(resource, commonProperties));
+    desired.addAll(desiredMongoDatastore(resource, commonProperties));
+    desired.addAll(desiredMongoSetup(resource, commonProperties));
+    desired.addAll(desiredKafkaTopics(resource, commonProperties));
+    desired.addAll(desiredRegistrationService(resource, commonProperties));
+    desired.addAll(desiredPlantManagerService(resource, commonProperties));
+    desired.addAll(desiredGlobalProductLineService(resource, commonProperties));
+    desired.addAll(desiredEventCollectorService(resource, commonProperties));
+    return desired;
+  }
+
+  Map<String, String> createLabels(Datacenter resource, QiotResource component) {
+    return ComponentDescriptor.labels(resource, component);
+  }
+
+  ObjectMeta createMetadata(Datacenter resource, QiotResource component, Map<String, String> labels) {
+    return ComponentDescriptor.metadata(resource, component, labels);
   }
 
   Random random = new SecureRandom();
@@ -115,41 +296,40 @@ public class DatacenterReconciler implements Reconciler<Datacenter> {
 
   private Map<String, String> createBindingSecret(Datacenter resource, Map<String, String> commonProperties) {
 
-    final var pg_password = generatePassword(16);
-    final var idb_password = generatePassword(16);
-    final var mdb_password = generatePassword(16);
-    final var ds = new Datastore("bindings", "v1");
+    final var ds = new Datastore(BindingSecretCache.COMPONENT, "v1");
     final var labels = createLabels(resource, ds);
     final var metadata = createMetadata(resource, ds, labels);
 
-    var secretsInNs = client.secrets().inNamespace(metadata.getNamespace()).list().getItems();
-    Log.info("Secrets list is: "+secretsInNs+" in namespace: "+metadata.getNamespace());
-    
-    for(var s : secretsInNs) {
+    // Served from the label-filtered informer cache, no API call in steady state
+    var existing = bindingSecretSource.get(new ResourceID(metadata.getName(), metadata.getNamespace()));
+    if(existing.isPresent()) {
       // If secret already exists, exit the function does not need to be recreated
-      Log.info("The name of the current secret in the loop is: "+s.getMetadata().getName());
-      Log.info("The name of the comparison secret in the loop is: "+metadata.getName());
-      if(s.getMetadata().getName().equals(metadata.getName())) {
-        Base64.Decoder decoder = Base64.getDecoder();
-        Log.info("Now checking with secret: "+s.getMetadata().getName());
-        commonProperties = s.getData();
-        for(Map.Entry<String, String> e: commonProperties.entrySet()) {
-          commonProperties.put(e.getKey(), new String(decoder.decode(e.getValue())));
-        }
-        commonProperties.put("BINDING_SECRET_NAME", metadata.getName());
-        return commonProperties;
+      commonProperties = bindingSecrets.decode(existing.get());
+      final var missing = new HashSet<String>(LATER_BINDINGS);
+      missing.removeAll(commonProperties.keySet());
+      if(!missing.isEmpty()) {
+        final var added = laterBindings(resource, missing);
+        // Created by an operator version before these keys
+        final var updated = client.secrets().inNamespace(metadata.getNamespace()).withName(metadata.getName())
+          .edit(s -> new SecretBuilder(s).addToStringData(added).build());
+        metrics.apiCall(resource, BindingSecretCache.COMPONENT, "patch");
+        bindingSecretSource.handleRecentResourceUpdate(ResourceID.fromResource(resource), updated, existing.get());
+        commonProperties.putAll(added);
       }
+      commonProperties.put("BINDING_SECRET_NAME", metadata.getName());
+      return commonProperties;
     }
 
     commonProperties = new HashMap<>(Map.of(
       "PG_USER", "admin",
-      "PG_PASSWORD", pg_password,
+      "PG_PASSWORD", generatePassword(16),
       "INFLUXDB_USERNAME", "root",
-      "INFLUXDB_PASSWORD", idb_password,
+      "INFLUXDB_PASSWORD", generatePassword(16),
       "MONGODB_ROOT_USER", "qiotroot",
-      "MONGODB_ROOT_PASSWORD", mdb_password,
+      "MONGODB_ROOT_PASSWORD", generatePassword(16),
       "BINDING_SECRET_NAME", metadata.getName()
     ));
+    commonProperties.putAll(laterBindings(resource, LATER_BINDINGS));
 
     Log.info("Name of the secret: "+metadata.getName());
     var sec = new SecretBuilder()
@@ -157,510 +337,466 @@ public class DatacenterReconciler implements Reconciler<Datacenter> {
     .addToStringData(commonProperties)
     .build();
 
-    client.secrets().create(sec);
+    var created = client.secrets().inNamespace(metadata.getNamespace()).create(sec);
+    metrics.apiCall(resource, BindingSecretCache.COMPONENT, "create");
+    // Make the new secret visible to the next reconcile even if the informer has not caught up yet
+    bindingSecretSource.handleRecentResourceCreate(ResourceID.fromResource(resource), created);
 
     return commonProperties;
 
   }
 
-  private Map<String, String> reconcilePostgresDatastore(Datacenter resource, Map<String, String> commonProperties) {
+  /**
+   * Values for binding secret keys added after the first release, put into
+   * existing secrets too. The InfluxDB 2 org and bucket come from the spec and are
+   * taken by InfluxDB on its first start; the token and the MongoDB replica set
+   * keyfile are generated, so only for the keys asked for.
+   *
+   * @param keys some of {@link #LATER_BINDINGS}
+   */
+  private Map<String, String> laterBindings(Datacenter resource, Set<String> keys) {
+    final var bindings = new HashMap<String, String>();
+    for(var key : keys) {
+      switch(key) {
+        case "INFLUXDB_ORG":
+          bindings.put(key, resource.getSpec().influxDB.org);
+          break;
+        case "INFLUXDB_BUCKET":
+          bindings.put(key, resource.getSpec().influxDB.bucket);
+          break;
+        case "INFLUXDB_TOKEN":
+          bindings.put(key, generatePassword(40));
+          break;
+        case "MONGODB_KEYFILE":
+          bindings.put(key, generatePassword(756));
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown binding "+key);
+      }
+    }
+    return bindings;
+  }
 
-    final var ds = new Datastore("postgres", "14");
-    final var labels = createLabels(resource, ds);
-    final var name = resource.getMetadata().getName();
+  private Map<String, String> reconcilePostgresDatastore(Datacenter resource, Map<String, String> commonProperties) {
+    final var live = liveStatefulSet(resource, ComponentDescriptor.name(resource, POSTGRES));
+    applier.applyAll(resource, "postgres", volumes.keepClaimTemplates(resource, templates.render(resource, "postgres",
+      commonProperties, VolumeClaims.claimNames(live), this::desiredPostgresDatastore)));
+    return commonProperties;
+  }
 
-    var serviceName = resource.getMetadata().getName()+"-"+ds.getImageName();
-    if(serviceName.length() > 63) {
-      serviceName = serviceName.substring(0,62);
+  List<HasMetadata> desiredPostgresDatastore(Datacenter resource, Map<String, String> commonProperties) {
+
+    final var spec = resource.getSpec();
+    final var postgres = ComponentDescriptor.datastore("postgres", POSTGRES, spec.sizing,
+        spec.sizingOverrides)
+      .port("tcp", 5432)
+      .commandProbes("sh", "-c", "pg_isready -h 127.0.0.1 -p 5432 -U \"$POSTGRES_USER\" -d \"$POSTGRES_DB\"")
+      .env("PGDATA", "/var/lib/postgresql/data/pgdata")
+      .env("POSTGRES_DB", "qiot_manufacturing")
+      .secretEnv("POSTGRES_USER", "PG_USER")
+      .secretEnv("POSTGRES_PASSWORD", "PG_PASSWORD");
+    final var name = postgres.name(resource);
+    final var storage = spec.storage.get("postgres");
+    final var capacity = storage != null && storage.capacity != null ? storage.capacity : postgres.getSizing().storage;
+    postgres.volume("postgresdb", "/var/lib/postgresql/data/pgdata", storage, capacity);
+    if(VolumeClaims.uses(liveStatefulSet(resource, name), "postgres-wal", storage != null && storage.wal != null)) {
+      // initdb wants an empty directory, which the root of a volume may not be
+      postgres
+        .volume("postgres-wal", "/var/lib/postgresql/wal", storage != null ? storage.wal : null,
+          VolumeClaims.walCapacity(capacity))
+        .env("POSTGRES_INITDB_WALDIR", "/var/lib/postgresql/wal/pg_wal");
     }
+    postgres
+      .configFile("/etc/postgresql/qiot", "postgresql.conf",
+        DatastoreTuning.postgres(postgres.getSizing(), "/var/lib/postgresql/data/pgdata"))
+      .args("postgres", "-c", "config_file=/etc/postgresql/qiot/postgresql.conf");
 
-    var dataVolMount = new VolumeMount();
-    dataVolMount.setMountPath("/var/lib/postgresql/data/pgdata");
-    dataVolMount.setName("postgresdb");
+    commonProperties.put("PG_SERVICE_NAME", name);
+    commonProperties.put("PG_DIRECT_URL", name+":5432");
+    commonProperties.put("PG_DATABASE", "qiot_manufacturing");
+    return postgres.placement(spec.placement).render(resource, commonProperties.get("BINDING_SECRET_NAME"));
 
-    var volClaimTemplate = new PersistentVolumeClaim();
-    var volMetadata = createMetadata(resource, ds, labels);
-    volMetadata.setName("postgresdb");
-    volClaimTemplate.setMetadata(volMetadata);
-    var volClaimSpec = new PersistentVolumeClaimSpec();
-    volClaimSpec.setAccessModes(List.of("ReadWriteOnce"));
-    volClaimSpec.setResources(new ResourceRequirements(Map.of("storage", new Quantity("1Gi")), 
-      Map.of("storage", new Quantity("1Gi"))));
-    volClaimTemplate.setSpec(volClaimSpec);
+  }
 
-    final var metadata = createMetadata(resource, ds, labels);
+  private Map<String, String> reconcilePgBouncer(Datacenter resource, Map<String, String> commonProperties) {
+    final var desired = templates.render(resource, "pgbouncer", commonProperties, this::desiredPgBouncer);
+    if(desired.isEmpty()) {
+      // Left from when the pooler was enabled
+      final var name = ComponentDescriptor.name(resource, ConnectionPooler.PGBOUNCER);
+      applier.delete(resource, "pgbouncer", Deployment.class, name);
+      applier.delete(resource, "pgbouncer", Service.class, name);
+      applier.delete(resource, "pgbouncer", PodDisruptionBudget.class, name);
+    }
+    applier.applyAll(resource, "pgbouncer", desired);
+    return commonProperties;
+  }
 
-    var ss = new StatefulSetBuilder()
-      .withMetadata(metadata)
-      .withNewSpec()
-        .withNewSelector().withMatchLabels(labels).endSelector()
-        .withReplicas(1).withServiceName(serviceName)
-        .withNewTemplate()
-          .withNewMetadata().withLabels(labels).endMetadata()
-          .withNewSpec()
-            .addNewContainer()
-              .withName(name).withImage(ds.getImageName()+":"+ds.getVersion())
-              // .withNewSecurityContext().withReadOnlyRootFilesystem(true).endSecurityContext()
-              .addNewPort()
-                .withName("tcp").withProtocol("TCP").withContainerPort(5432)
-              .endPort()
-              .withEnv(KubernetesResourceUtil.convertMapToEnvVarList(Map.of(
-                "PGDATA", "/var/lib/postgresql/data/pgdata",
-                "POSTGRES_DB", "qiot_manufacturing"
-              )))
-              .addNewEnv()
-                .withName("POSTGRES_USER")
-                .withNewValueFrom()
-                  .withNewSecretKeyRef("PG_USER", commonProperties.get("BINDING_SECRET_NAME"), false)
-                .endValueFrom()
-              .endEnv()
-              .addNewEnv()
-                .withName("POSTGRES_PASSWORD")
-                .withNewValueFrom()
-                  .withNewSecretKeyRef("PG_PASSWORD", commonProperties.get("BINDING_SECRET_NAME"), false)
-                .endValueFrom()
-              .endEnv()
-              .withVolumeMounts(List.of(dataVolMount))
-            .endContainer()
-          .endSpec()
-        .endTemplate()
-        .withVolumeClaimTemplates(List.of(volClaimTemplate))
-      .endSpec()
-    .build();
+  List<HasMetadata> desiredPgBouncer(Datacenter resource, Map<String, String> commonProperties) {
 
-    var ss_service = new ServiceBuilder()
-      .withMetadata(metadata)
-      .withNewSpec()
-        .addNewPort()
-          .withName("tcp")
-          .withPort(5432)
-          .withNewTargetPort().withIntVal(5432).endTargetPort()
-        .endPort()
-        .withSelector(labels)
-        .withType("ClusterIP")
-      .endSpec()
-    .build();
+    final var spec = resource.getSpec();
+    if(!spec.pgBouncer.enabled) {
+      commonProperties.put("PG_URL", commonProperties.get("PG_DIRECT_URL"));
+      return List.of();
+    }
+    final var pgbouncer = ConnectionPooler.descriptor(spec.sizing, spec.pgBouncer, spec.sizingOverrides,
+      commonProperties.get("PG_SERVICE_NAME"), commonProperties.get("PG_DATABASE"));
+    commonProperties.put("PG_URL", pgbouncer.name(resource)+":5432");
+    return pgbouncer.placement(spec.placement).render(resource, commonProperties.get("BINDING_SECRET_NAME"));
 
-    client.apps().statefulSets().createOrReplace(ss);
-    client.services().createOrReplace(ss_service);
+  }
 
-    commonProperties.put("PG_SERVICE_NAME", metadata.getName());
-    commonProperties.put("PG_URL", metadata.getName()+":5432");
-    commonProperties.put("PG_DATABASE", "qiot_manufacturing");
+  private Map<String, String> reconcileInfluxDB(Datacenter resource, Map<String, String> commonProperties) {
+    final var version = resource.getSpec().influxDB.version == 2 ? INFLUXDB_2 : INFLUXDB_1;
+    final var live = liveStatefulSet(resource, ComponentDescriptor.name(resource, version));
+    applier.applyAll(resource, "influxdb", volumes.keepClaimTemplates(resource, templates.render(resource, "influxdb",
+      commonProperties, VolumeClaims.claimNames(live), this::desiredInfluxDB)));
+    // The other version's StatefulSet, Service and configuration; its volume claim stays for a manual migration
+    final var otherVersion = version == INFLUXDB_2 ? INFLUXDB_1 : INFLUXDB_2;
+    final var other = ComponentDescriptor.name(resource, otherVersion);
+    applier.delete(resource, "influxdb", StatefulSet.class, other);
+    applier.delete(resource, "influxdb", Service.class, other);
+    applier.delete(resource, "influxdb", ConfigMap.class, ComponentDescriptor.configName(resource, otherVersion));
     return commonProperties;
-
   }
 
-  private Map<String, String> reconcileInfluxDB(Datacenter resource, Map<String, String> commonProperties) {
+  List<HasMetadata> desiredInfluxDB(Datacenter resource, Map<String, String> commonProperties) {
 
     // TODO complete propertis for event-collector and registration services
     // TODO complete cert manager install for registration service
 
-    // TODO setup influxDB 2 with correct init DB script and ORGs, tokens etc created
-    // https://github.com/influxdata/helm-charts/blob/master/charts/influxdb2/templates/statefulset.yaml
-    // https://github.com/influxdata/helm-charts/blob/master/charts/influxdb2/values.yaml
-    // https://github.com/influxdata/helm-charts/tree/master/charts/influxdb2
-    // For "2" <- 2.3.0-alpine
-
-    final var ds = new Datastore("influxdb", "1.6.4");
-    final var labels = createLabels(resource, ds);
-    final var name = resource.getMetadata().getName();
-
-    var serviceName = resource.getMetadata().getName()+"-"+ds.getImageName();
-    if(serviceName.length() > 63) {
-      serviceName = serviceName.substring(0,62);
+    final var spec = resource.getSpec();
+    if(spec.influxDB.version == 2) {
+      return desiredInfluxDB2(resource, commonProperties);
     }
+    final var influxdb = ComponentDescriptor.datastore("influxdb", INFLUXDB_1, spec.sizing, spec.sizingOverrides);
+    final var name = influxdb.name(resource);
+    influxdb
+      .port("http", 8086)
+      .port("tcp", 4242)
+      .httpProbes("http", "/ping", "/ping")
+      .env("INFLUXDB_DATABASE", "influxdb")
+      .env("INFLUXDB_HOST", name)
+      .secretEnv("INFLUXDB_USERNAME", "INFLUXDB_USERNAME")
+      .secretEnv("INFLUXDB_PASSWORD", "INFLUXDB_PASSWORD");
+    final var storage = spec.storage.get("influxdb");
+    final var capacity = storage != null && storage.capacity != null ? storage.capacity : influxdb.getSizing().storage;
+    influxdb.volume("influxdb", "/var/lib/influxdb", storage, capacity);
+    var walDirectory = "/var/lib/influxdb/wal";
+    if(VolumeClaims.uses(liveStatefulSet(resource, name), "influxdb-wal", storage != null && storage.wal != null)) {
+      influxdb.volume("influxdb-wal", "/var/lib/influxdb-wal", storage != null ? storage.wal : null,
+        VolumeClaims.walCapacity(capacity));
+      walDirectory = "/var/lib/influxdb-wal/wal";
+    }
+    influxdb
+      .env("INFLUXDB_CONFIG_PATH", "/etc/influxdb/qiot/influxdb.conf")
+      .configFile("/etc/influxdb/qiot", "influxdb.conf", DatastoreTuning.influxdb(influxdb.getSizing(), walDirectory));
 
-    var dataVolMount = new VolumeMount();
-    dataVolMount.setMountPath("/var/lib/influxdb");
-    dataVolMount.setName("influxdb");
-
-    var volClaimTemplate = new PersistentVolumeClaim();
-    var volMetadata = createMetadata(resource, ds, labels);
-    volMetadata.setName("influxdb");
-    volClaimTemplate.setMetadata(volMetadata);
-    var volClaimSpec = new PersistentVolumeClaimSpec();
-    volClaimSpec.setAccessModes(List.of("ReadWriteOnce"));
-    volClaimSpec.setResources(new ResourceRequirements(Map.of("storage", new Quantity("1Gi")), 
-      Map.of("storage", new Quantity("1Gi"))));
-    volClaimTemplate.setSpec(volClaimSpec);
-
-    final var metadata = createMetadata(resource, ds, labels);
+    commonProperties.put("INFLUXDB_SERVICE_NAME", name);
+    commonProperties.put("INFLUXDB_URL", name+":8086");
+    commonProperties.put("INFLUXDB_DATABASE", "influxdb");
+    return influxdb.placement(spec.placement).render(resource, commonProperties.get("BINDING_SECRET_NAME"));
 
-    var ss = new StatefulSetBuilder()
-      .withMetadata(metadata)
-      .withNewSpec()
-        .withNewSelector().withMatchLabels(labels).endSelector()
-        .withReplicas(1).withServiceName(serviceName)
-        .withNewTemplate()
-          .withNewMetadata().withLabels(labels).endMetadata()
-          .withNewSpec()
-            .addNewContainer()
-              .withName(name).withImage(ds.getImageName()+":"+ds.getVersion())
-              .addNewPort()
-                .withName("http").withProtocol("TCP").withContainerPort(8086)
-                .withName("tcp").withProtocol("TCP").withContainerPort(4242)
-              .endPort()
-              .withEnv(KubernetesResourceUtil.convertMapToEnvVarList(Map.of(
-                "INFLUXDB_DATABASE", "influxdb",
-                "INFLUXDB_HOST", metadata.getName()
-              )))
-              .addNewEnv()
-                .withName("INFLUXDB_USERNAME")
-                .withNewValueFrom()
-                  .withNewSecretKeyRef("INFLUXDB_USERNAME", commonProperties.get("BINDING_SECRET_NAME"), false)
-                .endValueFrom()
-              .endEnv()
-              .addNewEnv()
-                .withName("INFLUXDB_PASSWORD")
-                .withNewValueFrom()
-                  .withNewSecretKeyRef("INFLUXDB_PASSWORD", commonProperties.get("BINDING_SECRET_NAME"), false)
-                .endValueFrom()
-              .endEnv()
-              .withVolumeMounts(List.of(dataVolMount))
-            .endContainer()
-          .endSpec()
-        .endTemplate()
-        .withVolumeClaimTemplates(List.of(volClaimTemplate))
-      .endSpec()
-    .build();
+  }
 
-    var ss_service = new ServiceBuilder()
-      .withMetadata(metadata)
-      .withNewSpec()
-        .addNewPort()
-          .withName("http")
-          .withPort(8086)
-          .withNewTargetPort().withIntVal(8086).endTargetPort()
-        .endPort()
-        .addNewPort()
-          .withName("tcp")
-          .withPort(4242)
-          .withNewTargetPort().withIntVal(4242).endTargetPort()
-        .endPort()
-        .withSelector(labels)
-        .withType("ClusterIP")
-      .endSpec()
-    .build();
+  /**
+   * InfluxDB 2 under its own name, since its volume differs and the volume claim
+   * template of a StatefulSet cannot be changed. The image sets up the org, bucket
+   * and token from the binding secret on an empty volume; retention and rollups
+   * are left to the influxdb-setup Job.
+   */
+  private List<HasMetadata> desiredInfluxDB2(Datacenter resource, Map<String, String> commonProperties) {
+
+    final var spec = resource.getSpec();
+    final var influxdb = ComponentDescriptor.datastore("influxdb", INFLUXDB_2, spec.sizing, spec.sizingOverrides)
+      .port("http", 8086)
+      .httpProbes("http", "/health", "/health")
+      .env("DOCKER_INFLUXDB_INIT_MODE", "setup")
+      .secretEnv("DOCKER_INFLUXDB_INIT_USERNAME", "INFLUXDB_USERNAME")
+      .secretEnv("DOCKER_INFLUXDB_INIT_PASSWORD", "INFLUXDB_PASSWORD")
+      .secretEnv("DOCKER_INFLUXDB_INIT_ORG", "INFLUXDB_ORG")
+      .secretEnv("DOCKER_INFLUXDB_INIT_BUCKET", "INFLUXDB_BUCKET")
+      .secretEnv("DOCKER_INFLUXDB_INIT_ADMIN_TOKEN", "INFLUXDB_TOKEN");
+    // InfluxDB 2 keeps its WAL under the engine path, so spec.storage.influxdb.wal does not apply
+    influxdb.volume("influxdb2", "/var/lib/influxdb2", spec.storage.get("influxdb"), influxdb.getSizing().storage);
+    influxdb
+      .env("INFLUXD_CONFIG_PATH", "/etc/influxdb2/qiot/config.yml")
+      .configFile("/etc/influxdb2/qiot", "config.yml", DatastoreTuning.influxdb2(influxdb.getSizing()));
+    final var name = influxdb.name(resource);
+
+    commonProperties.put("INFLUXDB_SERVICE_NAME", name);
+    commonProperties.put("INFLUXDB_URL", name+":8086");
+    commonProperties.put("INFLUXDB_DATABASE", commonProperties.get("INFLUXDB_BUCKET"));
+    return influxdb.placement(spec.placement).render(resource, commonProperties.get("BINDING_SECRET_NAME"));
 
-    client.apps().statefulSets().createOrReplace(ss);
-    client.services().createOrReplace(ss_service);
+  }
 
-    commonProperties.put("INFLUXDB_SERVICE_NAME", metadata.getName());
-    commonProperties.put("INFLUXDB_URL", metadata.getName()+":8086");
-    commonProperties.put("INFLUXDB_DATABASE", "influxdb");
+  private Map<String, String> reconcileInfluxDBSetup(Datacenter resource, Map<String, String> commonProperties) {
+    final var desired = templates.render(resource, "influxdb-setup", commonProperties, this::desiredInfluxDBSetup);
+    applier.applyAll(resource, "influxdb-setup", desired);
+    deleteOtherJobs(resource, "influxdb-setup", InfluxDBSetup.SETUP, desired);
     return commonProperties;
-
   }
 
-  private Map<String, String> reconcileMongoDatastore(Datacenter resource, Map<String, String> commonProperties) {
-
-    final var ds = new Datastore("mongo", "4.4.3");
-    final var labels = createLabels(resource, ds);
-    final var name = resource.getMetadata().getName();
-
-    var serviceName = resource.getMetadata().getName()+"-"+ds.getImageName();
-    if(serviceName.length() > 63) {
-      serviceName = serviceName.substring(0,62);
+  /** Jobs of an earlier script, or left from a mode that is off now */
+  private void deleteOtherJobs(Datacenter resource, String step, QiotResource setup, List<HasMetadata> desired) {
+    final var uid = resource.getMetadata().getUid();
+    final var component = setup.getImageName();
+    for(var job : owned.list(Job.class, j -> component.equals(j.getMetadata().getLabels().get("app.kubernetes.io/component"))
+        && j.getMetadata().getOwnerReferences().stream().anyMatch(o -> uid.equals(o.getUid())))) {
+      if(desired.stream().noneMatch(d -> d.getMetadata().getName().equals(job.getMetadata().getName()))) {
+        applier.delete(resource, step, Job.class, job.getMetadata().getName());
+      }
     }
+  }
 
-    var dataVolMount = new VolumeMount();
-    dataVolMount.setMountPath("/data/db");
-    dataVolMount.setName("mongodb");
+  List<HasMetadata> desiredInfluxDBSetup(Datacenter resource, Map<String, String> commonProperties) {
+    final var influxDB = resource.getSpec().influxDB;
+    if(influxDB.version != 2) {
+      return List.of();
+    }
+    return List.of(InfluxDBSetup.job(resource, influxDB, commonProperties.get("INFLUXDB_URL"),
+      commonProperties.get("BINDING_SECRET_NAME")));
+  }
 
-    var volClaimTemplate = new PersistentVolumeClaim();
-    var volMetadata = createMetadata(resource, ds, labels);
-    volMetadata.setName("mongodb");
-    volClaimTemplate.setMetadata(volMetadata);
-    var volClaimSpec = new PersistentVolumeClaimSpec();
-    volClaimSpec.setAccessModes(List.of("ReadWriteOnce"));
-    volClaimSpec.setResources(new ResourceRequirements(Map.of("storage", new Quantity("1Gi")), 
-      Map.of("storage", new Quantity("1Gi"))));
-    volClaimTemplate.setSpec(volClaimSpec);
+  private Map<String, String> reconcileMongoDatastore(Datacenter resource, Map<String, String> commonProperties) {
+    final var desired = templates.render(resource, "mongo", commonProperties, this::desiredMongoDatastore);
+    // A Service cannot change between headless and not, so it is deleted first when the mode changed
+    for(var d : desired) {
+      if(d instanceof Service) {
+        final var headless = "None".equals(((Service) d).getSpec().getClusterIP());
+        final var live = owned.get(Service.class, d.getMetadata().getNamespace(), d.getMetadata().getName());
+        if(live.isPresent() && headless != "None".equals(live.get().getSpec().getClusterIP())) {
+          applier.delete(resource, "mongo", Service.class, d.getMetadata().getName());
+        }
+      }
+    }
+    applier.applyAll(resource, "mongo", volumes.keepClaimTemplates(resource, desired));
+    return commonProperties;
+  }
 
-    final var metadata = createMetadata(resource, ds, labels);
+  List<HasMetadata> desiredMongoDatastore(Datacenter resource, Map<String, String> commonProperties) {
+
+    final var spec = resource.getSpec();
+    final var mongo = ComponentDescriptor.datastore("mongo", new Datastore("mongo", "4.4.3"), spec.sizing,
+        spec.sizingOverrides)
+      .port("tcp", 27017)
+      .commandProbes("mongo", "--quiet", "--eval", "db.adminCommand('ping').ok")
+      .env("MONGODB_PORT_NUMBER", "27017")
+      .env("MONGO_INITDB_DATABASE", "qiot_manufacturing")
+      .secretEnv("MONGO_INITDB_ROOT_USERNAME", "MONGODB_ROOT_USER")
+      .secretEnv("MONGO_INITDB_ROOT_PASSWORD", "MONGODB_ROOT_PASSWORD");
+    mongo
+      .volume("mongodb", "/data/db", spec.storage.get("mongo"), mongo.getSizing().storage)
+      .configFile("/etc/mongo/qiot", "mongod.conf", DatastoreTuning.mongo(mongo.getSizing()));
+    final var name = mongo.name(resource);
+
+    commonProperties.put("MONGODB_SERVICE_NAME", name);
+    if(MongoReplicaSet.isEnabled(spec.mongoDB)) {
+      mongo
+        .replicas(spec.mongoDB.members)
+        .headless()
+        .command(MongoReplicaSet.command(spec.mongoDB, "/etc/mongo/qiot/mongod.conf"))
+        .secretEnv("MONGO_KEYFILE", "MONGODB_KEYFILE");
+      commonProperties.put("MONGODB_URL", MongoReplicaSet.url(commonProperties.get("MONGODB_ROOT_USER"),
+        commonProperties.get("MONGODB_ROOT_PASSWORD"),
+        MongoReplicaSet.hosts(name, resource.getMetadata().getNamespace(), spec.mongoDB.members), spec.mongoDB));
+    }
+    else {
+      mongo.args("mongod", "--config", "/etc/mongo/qiot/mongod.conf");
+      commonProperties.put("MONGODB_URL",
+        "mongodb://"+commonProperties.get("MONGODB_ROOT_USER")+":"+commonProperties.get("MONGODB_ROOT_PASSWORD")+"@"+name+":27017");
+    }
+    commonProperties.put("MONGODB_DATABASE", "admin");
+    return mongo.placement(spec.placement).render(resource, commonProperties.get("BINDING_SECRET_NAME"));
 
-    var ss = new StatefulSetBuilder()
-      .withMetadata(metadata)
-      .withNewSpec()
-        .withNewSelector().withMatchLabels(labels).endSelector()
-        .withReplicas(1).withServiceName(serviceName)
-        .withNewTemplate()
-          .withNewMetadata().withLabels(labels).endMetadata()
-          .withNewSpec()
-            .addNewContainer()
-              .withName(name).withImage(ds.getImageName()+":"+ds.getVersion())
-              .addNewPort()
-                .withName("tcp").withProtocol("TCP").withContainerPort(27017)
-              .endPort()
-              .withEnv(KubernetesResourceUtil.convertMapToEnvVarList(Map.of(
-                "MONGODB_PORT_NUMBER", "27017",
-                "MONGO_INITDB_DATABASE", "qiot_manufacturing"
-              )))
-              .addNewEnv()
-                .withName("MONGO_INITDB_ROOT_USERNAME")
-                .withNewValueFrom()
-                  .withNewSecretKeyRef("MONGODB_ROOT_USER", commonProperties.get("BINDING_SECRET_NAME"), false)
-                .endValueFrom()
-              .endEnv()
-              .addNewEnv()
-                .withName("MONGO_INITDB_ROOT_PASSWORD")
-                .withNewValueFrom()
-                  .withNewSecretKeyRef("MONGODB_ROOT_PASSWORD", commonProperties.get("BINDING_SECRET_NAME"), false)
-                .endValueFrom()
-              .endEnv()
-              .withVolumeMounts(List.of(dataVolMount))
-            .endContainer()
-          .endSpec()
-        .endTemplate()
-        .withVolumeClaimTemplates(List.of(volClaimTemplate))
-      .endSpec()
-    .build();
+  }
 
-    var ss_service = new ServiceBuilder()
-      .withMetadata(metadata)
-      .withNewSpec()
-        .addNewPort()
-          .withName("tcp")
-          .withPort(27017)
-          .withNewTargetPort().withIntVal(27017).endTargetPort()
-        .endPort()
-        .withSelector(labels)
-        .withType("ClusterIP")
-      .endSpec()
-    .build();
+  private Map<String, String> reconcileMongoSetup(Datacenter resource, Map<String, String> commonProperties) {
+    final var desired = templates.render(resource, "mongo-setup", commonProperties, this::desiredMongoSetup);
+    applier.applyAll(resource, "mongo-setup", desired);
+    deleteOtherJobs(resource, "mongo-setup", MongoReplicaSet.SETUP, desired);
+    return commonProperties;
+  }
 
-    client.apps().statefulSets().createOrReplace(ss);
-    client.services().createOrReplace(ss_service);
+  List<HasMetadata> desiredMongoSetup(Datacenter resource, Map<String, String> commonProperties) {
+    final var mongoDB = resource.getSpec().mongoDB;
+    if(!MongoReplicaSet.isEnabled(mongoDB)) {
+      return List.of();
+    }
+    final var hosts = MongoReplicaSet.hosts(commonProperties.get("MONGODB_SERVICE_NAME"),
+      resource.getMetadata().getNamespace(), mongoDB.members);
+    return List.of(MongoReplicaSet.job(resource, mongoDB, hosts, commonProperties.get("BINDING_SECRET_NAME")));
+  }
 
-    commonProperties.put("MONGODB_SERVICE_NAME", metadata.getName());
-    commonProperties.put("MONGODB_URL", 
-      "mongodb://"+commonProperties.get("MONGODB_ROOT_USER")+":"+commonProperties.get("MONGODB_ROOT_PASSWORD")+"@"+metadata.getName()+":27017");
-    Log.info("Mongo connectivity URL: "+commonProperties.get("MONGODB_URL"));
-    commonProperties.put("MONGODB_DATABASE", "admin");
-    
+  private Map<String, String> reconcileKafkaTopics(Datacenter resource, Map<String, String> commonProperties) {
+    // Not cached in the templates, the partition count depends on the live topic
+    applier.applyAll(resource, "kafka-topics", desiredKafkaTopics(resource, commonProperties));
     return commonProperties;
-
   }
 
-  private Map<String, String> reconcileRegistrationService(Datacenter resource, Map<String, String> commonProperties) {
+  List<HasMetadata> desiredKafkaTopics(Datacenter resource, Map<String, String> commonProperties) {
 
-    final var labels = createLabels(resource, resource.getSpec().registrationService);
-    final var name = resource.getMetadata().getName();
-    final var metadata = createMetadata(resource, resource.getSpec().registrationService, labels);
-    var rs_deployment = new DeploymentBuilder()
-      .withMetadata(metadata)
-      .withNewSpec()
-        .withNewSelector().withMatchLabels(labels).endSelector()
-        .withNewTemplate()
-          .withNewMetadata().withLabels(labels).endMetadata()
-          .withNewSpec()
-            .addNewContainer()
-              .withName(name).withImage(resource.getSpec().getRegistrationServiceImageRef())
-              .addNewPort()
-                .withName("http").withProtocol("TCP").withContainerPort(8080)
-              .endPort()
-              .withEnv(KubernetesResourceUtil.convertMapToEnvVarList(Map.of(
-                "LOG_LEVEL", resource.getSpec().registrationService.getLogLevel(),
-                "QIOT_LOG_LEVEL", resource.getSpec().registrationService.getLogLevel()
-              )))
-            .endContainer()
-          .endSpec()
-        .endTemplate()
-      .endSpec()
-    .build();
+    final var spec = resource.getSpec();
+    commonProperties.put("KAFKA_TOPIC_TELEMETRY", spec.telemetryTopic);
+    final var cluster = KafkaTopics.cluster(spec.kafkaBootstrapURL, spec.kafkaCluster);
+    if(!strimziTopics || cluster == null) {
+      // Not a Strimzi cluster, the topic is left to the broker's auto-creation
+      return List.of();
+    }
+    final var namespace = topicNamespace(resource);
+    final var live = liveTopic(namespace, spec.telemetryTopic);
+    if(live.isPresent() && !KafkaTopics.isOwnedBy(live.get(), resource.getMetadata().getName(),
+        resource.getMetadata().getNamespace()) && owned.hasOwner(live.get())) {
+      // Shared with another Datacenter on the same Kafka cluster, which manages it
+      return List.of();
+    }
+    // A topic's partition count can only grow
+    final var livePartitions = live.map(t -> t.getSpec() != null ? t.getSpec().partitions : 0).orElse(0);
+    return List.of(KafkaTopics.topic(resource, cluster, namespace,
+      Sizing.topic(spec.sizing, spec.telemetryTopic, livePartitions, spec.kafkaBrokers)));
 
-    var rs_service = new ServiceBuilder()
-      .withMetadata(metadata)
-      .withNewSpec()
-        .addNewPort()
-          .withName("http")
-          .withPort(8080)
-          .withNewTargetPort().withIntVal(8080).endTargetPort()
-        .endPort()
-        .withSelector(labels)
-        .withType("ClusterIP")
-      .endSpec()
-    .build();
+  }
 
-    client.apps().deployments().createOrReplace(rs_deployment);
-    client.services().createOrReplace(rs_service);
+  private String topicNamespace(Datacenter resource) {
+    return KafkaTopics.namespace(resource.getSpec().kafkaBootstrapURL, resource.getSpec().kafkaNamespace,
+      resource.getMetadata().getNamespace());
+  }
 
-    commonProperties.put("REGISTRATION_SERVICE_URL", metadata.getName()+":5202");
+  private Optional<KafkaTopic> liveTopic(String namespace, String topic) {
+    if(owned == null) {
+      return Optional.empty();
+    }
+    return owned.get(KafkaTopic.class, namespace, topic);
+  }
 
+  private Map<String, String> reconcileRegistrationService(Datacenter resource, Map<String, String> commonProperties) {
+    applier.applyAll(resource, "registration", templates.render(resource, "registration", commonProperties, this::desiredRegistrationService));
     return commonProperties;
-
   }
 
-  private Map<String, String> reconcilePlantManagerService(Datacenter resource,Map<String, String> commonProperties) {
+  List<HasMetadata> desiredRegistrationService(Datacenter resource, Map<String, String> commonProperties) {
 
-    final var labels = createLabels(resource, resource.getSpec().plantManagerService);
-    final var name = resource.getMetadata().getName();
-    var rs_deployment = new DeploymentBuilder()
-      .withMetadata(createMetadata(resource, resource.getSpec().plantManagerService, labels))
-      .withNewSpec()
-        .withNewSelector().withMatchLabels(labels).endSelector()
-        .withNewTemplate()
-          .withNewMetadata().withLabels(labels).endMetadata()
-          .withNewSpec()
-            .addNewContainer()
-              .withName(name).withImage(resource.getSpec().getPlantManagerImageRef())
-              .addNewPort()
-                .withName("http").withProtocol("TCP").withContainerPort(8080)
-              .endPort()
-              .withEnv(KubernetesResourceUtil.convertMapToEnvVarList(Map.of(
-                "DB_URL", commonProperties.get("PG_URL"),
-                "LOG_LEVEL", resource.getSpec().plantManagerService.getLogLevel(),
-                "QIOT_LOG_LEVEL", resource.getSpec().plantManagerService.getLogLevel(),
-                "KAFKA_BOOTSTRAP_URL", resource.getSpec().kafkaBootstrapURL,
-                "REGISTRATION_SERVICE_URL", commonProperties.get("REGISTRATION_SERVICE_URL")
-              )))
-              .addNewEnv()
-                .withName("QUARKUS_DATASOURCE_USERNAME")
-                .withNewValueFrom()
-                  .withNewSecretKeyRef("PG_USER", commonProperties.get("BINDING_SECRET_NAME"), false)
-                .endValueFrom()
-              .endEnv()
-              .addNewEnv()
-                .withName("QUARKUS_DATASOURCE_PASSWORD")
-                .withNewValueFrom()
-                  .withNewSecretKeyRef("PG_PASSWORD", commonProperties.get("BINDING_SECRET_NAME"), false)
-                .endValueFrom()
-              .endEnv()
-            .endContainer()
-          .endSpec()
-        .endTemplate()
-      .endSpec()
-    .build();
+    final var spec = resource.getSpec();
+    final var registration = ComponentDescriptor.service("registration", spec.registrationService,
+        spec.getRegistrationServiceImageRef(), spec.sizing, spec.sizingOverrides)
+      .port("http", 8080)
+      .httpProbes("http", "/q/health/ready", "/q/health/live")
+      .env("LOG_LEVEL", spec.registrationService.getLogLevel())
+      .env("QIOT_LOG_LEVEL", spec.registrationService.getLogLevel());
 
-    var rs_service = new ServiceBuilder()
-      .withMetadata(createMetadata(resource, resource.getSpec().plantManagerService, labels))
-      .withNewSpec()
-        .addNewPort()
-          .withName("http")
-          .withPort(8080)
-          .withNewTargetPort().withIntVal(8080).endTargetPort()
-        .endPort()
-        .withSelector(labels)
-        .withType("ClusterIP")
-      .endSpec()
-    .build();
+    commonProperties.put("REGISTRATION_SERVICE_URL", registration.name(resource)+":5202");
+    return registration.placement(spec.placement).render(resource, commonProperties.get("BINDING_SECRET_NAME"));
 
-    client.apps().deployments().createOrReplace(rs_deployment);
-    client.services().createOrReplace(rs_service);
+  }
 
+  private Map<String, String> reconcilePlantManagerService(Datacenter resource, Map<String, String> commonProperties) {
+    applier.applyAll(resource, "plant-manager", templates.render(resource, "plant-manager", commonProperties, this::desiredPlantManagerService));
     return commonProperties;
-
   }
 
-  private Map<String, String> reconcileGlobalProductLineService(Datacenter resource, Map<String, String> commonProperties) {
-
-    final var labels = createLabels(resource, resource.getSpec().globalProductLineService);
-    final var name = resource.getMetadata().getName();
-    var rs_deployment = new DeploymentBuilder()
-      .withMetadata(createMetadata(resource, resource.getSpec().globalProductLineService, labels))
-      .withNewSpec()
-        .withNewSelector().withMatchLabels(labels).endSelector()
-        .withNewTemplate()
-          .withNewMetadata().withLabels(labels).endMetadata()
-          .withNewSpec()
-            .addNewContainer()
-              .withName(name).withImage(resource.getSpec().getGlobalProductLineServiceImageRef())
-              .addNewPort()
-                .withName("http").withProtocol("TCP").withContainerPort(8080)
-              .endPort()
-              .withEnv(KubernetesResourceUtil.convertMapToEnvVarList(Map.of(
-                "LOG_LEVEL", resource.getSpec().globalProductLineService.getLogLevel(),
-                "QIOT_LOG_LEVEL", resource.getSpec().globalProductLineService.getLogLevel(),
-                "KAFKA_BOOTSTRAP_URL", resource.getSpec().kafkaBootstrapURL,
-                "GENERATE_RANDOM_PRODUCTLINE", "true",
-                "MONGODB_URL", commonProperties.get("MONGODB_URL"),
-                "MONGODB_DATABASE", "admin"
-              )))
-              .addNewEnv()
-                .withName("MONGODB_USER")
-                .withNewValueFrom()
-                  .withNewSecretKeyRef("MONGODB_ROOT_USER", commonProperties.get("BINDING_SECRET_NAME"), false)
-                .endValueFrom()
-              .endEnv()
-              .addNewEnv()
-                .withName("MONGODB_PASSWORD")
-                .withNewValueFrom()
-                  .withNewSecretKeyRef("MONGODB_ROOT_PASSWORD", commonProperties.get("BINDING_SECRET_NAME"), false)
-                .endValueFrom()
-              .endEnv()
-            .endContainer()
-          .endSpec()
-        .endTemplate()
-      .endSpec()
-    .build();
-
-    var rs_service = new ServiceBuilder()
-      .withMetadata(createMetadata(resource, resource.getSpec().globalProductLineService, labels))
-      .withNewSpec()
-        .addNewPort()
-          .withName("http")
-          .withPort(8080)
-          .withNewTargetPort().withIntVal(8080).endTargetPort()
-        .endPort()
-        .withSelector(labels)
-        .withType("ClusterIP")
-      .endSpec()
-    .build();
+  List<HasMetadata> desiredPlantManagerService(Datacenter resource, Map<String, String> commonProperties) {
+
+    final var spec = resource.getSpec();
+    final var plantManager = ComponentDescriptor.service("plant-manager", spec.plantManagerService,
+        spec.getPlantManagerImageRef(), spec.sizing, spec.sizingOverrides)
+      .port("http", 8080)
+      .httpProbes("http", "/q/health/ready", "/q/health/live")
+      .env("DB_URL", commonProperties.get("PG_URL"))
+      .env("LOG_LEVEL", spec.plantManagerService.getLogLevel())
+      .env("QIOT_LOG_LEVEL", spec.plantManagerService.getLogLevel())
+      .env("KAFKA_BOOTSTRAP_URL", spec.kafkaBootstrapURL)
+      .env("REGISTRATION_SERVICE_URL", commonProperties.get("REGISTRATION_SERVICE_URL"))
+      .secretEnv("QUARKUS_DATASOURCE_USERNAME", "PG_USER")
+      .secretEnv("QUARKUS_DATASOURCE_PASSWORD", "PG_PASSWORD");
+    if(spec.pgBouncer.enabled) {
+      plantManager.env("QUARKUS_DATASOURCE_JDBC_URL",
+        ConnectionPooler.jdbcURL(commonProperties.get("PG_URL"), commonProperties.get("PG_DATABASE")));
+    }
+    return plantManager.placement(spec.placement).render(resource, commonProperties.get("BINDING_SECRET_NAME"));
 
-    client.apps().deployments().createOrReplace(rs_deployment);
-    client.services().createOrReplace(rs_service);
+  }
 
+  private Map<String, String> reconcileGlobalProductLineService(Datacenter resource, Map<String, String> commonProperties) {
+    applier.applyAll(resource, "global-product-line", templates.render(resource, "global-product-line", commonProperties, this::desiredGlobalProductLineService));
     return commonProperties;
-
   }
 
-  private Map<String, String> reconcileEventCollectorService(Datacenter resource, Map<String, String> commonProperties) {
+  List<HasMetadata> desiredGlobalProductLineService(Datacenter resource, Map<String, String> commonProperties) {
+
+    final var spec = resource.getSpec();
+    return ComponentDescriptor.service("global-product-line", spec.globalProductLineService,
+        spec.getGlobalProductLineServiceImageRef(), spec.sizing, spec.sizingOverrides)
+      .port("http", 8080)
+      .httpProbes("http", "/q/health/ready", "/q/health/live")
+      .env("LOG_LEVEL", spec.globalProductLineService.getLogLevel())
+      .env("QIOT_LOG_LEVEL", spec.globalProductLineService.getLogLevel())
+      .env("KAFKA_BOOTSTRAP_URL", spec.kafkaBootstrapURL)
+      .env("GENERATE_RANDOM_PRODUCTLINE", "true")
+      .env("MONGODB_URL", commonProperties.get("MONGODB_URL"))
+      .env("MONGODB_DATABASE", "admin")
+      .secretEnv("MONGODB_USER", "MONGODB_ROOT_USER")
+      .secretEnv("MONGODB_PASSWORD", "MONGODB_ROOT_PASSWORD")
+      .placement(spec.placement)
+      .render(resource, commonProperties.get("BINDING_SECRET_NAME"));
 
-    final var labels = createLabels(resource, resource.getSpec().eventCollectorService);
-    final var name = resource.getMetadata().getName();
-    var rs_deployment = new DeploymentBuilder()
-      .withMetadata(createMetadata(resource, resource.getSpec().eventCollectorService, labels))
-      .withNewSpec()
-        .withNewSelector().withMatchLabels(labels).endSelector()
-        .withNewTemplate()
-          .withNewMetadata().withLabels(labels).endMetadata()
-          .withNewSpec()
-            .addNewContainer()
-              .withName(name).withImage(resource.getSpec().getEventCollectorServiceImageRef())
-              .addNewPort()
-                .withName("http").withProtocol("TCP").withContainerPort(8080)
-              .endPort()
-              .withEnv(KubernetesResourceUtil.convertMapToEnvVarList(Map.of(
-                "LOG_LEVEL", resource.getSpec().eventCollectorService.getLogLevel(),
-                "QIOT_LOG_LEVEL", resource.getSpec().eventCollectorService.getLogLevel()
-              )))
-            .endContainer()
-          .endSpec()
-        .endTemplate()
-      .endSpec()
-    .build();
-
-    var rs_service = new ServiceBuilder()
-      .withMetadata(createMetadata(resource, resource.getSpec().eventCollectorService, labels))
-      .withNewSpec()
-        .addNewPort()
-          .withName("http")
-          .withPort(8080)
-          .withNewTargetPort().withIntVal(8080).endTargetPort()
-        .endPort()
-        .withSelector(labels)
-        .withType("ClusterIP")
-      .endSpec()
-    .build();
-
-    client.apps().deployments().createOrReplace(rs_deployment);
-    client.services().createOrReplace(rs_service);
+  }
 
+  private Map<String, String> reconcileEventCollectorService(Datacenter resource, Map<String, String> commonProperties) {
+    final var spec = resource.getSpec();
+    final var lagAutoscaling = spec.eventCollectorService.lagAutoscaling;
+    final var lagScaling = lagScaler.isEnabled(lagAutoscaling);
+    final var desired = templates.render(resource, "event-collector", commonProperties, "lag-scaling="+lagScaling,
+      this::desiredEventCollectorService);
+    applier.applyAll(resource, "event-collector", desired);
+
+    if(!lagScaling) {
+      lagScaler.forget(resource.getMetadata().getUid());
+      return commonProperties;
+    }
+    // Replicas follow the consumer-group lag; a CPU autoscaler left from an earlier generation would fight it
+    final var name = desired.get(0).getMetadata().getName();
+    final var namespace = resource.getMetadata().getNamespace();
+    applier.delete(resource, "event-collector", HorizontalPodAutoscaler.class, name);
+    final var sizing = Sizing.of(spec.sizing, "event-collector", spec.sizingOverrides);
+    final var topic = lagAutoscaling.topic.isEmpty() ? commonProperties.get("KAFKA_TOPIC_TELEMETRY") : lagAutoscaling.topic;
+    lagScaler.track(resource, "event-collector", name, spec.kafkaBootstrapURL, topic, lagAutoscaling, sizing.replicas,
+      sizing.maxReplicas, () -> owned.get(Deployment.class, namespace, name)
+        .map(d -> d.getSpec().getReplicas() != null ? d.getSpec().getReplicas() : 1)
+        .orElse(-1));
     return commonProperties;
-
   }
 
+  List<HasMetadata> desiredEventCollectorService(Datacenter resource, Map<String, String> commonProperties) {
+
+    final var spec = resource.getSpec();
+    final var eventCollector = ComponentDescriptor.service("event-collector", spec.eventCollectorService,
+        spec.getEventCollectorServiceImageRef(), spec.sizing, spec.sizingOverrides)
+      .port("http", 8080)
+      .httpProbes("http", "/q/health/ready", "/q/health/live")
+      .env("LOG_LEVEL", spec.eventCollectorService.getLogLevel())
+      .env("QIOT_LOG_LEVEL", spec.eventCollectorService.getLogLevel())
+      .env("KAFKA_BOOTSTRAP_URL", spec.kafkaBootstrapURL)
+      .env("KAFKA_TOPIC_TELEMETRY", commonProperties.get("KAFKA_TOPIC_TELEMETRY"));
+    if(spec.influxDB.version == 2) {
+      eventCollector
+        .env("INFLUXDB_URL", "http://"+commonProperties.get("INFLUXDB_URL"))
+        .secretEnv("INFLUXDB_ORG", "INFLUXDB_ORG")
+        .secretEnv("INFLUXDB_BUCKET", "INFLUXDB_BUCKET")
+        .secretEnv("INFLUXDB_TOKEN", "INFLUXDB_TOKEN");
+    }
+    if(lagScaler.isEnabled(spec.eventCollectorService.lagAutoscaling)) {
+      eventCollector.withoutAutoscaler();
+    }
+    return eventCollector.placement(spec.placement).render(resource, commonProperties.get("BINDING_SECRET_NAME"));
 
+  }
+
+  /** The live StatefulSet of a datastore, from the cache */
+  private Optional<StatefulSet> liveStatefulSet(Datacenter resource, String name) {
+    if(owned == null) {
+      return Optional.empty();
+    }
+    return owned.get(StatefulSet.class, resource.getMetadata().getNamespace(), name);
+  }
 }
 
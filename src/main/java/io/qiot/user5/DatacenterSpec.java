@@ -1,5 +1,8 @@
 package io.qiot.user5;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import com.fasterxml.jackson.annotation.JsonPropertyDescription;
 
 public class DatacenterSpec {
@@ -12,9 +15,39 @@ public class DatacenterSpec {
     @JsonPropertyDescription("Relative sizing for the deployments from 1 to 5 (largest quotas)")
     public int sizing = 1;
 
+    @JsonPropertyDescription("Per-component replacements for values of the sizing profile, keyed by component: postgres, pgbouncer, influxdb, mongo, registration, plant-manager, global-product-line or event-collector")
+    public Map<String, SizingOverride> sizingOverrides = new HashMap<>();
+
+    @JsonPropertyDescription("Volumes of the datastores, keyed by component: postgres, influxdb or mongo")
+    public Map<String, DatastoreStorage> storage = new HashMap<>();
+
+    @JsonPropertyDescription("Where the pods of the datastores and services are scheduled")
+    public Placement placement = new Placement();
+
+    @JsonPropertyDescription("Connection pooler in front of PostgreSQL")
+    public PgBouncer pgBouncer = new PgBouncer();
+
     @JsonPropertyDescription("Endpoint for Kafka.")
     public String kafkaBootstrapURL = "";
 
+    @JsonPropertyDescription("Strimzi Kafka cluster the topics are created in. Defaults to the cluster of the kafkaBootstrapURL service, e.g. my-cluster for my-cluster-kafka-bootstrap.kafka.svc:9092.")
+    public String kafkaCluster = "";
+
+    @JsonPropertyDescription("Namespace of the Strimzi Kafka cluster, where the KafkaTopics are created. Defaults to the namespace of the kafkaBootstrapURL service.")
+    public String kafkaNamespace = "";
+
+    @JsonPropertyDescription("Brokers in the Kafka cluster. The replication factor of the topics is capped at it, e.g. to 1 for kafka-persistent-single.yaml.")
+    public int kafkaBrokers = 1;
+
+    @JsonPropertyDescription("Kafka topic the event collector consumes the telemetry from, under the name the devices publish to. Passed to the event collector as KAFKA_TOPIC_TELEMETRY.")
+    public String telemetryTopic = "telemetry";
+
+    @JsonPropertyDescription("InfluxDB version and, for InfluxDB 2, retention and downsampling of the telemetry")
+    public InfluxDB influxDB = new InfluxDB();
+
+    @JsonPropertyDescription("MongoDB standalone or replica set")
+    public MongoDB mongoDB = new MongoDB();
+
     @JsonPropertyDescription("Specifications for Registration Service")
     public RegistrationService registrationService = new RegistrationService();
 
@@ -2,11 +2,21 @@ package io.qiot.user5;
 
 public class Datastore implements QiotResource {
  
-    String imageName, version;
+    String imageName, version, image;
 
     public Datastore(String _imageName, String _version) {
+        this(_imageName, _version, _imageName);
+    }
+
+    /** @param _image image repository, when it differs from the name used for the objects */
+    public Datastore(String _imageName, String _version, String _image) {
         imageName = _imageName;
         version = _version;
+        image = _image;
+    }
+
+    public String getImage() {
+        return image;
     }
 
     public String getImageName() {
@@ -0,0 +1,9 @@
+package io.qiot.user5;
+
+import com.fasterxml.jackson.annotation.JsonPropertyDescription;
+
+public class DatastoreStorage extends DatastoreVolume {
+
+    @JsonPropertyDescription("A separate volume for the write-ahead log of PostgreSQL or InfluxDB 1.x, e.g. on a faster storage class. Its capacity defaults to a quarter of the data volume. Only applies when the datastore is created.")
+    public DatastoreVolume wal;
+}
@@ -0,0 +1,113 @@
+package io.qiot.user5;
+
+import java.util.Locale;
+
+import io.fabric8.kubernetes.api.model.Quantity;
+
+/**
+ * Configuration files for the datastores, derived from the memory and CPU
+ * limits of their sizing so that caches fit the container instead of the node
+ * or a laptop. They are mounted from a ConfigMap; see
+ * {@link ComponentDescriptor#configFile}.
+ */
+public class DatastoreTuning {
+
+  static final int PG_MAX_CONNECTIONS = 100;
+
+  private static final long MB = 1024 * 1024;
+
+  /**
+   * The PostgreSQL settings, on top of the postgresql.conf initdb wrote into
+   * the data directory.
+   */
+  static String postgres(Sizing sizing, String dataDirectory) {
+    final var memory = bytes(sizing.memoryLimit);
+    final var cpus = cpus(sizing.cpuLimit);
+    return new StringBuilder()
+      .append("include_if_exists = '").append(dataDirectory).append("/postgresql.conf'\n")
+      // With config_file outside the data directory these default to its directory
+      .append("hba_file = '").append(dataDirectory).append("/pg_hba.conf'\n")
+      .append("ident_file = '").append(dataDirectory).append("/pg_ident.conf'\n")
+      .append("listen_addresses = '*'\n")
+      .append("max_connections = ").append(PG_MAX_CONNECTIONS).append('\n')
+      .append("shared_buffers = ").append(mb(memory / 4)).append('\n')
+      .append("effective_cache_size = ").append(mb(memory * 3 / 4)).append('\n')
+      // A quarter of the memory for sorts and hashes, spread over the connections
+      .append("work_mem = ").append(mb(Math.max(4 * MB, memory / 4 / PG_MAX_CONNECTIONS))).append('\n')
+      .append("maintenance_work_mem = ").append(mb(Math.min(2048 * MB, Math.max(64 * MB, memory / 16)))).append('\n')
+      .append("wal_buffers = 16MB\n")
+      .append("checkpoint_completion_target = 0.9\n")
+      .append("random_page_cost = 1.1\n")
+      .append("effective_io_concurrency = 200\n")
+      .append("max_worker_processes = ").append(Math.max(8, cpus)).append('\n')
+      .append("max_parallel_workers = ").append(cpus).append('\n')
+      .append("max_parallel_workers_per_gather = ").append(Math.max(1, cpus / 2)).append('\n')
+      // The pod's /dev/shm is 64MB, too small for the shared memory of parallel queries
+      .append("dynamic_shared_memory_type = mmap\n")
+      .toString();
+  }
+
+  /** mongod.conf with a WiredTiger cache sized like mongod would for a host with the container's memory */
+  static String mongo(Sizing sizing) {
+    final var memory = bytes(sizing.memoryLimit);
+    final var cacheGB = Math.max(0.25, (memory / (double) (1024 * MB) - 1) / 2);
+    return new StringBuilder()
+      .append("net:\n")
+      .append("  bindIpAll: true\n")
+      .append("storage:\n")
+      .append("  wiredTiger:\n")
+      .append("    engineConfig:\n")
+      .append("      cacheSizeGB: ").append(String.format(Locale.ROOT, "%.2f", cacheGB)).append('\n')
+      .toString();
+  }
+
+  /** influxdb.conf for InfluxDB 1.x, with the TSI index so that series are not all held in memory */
+  static String influxdb(Sizing sizing, String walDirectory) {
+    final var memory = bytes(sizing.memoryLimit);
+    return new StringBuilder()
+      .append("reporting-disabled = true\n")
+      .append("[meta]\n")
+      .append("  dir = \"/var/lib/influxdb/meta\"\n")
+      .append("[data]\n")
+      .append("  dir = \"/var/lib/influxdb/data\"\n")
+      .append("  wal-dir = \"").append(walDirectory).append("\"\n")
+      .append("  index-version = \"tsi1\"\n")
+      .append("  cache-max-memory-size = ").append(memory / 4).append('\n')
+      .append("  cache-snapshot-memory-size = ").append(Math.max(25 * MB, memory / 32)).append('\n')
+      .append("  max-concurrent-compactions = ").append(cpus(sizing.cpuLimit)).append('\n')
+      .append("  wal-fsync-delay = \"100ms\"\n")
+      .append("[coordinator]\n")
+      .append("  max-concurrent-queries = ").append(Math.max(4, cpus(sizing.cpuLimit) * 4)).append('\n')
+      .toString();
+  }
+
+  /** config.yml for InfluxDB 2 */
+  static String influxdb2(Sizing sizing) {
+    final var memory = bytes(sizing.memoryLimit);
+    final var cpus = cpus(sizing.cpuLimit);
+    return new StringBuilder()
+      .append("reporting-disabled: true\n")
+      .append("storage-cache-max-memory-size: ").append(memory / 4).append('\n')
+      .append("storage-cache-snapshot-memory-size: ").append(Math.max(25 * MB, memory / 32)).append('\n')
+      .append("storage-max-concurrent-compactions: ").append(cpus).append('\n')
+      .append("storage-wal-fsync-delay: 100ms\n")
+      .append("query-concurrency: ").append(Math.max(4, cpus * 4)).append('\n')
+      .append("query-queue-size: ").append(Math.max(4, cpus * 4)).append('\n')
+      // Queries together get at most a quarter of the memory
+      .append("query-memory-bytes: ").append(memory / 4).append('\n')
+      .toString();
+  }
+
+  private static long bytes(String quantity) {
+    return Quantity.getAmountInBytes(new Quantity(quantity)).longValue();
+  }
+
+  /** Whole CPUs of the limit, at least one */
+  private static int cpus(String quantity) {
+    return Math.max(1, Quantity.getAmountInBytes(new Quantity(quantity)).intValue());
+  }
+
+  private static String mb(long bytes) {
+    return (bytes / MB)+"MB";
+  }
+}
@@ -0,0 +1,15 @@
+package io.qiot.user5;
+
+import com.fasterxml.jackson.annotation.JsonPropertyDescription;
+
+public class DatastoreVolume {
+
+    @JsonPropertyDescription("StorageClass of the volume claims. Defaults to the cluster's default class. Only applies to new claims.")
+    public String storageClass;
+
+    @JsonPropertyDescription("Volume capacity, e.g. 50Gi. Defaults to the sizing profile. Growing it expands the existing claims in place, which the storage class must allow.")
+    public String capacity;
+
+    @JsonPropertyDescription("Access mode of the volume claims, e.g. ReadWriteOnce or ReadWriteOncePod. Only applies to new claims.")
+    public String accessMode = "ReadWriteOnce";
+}
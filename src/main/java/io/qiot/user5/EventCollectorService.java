@@ -13,6 +13,9 @@ public class EventCollectorService implements QiotResource {
     @JsonPropertyDescription("Log level for this service.")
     public String logLevel;
 
+    @JsonPropertyDescription("Scaling on Kafka consumer-group lag, checked by the operator.")
+    public LagAutoscaling lagAutoscaling = new LagAutoscaling();
+
     public String getImageName() {
         return image;
     }
@@ -1,93 +1,252 @@
 package io.qiot.user5;
 
 import java.security.SecureRandom;
-import java.util.Base64;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
 import java.util.Random;
 
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import io.fabric8.kubernetes.api.model.ConfigMap;
+import io.fabric8.kubernetes.api.model.HasMetadata;
 import io.fabric8.kubernetes.api.model.ObjectMeta;
-import io.fabric8.kubernetes.api.model.ObjectMetaBuilder;
-import io.fabric8.kubernetes.api.model.PersistentVolumeClaim;
-import io.fabric8.kubernetes.api.model.PersistentVolumeClaimSpec;
-import io.fabric8.kubernetes.api.model.Quantity;
-import io.fabric8.kubernetes.api.model.ResourceRequirements;
+import io.fabric8.kubernetes.api.model.Secret;
 import io.fabric8.kubernetes.api.model.SecretBuilder;
-import io.fabric8.kubernetes.api.model.ServiceBuilder;
-import io.fabric8.kubernetes.api.model.VolumeMount;
-import io.fabric8.kubernetes.api.model.apps.DeploymentBuilder;
-import io.fabric8.kubernetes.api.model.apps.StatefulSetBuilder;
+import io.fabric8.kubernetes.api.model.Service;
+import io.fabric8.kubernetes.api.model.apps.Deployment;
+import io.fabric8.kubernetes.api.model.apps.StatefulSet;
+import io.fabric8.kubernetes.api.model.autoscaling.v1.HorizontalPodAutoscaler;
+import io.fabric8.kubernetes.api.model.policy.v1.PodDisruptionBudget;
 import io.fabric8.kubernetes.client.KubernetesClient;
-import io.fabric8.kubernetes.client.utils.KubernetesResourceUtil;
+import io.javaoperatorsdk.operator.api.reconciler.Cleaner;
 import io.javaoperatorsdk.operator.api.reconciler.Context;
+import io.javaoperatorsdk.operator.api.reconciler.DeleteControl;
+import io.javaoperatorsdk.operator.api.reconciler.EventSourceContext;
+import io.javaoperatorsdk.operator.api.reconciler.EventSourceInitializer;
 import io.javaoperatorsdk.operator.api.reconciler.Reconciler;
 import io.javaoperatorsdk.operator.api.reconciler.UpdateControl;
+import io.javaoperatorsdk.operator.processing.event.ResourceID;
+import io.javaoperatorsdk.operator.processing.event.source.EventSource;
+import io.javaoperatorsdk.operator.processing.event.source.informer.InformerEventSource;
 import io.quarkus.logging.Log;
 
-public class FactoryReconciler implements Reconciler<Factory> { 
-  private final KubernetesClient client;
+public class FactoryReconciler implements Reconciler<Factory>, EventSourceInitializer<Factory>, Cleaner<Factory> { 
+  private static final Duration HELD_BACK_RETRY = Duration.ofSeconds(30);
+  private static final Datastore POSTGRES = new Datastore("postgres", "14");
 
-  public FactoryReconciler(KubernetesClient client) {
+  private final KubernetesClient client;
+  private final ComponentExecutor executor;
+  private final ServerSideApply serverSideApply;
+  private final ReconcileMetrics metrics;
+  private final ReconcileOwnership ownership;
+  private final ReconcileThrottle throttle;
+  private final boolean strimziTopics;
+  private final ReconcileGraph<Factory> graph;
+  private final ComponentTemplates<Factory> templates;
+  private final BindingSecretCache bindingSecrets = new BindingSecretCache();
+  private InformerEventSource<Secret, Factory> bindingSecretSource;
+  private OwnedResources<Factory> owned;
+  private ResourceApplier<Factory> applier;
+  private ComponentReadiness<Factory> readiness;
+  private VolumeClaims<Factory> volumes;
+
+  public FactoryReconciler(KubernetesClient client, ComponentExecutor executor, ServerSideApply serverSideApply,
+      ReconcileMetrics metrics, ReconcileOwnership ownership, ReconcileThrottle throttle,
+      @ConfigProperty(name = "qiot.operator.strimzi-topics", defaultValue = "false") boolean strimziTopics) {
     this.client = client;
+    this.executor = executor;
+    this.serverSideApply = serverSideApply;
+    this.metrics = metrics;
+    this.ownership = ownership;
+    this.throttle = throttle;
+    this.strimziTopics = strimziTopics;
+    // Edges come from the commonProperties keys each step reads and writes
+    this.graph = new ReconcileGraph<Factory>(metrics, (r, step) -> readiness.isReady(r, step))
+      .add("bindings", Set.of(), Set.of("BINDING_SECRET_NAME", "PG_USER", "PG_PASSWORD", "INFLUXDB_USERNAME",
+          "INFLUXDB_PASSWORD", "MONGODB_ROOT_USER", "MONGODB_ROOT_PASSWORD"), this::createBindingSecret)
+      .add("postgres", Set.of("BINDING_SECRET_NAME"), Set.of("PG_SERVICE_NAME", "PG_URL", "PG_DATABASE"),
+          this::reconcilePostgresDatastore)
+      .add("mongo", Set.of("BINDING_SECRET_NAME", "MONGODB_ROOT_USER", "MONGODB_ROOT_PASSWORD"),
+          Set.of("MONGODB_SERVICE_NAME", "MONGODB_URL", "MONGODB_DATABASE"), this::reconcileMongoDatastore)
+      .add("facility-manager", Set.of(), Set.of("FACTORY_FACILITY_MANAGER_SERVICE_URL"),
+          this::reconcileFactoryFacilityManagerService)
+      .add("kafka-topics", Set.of(), Set.of("KAFKA_TOPIC_PRODUCT_LINE"), this::reconcileKafkaTopics)
+      .add("product-line", Set.of("KAFKA_TOPIC_PRODUCT_LINE"), Set.of("FACTORY_PRODUCT_LINE_SERVICE_URL"),
+          this::reconcileFactoryProductLineService)
+      .add("production-validator", Set.of("KAFKA_TOPIC_PRODUCT_LINE"), Set.of("FACTORY_PRODUCTION_VALIDATOR_SERVICE_URL"),
+          this::reconcileFactoryProductionValidatorService);
+    this.templates = new ComponentTemplates<>(graph);
+  }
+
+  @Override
+  public Map<String, EventSource> prepareEventSources(EventSourceContext<Factory> context) {
+    bindingSecretSource = BindingSecretCache.eventSource(context);
+    owned = new OwnedResources<>(context, StatefulSet.class, Deployment.class, Service.class,
+      HorizontalPodAutoscaler.class, PodDisruptionBudget.class, ConfigMap.class);
+    if(strimziTopics) {
+      // Needs the Strimzi CRDs and list/watch on KafkaTopics in every namespace
+      owned.withCrossNamespace(KafkaTopic.class);
+    }
+    applier = new ResourceApplier<>(client, owned, serverSideApply, metrics);
+    readiness = new ComponentReadiness<>(client, applier, metrics, Clock.systemUTC());
+    volumes = new VolumeClaims<>(client, owned);
+    owned.onOwnerDeleted(applier::forget);
+    owned.onOwnerDeleted(graph::forget);
+    owned.onOwnerDeleted(templates::forget);
+    owned.onOwnerDeleted(volumes::forget);
+    owned.onOwnerDeleted(throttle::forget);
+    final var sources = new ArrayList<EventSource>(List.of(owned.eventSources()));
+    sources.add(bindingSecretSource);
+    sources.add(ownership.eventSource(context));
+    return EventSourceInitializer.nameEventSources(sources.toArray(new EventSource[0]));
   }
 
   @Override
   public UpdateControl<Factory> reconcile(Factory resource, Context context) {
+    if(!ownership.owns(resource)) {
+      // Reconciled by the operator replica that owns its shard
+      return UpdateControl.noUpdate();
+    }
+    final var uid = resource.getMetadata().getUid();
+    final var drifted = isApplied(resource) ? applier.driftedComponents(resource) : Optional.<Set<String>>empty();
+    // A resync with nothing drifted only refreshes the status
+    final var wait = throttle.admit(uid, drifted.isEmpty() || !drifted.get().isEmpty());
+    if(wait.isPresent()) {
+      // Backing off after a failure, or over the global reconcile rate
+      return UpdateControl.<Factory>noUpdate().rescheduleAfter(wait.get().toMillis());
+    }
+    final var sample = metrics.start();
+    try {
+      final var control = reconcileComponents(resource, drifted);
+      metrics.reconciled(resource, sample, false);
+      throttle.succeeded(uid);
+      return control;
+    }
+    catch(RuntimeException e) {
+      metrics.reconciled(resource, sample, true);
+      // Retried here rather than by the framework so that CRs failing together spread out
+      final var delay = throttle.failed(uid);
+      Log.warn("Reconcile of "+resource.getMetadata().getName()+" failed, retrying in "+delay.toMillis()+"ms", e);
+      return UpdateControl.<Factory>noUpdate().rescheduleAfter(delay.toMillis());
+    }
+  }
+
+  @Override
+  public DeleteControl cleanup(Factory resource, Context context) {
+    if(!ownership.owns(resource)) {
+      // The replica that owns its shard deletes the topics and removes the finalizer
+      return DeleteControl.noFinalizerRemoval();
+    }
+    if(!strimziTopics) {
+      return DeleteControl.defaultDelete();
+    }
+    final var name = resource.getMetadata().getName();
+    final var namespace = resource.getMetadata().getNamespace();
+    // Not garbage collected, they live in the Kafka cluster's namespace without an owner reference
+    for(var topic : owned.list(KafkaTopic.class, t -> KafkaTopics.isOwnedBy(t, name, namespace))) {
+      final var topicNamespace = topic.getMetadata().getNamespace();
+      final var topicName = topic.getSpec().topicName;
+      if(!owned.owners(o -> !o.getMetadata().getUid().equals(resource.getMetadata().getUid())
+          && o.getSpec().productLineTopic.equals(topicName) && topicNamespace.equals(topicNamespace(o))).isEmpty()) {
+        // Still used by another Factory, which takes it over on its next reconcile
+        continue;
+      }
+      client.resource(topic).delete();
+      metrics.apiCall(resource, "kafka-topics", "delete");
+    }
+    return DeleteControl.defaultDelete();
+  }
+
+  private boolean isApplied(Factory resource) {
+    return resource.getStatus() != null
+      && Objects.equals(resource.getMetadata().getGeneration(), resource.getStatus().observedGeneration);
+  }
+
+  /** @param drifted components whose owned objects drifted, empty if unknown or the generation is not applied yet */
+  private UpdateControl<Factory> reconcileComponents(Factory resource, Optional<Set<String>> drifted) {
+
+    final var generation = resource.getMetadata().getGeneration();
+    if(isApplied(resource)) {
+      // Nothing to do when this generation was already applied and no owned object drifted
+      if(drifted.isPresent() && drifted.get().isEmpty()) {
+        return updateStatus(resource, resource.getStatus().observedGeneration, Set.of());
+      }
+      // A deleted or modified owned object only repairs its own component
+      final var heldBack = drifted.isPresent()
+        ? graph.repair(resource, executor, drifted.get()) : Optional.<Set<String>>empty();
+      if(heldBack.isPresent()) {
+        Log.info("Repaired "+drifted.get()+" of "+resource.getMetadata().getName());
+        return updateStatus(resource, resource.getStatus().observedGeneration, heldBack.get());
+      }
+    }
 
     // Common Properties thread thorugh all the services so that details such as 
     // database URL can be shared with subsewquent services
     // Prefixes are: PG_ , RS_, PMS_, GPLS_, ECS_ 
-    Map<String, String> commonProperties = new HashMap<String, String>();
-
-    // TOTO configure applications to connect to datastores
-    commonProperties = createBindingSecret(resource, commonProperties);
-    commonProperties = reconcilePostgresDatastore(resource, commonProperties);
-    commonProperties = reconcileMongoDatastore(resource, commonProperties);
-    commonProperties = reconcileFactoryFacilityManagerService(resource, commonProperties);
-    commonProperties = reconcileFactoryProductLineService(resource, commonProperties);
-    commonProperties = reconcileFactoryProductionValidatorService(resource, commonProperties);
-
-    return UpdateControl.noUpdate();
+    final var heldBack = graph.run(resource, executor);
+    // The generation only counts as applied once no component waits for a datastore
+    return updateStatus(resource, heldBack.isEmpty() ? generation
+      : resource.getStatus() != null ? resource.getStatus().observedGeneration : null, heldBack);
   }
 
-  private Map<String, String> createLabels(Factory resource, QiotResource component) {
-    var name = resource.getMetadata().getName()+"-"+component.getImageName();
-    if(name.length() > 63) {
-      name = name.substring(0,62);
+  /**
+   * Patches the status when the observed generation or the readiness of a
+   * component changed, and only then. Held back components are retried once what
+   * they wait for becomes ready, at the latest after {@link #HELD_BACK_RETRY}.
+   */
+  private UpdateControl<Factory> updateStatus(Factory resource, Long observedGeneration, Set<String> heldBack) {
+    final var previous = resource.getStatus();
+    final var status = new FactoryStatus();
+    status.observedGeneration = observedGeneration;
+    status.components = readiness.observe(resource, previous != null ? previous.components : Map.of());
+    status.ready = heldBack.isEmpty() && !status.components.isEmpty()
+      && status.components.values().stream().allMatch(c -> c.ready);
+    UpdateControl<Factory> control;
+    if(status.equals(previous)) {
+      control = UpdateControl.noUpdate();
+    }
+    else {
+      resource.setStatus(status);
+      // Sent by the framework once this method returns
+      metrics.apiCall(resource, "status", "patch");
+      control = UpdateControl.patchStatus(resource);
     }
-    
-    return Map.of(
-      "app.kubernetes.io/name", name,
-      "app.kubernetes.io/version", component.getVersion(),
-      "app.kubernetes.io/component", component.getImageName(),
-      "app.kubernetes.io/part-of", resource.getCRDName(),
-      "app.kubernetes.io/managed-by", resource.getKind()
-    );
+    if(!heldBack.isEmpty()) {
+      Log.info("Holding back "+heldBack+" of "+resource.getMetadata().getName()+" until their datastores are ready");
+      control.rescheduleAfter(HELD_BACK_RETRY.toMillis());
+    }
+    return control;
   }
 
-  private ObjectMeta createMetadata(Factory resource, QiotResource component, Map<String, String> labels) {
-    final var metadata = resource.getMetadata();
-    // Example of a Kubernetes specific check
-    var name = metadata.getName()+"-"+component.getImageName();
-    Log.info("Name of the metadata: "+name);
-    Log.info("Name of the component name: "+component.getImageName());
-    if(name.length() > 63) {
-      name = name.substring(0,62);
-    }
+  /**
+   * Builds the desired objects of every component, in graph order, without any
+   * API call. The binding secret values must already be in commonProperties.
+   * Used by the desired-state benchmarks.
+   */
+  List<HasMetadata> desiredState(Factory resource, Map<String, String> commonProperties) {
+    final var desired = new ArrayList<HasMetadata>();
+    desired.addAll(desiredPostgresDatastore(resource, commonProperties));
+    desired.addAll(desiredMongoDatastore(resource, commonProperties));
+    desired.addAll(desiredKafkaTopics(resource, commonProperties));
+    desired.addAll(desiredFactoryFacilityManagerService(resource, commonProperties));
+    desired.addAll(desiredFactoryProductLineService(resource, commonProperties));
+    desired.addAll(desiredFactoryProductionValidatorService(resource, commonProperties));
+    return desired;
+  }
 
-    return new ObjectMetaBuilder()
-      .withName(name)
-      .withNamespace(metadata.getNamespace())
-      .addNewOwnerReference()
-        .withUid(metadata.getUid())
-        .withApiVersion(resource.getApiVersion())
-        .withName(metadata.getName())
-        .withKind(resource.getKind())
-      .endOwnerReference()
-      .withLabels(labels)
-    .build();
-      
+  Map<String, String> createLabels(Factory resource, QiotResource component) {
+    return ComponentDescriptor.labels(resource, component);
+  }
+
+  ObjectMeta createMetadata(Factory resource, QiotResource component, Map<String, String> labels) {
+    return ComponentDescriptor.metadata(resource, component, labels);
   }
 
   Random random = new SecureRandom();
@@ -107,39 +266,26 @@ public class FactoryReconciler implements Reconciler<Factory> {
 
   private Map<String, String> createBindingSecret(Factory resource, Map<String, String> commonProperties) {
 
-    final var pg_password = generatePassword(16);
-    final var idb_password = generatePassword(16);
-    final var mdb_password = generatePassword(16);
-    final var ds = new Datastore("bindings", "v1");
+    final var ds = new Datastore(BindingSecretCache.COMPONENT, "v1");
     final var labels = createLabels(resource, ds);
     final var metadata = createMetadata(resource, ds, labels);
 
-    var secretsInNs = client.secrets().inNamespace(metadata.getNamespace()).list().getItems();
-    Log.info("Secrets list is: "+secretsInNs+" in namespace: "+metadata.getNamespace());
-    
-    for(var s : secretsInNs) {
+    // Served from the label-filtered informer cache, no API call in steady state
+    var existing = bindingSecretSource.get(new ResourceID(metadata.getName(), metadata.getNamespace()));
+    if(existing.isPresent()) {
       // If secret already exists, exit the function does not need to be recreated
-      Log.info("The name of the current secret in the loop is: "+s.getMetadata().getName());
-      Log.info("The name of the comparison secret in the loop is: "+metadata.getName());
-      if(s.getMetadata().getName().equals(metadata.getName())) {
-        Base64.Decoder decoder = Base64.getDecoder();
-        Log.info("Now checking with secret: "+s.getMetadata().getName());
-        commonProperties = s.getData();
-        for(Map.Entry<String, String> e: commonProperties.entrySet()) {
-          commonProperties.put(e.getKey(), new String(decoder.decode(e.getValue())));
-        }
-        commonProperties.put("BINDING_SECRET_NAME", metadata.getName());
-        return commonProperties;
-      }
+      commonProperties = bindingSecrets.decode(existing.get());
+      commonProperties.put("BINDING_SECRET_NAME", metadata.getName());
+      return commonProperties;
     }
 
     commonProperties = new HashMap<>(Map.of(
       "PG_USER", "admin",
-      "PG_PASSWORD", pg_password,
+      "PG_PASSWORD", generatePassword(16),
       "INFLUXDB_USERNAME", "root",
-      "INFLUXDB_PASSWORD", idb_password,
+      "INFLUXDB_PASSWORD", generatePassword(16),
       "MONGODB_ROOT_USER", "qiotroot",
-      "MONGODB_ROOT_PASSWORD", mdb_password,
+      "MONGODB_ROOT_PASSWORD", generatePassword(16),
       "BINDING_SECRET_NAME", metadata.getName()
     ));
 
@@ -149,336 +295,198 @@ public class FactoryReconciler implements Reconciler<Factory> {
     .addToStringData(commonProperties)
     .build();
 
-    client.secrets().create(sec);
+    var created = client.secrets().inNamespace(metadata.getNamespace()).create(sec);
+    metrics.apiCall(resource, BindingSecretCache.COMPONENT, "create");
+    // Make the new secret visible to the next reconcile even if the informer has not caught up yet
+    bindingSecretSource.handleRecentResourceCreate(ResourceID.fromResource(resource), created);
 
     return commonProperties;
 
   }
 
   private Map<String, String> reconcilePostgresDatastore(Factory resource, Map<String, String> commonProperties) {
+    final var live = liveStatefulSet(resource, ComponentDescriptor.name(resource, POSTGRES));
+    applier.applyAll(resource, "postgres", volumes.keepClaimTemplates(resource, templates.render(resource, "postgres",
+      commonProperties, VolumeClaims.claimNames(live), this::desiredPostgresDatastore)));
+    return commonProperties;
+  }
 
-    final var ds = new Datastore("postgres", "14");
-    final var labels = createLabels(resource, ds);
-    final var name = resource.getMetadata().getName();
-
-    var serviceName = resource.getMetadata().getName()+"-"+ds.getImageName();
-    if(serviceName.length() > 63) {
-      serviceName = serviceName.substring(0,62);
+  List<HasMetadata> desiredPostgresDatastore(Factory resource, Map<String, String> commonProperties) {
+
+    final var spec = resource.getSpec();
+    final var postgres = ComponentDescriptor.datastore("postgres", POSTGRES, spec.sizing,
+        spec.sizingOverrides)
+      .port("tcp", 5432)
+      .commandProbes("sh", "-c", "pg_isready -h 127.0.0.1 -p 5432 -U \"$POSTGRES_USER\" -d \"$POSTGRES_DB\"")
+      .env("PGDATA", "/var/lib/postgresql/data/pgdata")
+      .env("POSTGRES_DB", "qiot_manufacturing")
+      .secretEnv("POSTGRES_USER", "PG_USER")
+      .secretEnv("POSTGRES_PASSWORD", "PG_PASSWORD");
+    final var name = postgres.name(resource);
+    final var storage = spec.storage.get("postgres");
+    final var capacity = storage != null && storage.capacity != null ? storage.capacity : postgres.getSizing().storage;
+    postgres.volume("postgresdb", "/var/lib/postgresql/data/pgdata", storage, capacity);
+    if(VolumeClaims.uses(liveStatefulSet(resource, name), "postgres-wal", storage != null && storage.wal != null)) {
+      // initdb wants an empty directory, which the root of a volume may not be
+      postgres
+        .volume("postgres-wal", "/var/lib/postgresql/wal", storage != null ? storage.wal : null,
+          VolumeClaims.walCapacity(capacity))
+        .env("POSTGRES_INITDB_WALDIR", "/var/lib/postgresql/wal/pg_wal");
     }
+    postgres
+      .configFile("/etc/postgresql/qiot", "postgresql.conf",
+        DatastoreTuning.postgres(postgres.getSizing(), "/var/lib/postgresql/data/pgdata"))
+      .args("postgres", "-c", "config_file=/etc/postgresql/qiot/postgresql.conf");
 
-    var dataVolMount = new VolumeMount();
-    dataVolMount.setMountPath("/var/lib/postgresql/data/pgdata");
-    dataVolMount.setName("postgresdb");
-
-    var volClaimTemplate = new PersistentVolumeClaim();
-    var volMetadata = createMetadata(resource, ds, labels);
-    volMetadata.setName("postgresdb");
-    volClaimTemplate.setMetadata(volMetadata);
-    var volClaimSpec = new PersistentVolumeClaimSpec();
-    volClaimSpec.setAccessModes(List.of("ReadWriteOnce"));
-    volClaimSpec.setResources(new ResourceRequirements(Map.of("storage", new Quantity("1Gi")), 
-      Map.of("storage", new Quantity("1Gi"))));
-    volClaimTemplate.setSpec(volClaimSpec);
-
-    final var metadata = createMetadata(resource, ds, labels);
-
-    var ss = new StatefulSetBuilder()
-      .withMetadata(metadata)
-      .withNewSpec()
-        .withNewSelector().withMatchLabels(labels).endSelector()
-        .withReplicas(1).withServiceName(serviceName)
-        .withNewTemplate()
-          .withNewMetadata().withLabels(labels).endMetadata()
-          .withNewSpec()
-            .addNewContainer()
-              .withName(name).withImage(ds.getImageName()+":"+ds.getVersion())
-              // .withNewSecurityContext().withReadOnlyRootFilesystem(true).endSecurityContext()
-              .addNewPort()
-                .withName("tcp").withProtocol("TCP").withContainerPort(5432)
-              .endPort()
-              .withEnv(KubernetesResourceUtil.convertMapToEnvVarList(Map.of(
-                "PGDATA", "/var/lib/postgresql/data/pgdata",
-                "POSTGRES_DB", "qiot_manufacturing"
-              )))
-              .addNewEnv()
-                .withName("POSTGRES_USER")
-                .withNewValueFrom()
-                  .withNewSecretKeyRef("PG_USER", commonProperties.get("BINDING_SECRET_NAME"), false)
-                .endValueFrom()
-              .endEnv()
-              .addNewEnv()
-                .withName("POSTGRES_PASSWORD")
-                .withNewValueFrom()
-                  .withNewSecretKeyRef("PG_PASSWORD", commonProperties.get("BINDING_SECRET_NAME"), false)
-                .endValueFrom()
-              .endEnv()
-              .withVolumeMounts(List.of(dataVolMount))
-            .endContainer()
-          .endSpec()
-        .endTemplate()
-        .withVolumeClaimTemplates(List.of(volClaimTemplate))
-      .endSpec()
-    .build();
-
-    var ss_service = new ServiceBuilder()
-      .withMetadata(metadata)
-      .withNewSpec()
-        .addNewPort()
-          .withName("tcp")
-          .withPort(5432)
-          .withNewTargetPort().withIntVal(5432).endTargetPort()
-        .endPort()
-        .withSelector(labels)
-        .withType("ClusterIP")
-      .endSpec()
-    .build();
-
-    client.apps().statefulSets().createOrReplace(ss);
-    client.services().createOrReplace(ss_service);
-
-    commonProperties.put("PG_SERVICE_NAME", metadata.getName());
-    commonProperties.put("PG_URL", metadata.getName()+":5432");
+    commonProperties.put("PG_SERVICE_NAME", name);
+    commonProperties.put("PG_URL", name+":5432");
     commonProperties.put("PG_DATABASE", "qiot_manufacturing");
-    return commonProperties;
+    return postgres.placement(spec.placement).render(resource, commonProperties.get("BINDING_SECRET_NAME"));
 
   }
 
   private Map<String, String> reconcileMongoDatastore(Factory resource, Map<String, String> commonProperties) {
+    applier.applyAll(resource, "mongo", volumes.keepClaimTemplates(resource,
+      templates.render(resource, "mongo", commonProperties, this::desiredMongoDatastore)));
+    return commonProperties;
+  }
 
-    final var ds = new Datastore("mongo", "4.4.3");
-    final var labels = createLabels(resource, ds);
-    final var name = resource.getMetadata().getName();
-
-    var serviceName = resource.getMetadata().getName()+"-"+ds.getImageName();
-    if(serviceName.length() > 63) {
-      serviceName = serviceName.substring(0,62);
-    }
-
-    var dataVolMount = new VolumeMount();
-    dataVolMount.setMountPath("/data/db");
-    dataVolMount.setName("mongodb");
+  List<HasMetadata> desiredMongoDatastore(Factory resource, Map<String, String> commonProperties) {
+
+    final var spec = resource.getSpec();
+    final var mongo = ComponentDescriptor.datastore("mongo", new Datastore("mongo", "4.4.3"), spec.sizing,
+        spec.sizingOverrides)
+      .port("tcp", 27017)
+      .commandProbes("mongo", "--quiet", "--eval", "db.adminCommand('ping').ok")
+      .env("MONGODB_PORT_NUMBER", "27017")
+      .env("MONGO_INITDB_DATABASE", "qiot_manufacturing")
+      .secretEnv("MONGO_INITDB_ROOT_USERNAME", "MONGODB_ROOT_USER")
+      .secretEnv("MONGO_INITDB_ROOT_PASSWORD", "MONGODB_ROOT_PASSWORD");
+    mongo
+      .volume("mongodb", "/data/db", spec.storage.get("mongo"), mongo.getSizing().storage)
+      .configFile("/etc/mongo/qiot", "mongod.conf", DatastoreTuning.mongo(mongo.getSizing()))
+      .args("mongod", "--config", "/etc/mongo/qiot/mongod.conf");
+    final var name = mongo.name(resource);
+
+    commonProperties.put("MONGODB_SERVICE_NAME", name);
+    commonProperties.put("MONGODB_URL", 
+      "mongodb://"+commonProperties.get("MONGODB_ROOT_USER")+":"+commonProperties.get("MONGODB_ROOT_PASSWORD")+"@"+name+":27017");
+    commonProperties.put("MONGODB_DATABASE", "admin");
+    return mongo.placement(spec.placement).render(resource, commonProperties.get("BINDING_SECRET_NAME"));
 
-    var volClaimTemplate = new PersistentVolumeClaim();
-    var volMetadata = createMetadata(resource, ds, labels);
-    volMetadata.setName("mongodb");
-    volClaimTemplate.setMetadata(volMetadata);
-    var volClaimSpec = new PersistentVolumeClaimSpec();
-    volClaimSpec.setAccessModes(List.of("ReadWriteOnce"));
-    volClaimSpec.setResources(new ResourceRequirements(Map.of("storage", new Quantity("1Gi")), 
-      Map.of("storage", new Quantity("1Gi"))));
-    volClaimTemplate.setSpec(volClaimSpec);
+  }
 
-    final var metadata = createMetadata(resource, ds, labels);
+  private Map<String, String> reconcileKafkaTopics(Factory resource, Map<String, String> commonProperties) {
+    // Not cached in the templates, the partition count depends on the live topic
+    applier.applyAll(resource, "kafka-topics", desiredKafkaTopics(resource, commonProperties));
+    return commonProperties;
+  }
 
-    var ss = new StatefulSetBuilder()
-      .withMetadata(metadata)
-      .withNewSpec()
-        .withNewSelector().withMatchLabels(labels).endSelector()
-        .withReplicas(1).withServiceName(serviceName)
-        .withNewTemplate()
-          .withNewMetadata().withLabels(labels).endMetadata()
-          .withNewSpec()
-            .addNewContainer()
-              .withName(name).withImage(ds.getImageName()+":"+ds.getVersion())
-              .addNewPort()
-                .withName("tcp").withProtocol("TCP").withContainerPort(27017)
-              .endPort()
-              .withEnv(KubernetesResourceUtil.convertMapToEnvVarList(Map.of(
-                "MONGODB_PORT_NUMBER", "27017",
-                "MONGO_INITDB_DATABASE", "qiot_manufacturing"
-              )))
-              .addNewEnv()
-                .withName("MONGO_INITDB_ROOT_USERNAME")
-                .withNewValueFrom()
-                  .withNewSecretKeyRef("MONGODB_ROOT_USER", commonProperties.get("BINDING_SECRET_NAME"), false)
-                .endValueFrom()
-              .endEnv()
-              .addNewEnv()
-                .withName("MONGO_INITDB_ROOT_PASSWORD")
-                .withNewValueFrom()
-                  .withNewSecretKeyRef("MONGODB_ROOT_PASSWORD", commonProperties.get("BINDING_SECRET_NAME"), false)
-                .endValueFrom()
-              .endEnv()
-              .withVolumeMounts(List.of(dataVolMount))
-            .endContainer()
-          .endSpec()
-        .endTemplate()
-        .withVolumeClaimTemplates(List.of(volClaimTemplate))
-      .endSpec()
-    .build();
+  List<HasMetadata> desiredKafkaTopics(Factory resource, Map<String, String> commonProperties) {
 
-    var ss_service = new ServiceBuilder()
-      .withMetadata(metadata)
-      .withNewSpec()
-        .addNewPort()
-          .withName("tcp")
-          .withPort(27017)
-          .withNewTargetPort().withIntVal(27017).endTargetPort()
-        .endPort()
-        .withSelector(labels)
-        .withType("ClusterIP")
-      .endSpec()
-    .build();
+    final var spec = resource.getSpec();
+    commonProperties.put("KAFKA_TOPIC_PRODUCT_LINE", spec.productLineTopic);
+    final var cluster = KafkaTopics.cluster(spec.kafkaBootstrapURL, spec.kafkaCluster);
+    if(!strimziTopics || cluster == null) {
+      // Not a Strimzi cluster, the topic is left to the broker's auto-creation
+      return List.of();
+    }
+    final var namespace = topicNamespace(resource);
+    final var live = liveTopic(namespace, spec.productLineTopic);
+    if(live.isPresent() && !KafkaTopics.isOwnedBy(live.get(), resource.getMetadata().getName(),
+        resource.getMetadata().getNamespace()) && owned.hasOwner(live.get())) {
+      // Shared with another Factory on the same Kafka cluster, which manages it
+      return List.of();
+    }
+    // A topic's partition count can only grow
+    final var livePartitions = live.map(t -> t.getSpec() != null ? t.getSpec().partitions : 0).orElse(0);
+    return List.of(KafkaTopics.topic(resource, cluster, namespace,
+      Sizing.topic(spec.sizing, spec.productLineTopic, livePartitions, spec.kafkaBrokers)));
 
-    client.apps().statefulSets().createOrReplace(ss);
-    client.services().createOrReplace(ss_service);
+  }
 
-    commonProperties.put("MONGODB_SERVICE_NAME", metadata.getName());
-    commonProperties.put("MONGODB_URL", 
-      "mongodb://"+commonProperties.get("MONGODB_ROOT_USER")+":"+commonProperties.get("MONGODB_ROOT_PASSWORD")+"@"+metadata.getName()+":27017");
-    Log.info("Mongo connectivity URL: "+commonProperties.get("MONGODB_URL"));
-    commonProperties.put("MONGODB_DATABASE", "admin");
-    
-    return commonProperties;
+  private String topicNamespace(Factory resource) {
+    return KafkaTopics.namespace(resource.getSpec().kafkaBootstrapURL, resource.getSpec().kafkaNamespace,
+      resource.getMetadata().getNamespace());
+  }
 
+  private Optional<KafkaTopic> liveTopic(String namespace, String topic) {
+    if(owned == null) {
+      return Optional.empty();
+    }
+    return owned.get(KafkaTopic.class, namespace, topic);
   }
 
   private Map<String, String> reconcileFactoryFacilityManagerService(Factory resource, Map<String, String> commonProperties) {
+    applier.applyAll(resource, "facility-manager", templates.render(resource, "facility-manager", commonProperties, this::desiredFactoryFacilityManagerService));
+    return commonProperties;
+  }
 
-    final var labels = createLabels(resource, resource.getSpec().factoryFacilityManagerService);
-    final var name = resource.getMetadata().getName();
-    final var metadata = createMetadata(resource, resource.getSpec().factoryFacilityManagerService, labels);
-    var rs_deployment = new DeploymentBuilder()
-      .withMetadata(metadata)
-      .withNewSpec()
-        .withNewSelector().withMatchLabels(labels).endSelector()
-        .withNewTemplate()
-          .withNewMetadata().withLabels(labels).endMetadata()
-          .withNewSpec()
-            .addNewContainer()
-              .withName(name).withImage(resource.getSpec().getFactoryFacilityManagerImageRef())
-              .addNewPort()
-                .withName("http").withProtocol("TCP").withContainerPort(8080)
-              .endPort()
-              .withEnv(KubernetesResourceUtil.convertMapToEnvVarList(Map.of(
-                "LOG_LEVEL", resource.getSpec().factoryFacilityManagerService.getLogLevel(),
-                "QIOT_LOG_LEVEL", resource.getSpec().factoryFacilityManagerService.getLogLevel()
-              )))
-            .endContainer()
-          .endSpec()
-        .endTemplate()
-      .endSpec()
-    .build();
-
-    var rs_service = new ServiceBuilder()
-      .withMetadata(metadata)
-      .withNewSpec()
-        .addNewPort()
-          .withName("http")
-          .withPort(5100)
-          .withNewTargetPort().withIntVal(5100).endTargetPort()
-        .endPort()
-        .withSelector(labels)
-        .withType("ClusterIP")
-      .endSpec()
-    .build();
-
-    client.apps().deployments().createOrReplace(rs_deployment);
-    client.services().createOrReplace(rs_service);
+  List<HasMetadata> desiredFactoryFacilityManagerService(Factory resource, Map<String, String> commonProperties) {
 
-    commonProperties.put("FACTORY_FACILITY_MANAGER_SERVICE_URL", metadata.getName()+":5100");
+    final var spec = resource.getSpec();
+    final var service = ComponentDescriptor.service("facility-manager", spec.factoryFacilityManagerService, spec.getFactoryFacilityManagerImageRef(), spec.sizing,
+        spec.sizingOverrides)
+      .port("http", 5100)
+      .httpProbes("http", "/q/health/ready", "/q/health/live")
+      .env("LOG_LEVEL", spec.factoryFacilityManagerService.getLogLevel())
+      .env("QIOT_LOG_LEVEL", spec.factoryFacilityManagerService.getLogLevel());
 
-    return commonProperties;
+    commonProperties.put("FACTORY_FACILITY_MANAGER_SERVICE_URL", service.name(resource)+":5100");
+    return service.placement(spec.placement).render(resource, commonProperties.get("BINDING_SECRET_NAME"));
 
   }
 
   private Map<String, String> reconcileFactoryProductLineService(Factory resource, Map<String, String> commonProperties) {
+    applier.applyAll(resource, "product-line", templates.render(resource, "product-line", commonProperties, this::desiredFactoryProductLineService));
+    return commonProperties;
+  }
 
-    final var labels = createLabels(resource, resource.getSpec().factoryProductLineService);
-    final var name = resource.getMetadata().getName();
-    final var metadata = createMetadata(resource, resource.getSpec().factoryProductLineService, labels);
-    var rs_deployment = new DeploymentBuilder()
-      .withMetadata(metadata)
-      .withNewSpec()
-        .withNewSelector().withMatchLabels(labels).endSelector()
-        .withNewTemplate()
-          .withNewMetadata().withLabels(labels).endMetadata()
-          .withNewSpec()
-            .addNewContainer()
-              .withName(name).withImage(resource.getSpec().getFactoryProductLineImageRef())
-              .addNewPort()
-                .withName("http").withProtocol("TCP").withContainerPort(8080)
-              .endPort()
-              .withEnv(KubernetesResourceUtil.convertMapToEnvVarList(Map.of(
-                "LOG_LEVEL", resource.getSpec().factoryProductLineService.getLogLevel(),
-                "QIOT_LOG_LEVEL", resource.getSpec().factoryProductLineService.getLogLevel()
-              )))
-            .endContainer()
-          .endSpec()
-        .endTemplate()
-      .endSpec()
-    .build();
-
-    var rs_service = new ServiceBuilder()
-      .withMetadata(metadata)
-      .withNewSpec()
-        .addNewPort()
-          .withName("http")
-          .withPort(5101)
-          .withNewTargetPort().withIntVal(5101).endTargetPort()
-        .endPort()
-        .withSelector(labels)
-        .withType("ClusterIP")
-      .endSpec()
-    .build();
-
-    client.apps().deployments().createOrReplace(rs_deployment);
-    client.services().createOrReplace(rs_service);
+  List<HasMetadata> desiredFactoryProductLineService(Factory resource, Map<String, String> commonProperties) {
 
-    commonProperties.put("FACTORY_PRODUCT_LINE_SERVICE_URL", metadata.getName()+":5101");
+    final var spec = resource.getSpec();
+    final var service = ComponentDescriptor.service("product-line", spec.factoryProductLineService, spec.getFactoryProductLineImageRef(), spec.sizing,
+        spec.sizingOverrides)
+      .port("http", 5101)
+      .httpProbes("http", "/q/health/ready", "/q/health/live")
+      .env("LOG_LEVEL", spec.factoryProductLineService.getLogLevel())
+      .env("QIOT_LOG_LEVEL", spec.factoryProductLineService.getLogLevel())
+      .env("KAFKA_BOOTSTRAP_URL", spec.kafkaBootstrapURL)
+      .env("KAFKA_TOPIC_PRODUCT_LINE", commonProperties.get("KAFKA_TOPIC_PRODUCT_LINE"));
 
-    return commonProperties;
+    commonProperties.put("FACTORY_PRODUCT_LINE_SERVICE_URL", service.name(resource)+":5101");
+    return service.placement(spec.placement).render(resource, commonProperties.get("BINDING_SECRET_NAME"));
 
   }
 
   private Map<String, String> reconcileFactoryProductionValidatorService(Factory resource, Map<String, String> commonProperties) {
+    applier.applyAll(resource, "production-validator", templates.render(resource, "production-validator", commonProperties, this::desiredFactoryProductionValidatorService));
+    return commonProperties;
+  }
 
-    final var labels = createLabels(resource, resource.getSpec().factoryProductionValidatorService);
-    final var name = resource.getMetadata().getName();
-    final var metadata = createMetadata(resource, resource.getSpec().factoryProductionValidatorService, labels);
-    var rs_deployment = new DeploymentBuilder()
-      .withMetadata(metadata)
-      .withNewSpec()
-        .withNewSelector().withMatchLabels(labels).endSelector()
-        .withNewTemplate()
-          .withNewMetadata().withLabels(labels).endMetadata()
-          .withNewSpec()
-            .addNewContainer()
-              .withName(name).withImage(resource.getSpec().getFactoryProductionValidatorImageRef())
-              .addNewPort()
-                .withName("http").withProtocol("TCP").withContainerPort(8080)
-              .endPort()
-              .withEnv(KubernetesResourceUtil.convertMapToEnvVarList(Map.of(
-                "LOG_LEVEL", resource.getSpec().factoryProductionValidatorService.getLogLevel(),
-                "QIOT_LOG_LEVEL", resource.getSpec().factoryProductionValidatorService.getLogLevel()
-              )))
-            .endContainer()
-          .endSpec()
-        .endTemplate()
-      .endSpec()
-    .build();
-
-    var rs_service = new ServiceBuilder()
-      .withMetadata(metadata)
-      .withNewSpec()
-        .addNewPort()
-          .withName("http")
-          .withPort(8080)
-          .withNewTargetPort().withIntVal(8080).endTargetPort()
-        .endPort()
-        .withSelector(labels)
-        .withType("ClusterIP")
-      .endSpec()
-    .build();
-
-    client.apps().deployments().createOrReplace(rs_deployment);
-    client.services().createOrReplace(rs_service);
+  List<HasMetadata> desiredFactoryProductionValidatorService(Factory resource, Map<String, String> commonProperties) {
 
-    commonProperties.put("FACTORY_PRODUCTION_VALIDATOR_SERVICE_URL", metadata.getName()+":8080");
+    final var spec = resource.getSpec();
+    final var service = ComponentDescriptor.service("production-validator", spec.factoryProductionValidatorService, spec.getFactoryProductionValidatorImageRef(), spec.sizing,
+        spec.sizingOverrides)
+      .port("http", 8080)
+      .httpProbes("http", "/q/health/ready", "/q/health/live")
+      .env("LOG_LEVEL", spec.factoryProductionValidatorService.getLogLevel())
+      .env("QIOT_LOG_LEVEL", spec.factoryProductionValidatorService.getLogLevel())
+      .env("KAFKA_BOOTSTRAP_URL", spec.kafkaBootstrapURL)
+      .env("KAFKA_TOPIC_PRODUCT_LINE", commonProperties.get("KAFKA_TOPIC_PRODUCT_LINE"));
 
-    return commonProperties;
+    commonProperties.put("FACTORY_PRODUCTION_VALIDATOR_SERVICE_URL", service.name(resource)+":8080");
+    return service.placement(spec.placement).render(resource, commonProperties.get("BINDING_SECRET_NAME"));
 
   }
 
+  /** The live StatefulSet of a datastore, from the cache */
+  private Optional<StatefulSet> liveStatefulSet(Factory resource, String name) {
+    if(owned == null) {
+      return Optional.empty();
+    }
+    return owned.get(StatefulSet.class, resource.getMetadata().getNamespace(), name);
+  }
 }
 
@@ -1,5 +1,8 @@
 package io.qiot.user5;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import com.fasterxml.jackson.annotation.JsonPropertyDescription;
 
 public class FactorySpec {
@@ -11,9 +14,30 @@ public class FactorySpec {
     @JsonPropertyDescription("Relative sizing for the deployments from 1 to 5 (largest quotas)")
     public int sizing = 1;
 
+    @JsonPropertyDescription("Per-component replacements for values of the sizing profile, keyed by component: postgres, mongo, facility-manager, product-line or production-validator")
+    public Map<String, SizingOverride> sizingOverrides = new HashMap<>();
+
+    @JsonPropertyDescription("Volumes of the datastores, keyed by component: postgres or mongo")
+    public Map<String, DatastoreStorage> storage = new HashMap<>();
+
+    @JsonPropertyDescription("Where the pods of the datastores and services are scheduled")
+    public Placement placement = new Placement();
+
     @JsonPropertyDescription("Endpoint for Kafka.")
     public String kafkaBootstrapURL = "";
 
+    @JsonPropertyDescription("Strimzi Kafka cluster the topics are created in. Defaults to the cluster of the kafkaBootstrapURL service, e.g. my-cluster for my-cluster-kafka-bootstrap.kafka.svc:9092.")
+    public String kafkaCluster = "";
+
+    @JsonPropertyDescription("Namespace of the Strimzi Kafka cluster, where the KafkaTopics are created. Defaults to the namespace of the kafkaBootstrapURL service.")
+    public String kafkaNamespace = "";
+
+    @JsonPropertyDescription("Brokers in the Kafka cluster. The replication factor of the topics is capped at it, e.g. to 1 for kafka-persistent-single.yaml.")
+    public int kafkaBrokers = 1;
+
+    @JsonPropertyDescription("Kafka topic between the product line and production validator services. Passed to both as KAFKA_TOPIC_PRODUCT_LINE.")
+    public String productLineTopic = "product-line";
+
     @JsonPropertyDescription("Specifications for Factory Facility Manager Service")
     public FactoryFacilityManagerService factoryFacilityManagerService = new FactoryFacilityManagerService();
 
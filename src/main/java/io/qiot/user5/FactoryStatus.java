@@ -1,6 +1,34 @@
 package io.qiot.user5;
 
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.annotation.JsonPropertyDescription;
+
 public class FactoryStatus {
 
-    // Add Status information here
+    @JsonPropertyDescription("The metadata.generation of the Factory that was last fully applied")
+    public Long observedGeneration;
+
+    @JsonPropertyDescription("Whether every component is ready")
+    public boolean ready;
+
+    @JsonPropertyDescription("Readiness of each component, e.g. postgres, by graph step name")
+    public Map<String, ComponentStatus> components = new TreeMap<>();
+
+    @Override
+    public boolean equals(Object o) {
+        if(!(o instanceof FactoryStatus)) {
+            return false;
+        }
+        final var other = (FactoryStatus) o;
+        return Objects.equals(observedGeneration, other.observedGeneration) && ready == other.ready
+            && Objects.equals(components, other.components);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(observedGeneration, ready, components);
+    }
 }
@@ -0,0 +1,56 @@
+package io.qiot.user5;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring over the operator replicas. Each member is placed on the
+ * ring at a number of virtual points, and a key belongs to the first member
+ * point at or after its own hash. When a member leaves, only its keys move, and
+ * they spread over the survivors.
+ *
+ * Hashes come from SHA-256 so every replica computes the same ring for the same
+ * members.
+ */
+public class HashRing {
+
+  private final TreeMap<Long, String> points = new TreeMap<>();
+  private final List<String> members;
+
+  public HashRing(Collection<String> members, int virtualNodes) {
+    this.members = List.copyOf(members);
+    for(var member : this.members) {
+      for(int i = 0; i < virtualNodes; i++) {
+        points.put(hash(member+"#"+i), member);
+      }
+    }
+  }
+
+  public List<String> getMembers() {
+    return members;
+  }
+
+  /** The member owning the key, null if the ring has no members */
+  public String owner(String key) {
+    if(points.isEmpty()) {
+      return null;
+    }
+    final var point = points.ceilingEntry(hash(key));
+    return point != null ? point.getValue() : points.firstEntry().getValue();
+  }
+
+  static long hash(String key) {
+    try {
+      final var digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+      return ByteBuffer.wrap(digest).getLong();
+    }
+    catch(NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
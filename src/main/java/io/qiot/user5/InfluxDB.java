@@ -0,0 +1,24 @@
+package io.qiot.user5;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonPropertyDescription;
+
+public class InfluxDB {
+
+    @JsonPropertyDescription("Major InfluxDB version: 1 for InfluxDB 1.6, 2 for InfluxDB 2 with the org, bucket, token, retention and rollups below. Moving between versions starts on a new volume, the old one is kept.")
+    public int version = 1;
+
+    @JsonPropertyDescription("InfluxDB 2 organisation. Written to the binding secret when it is created, later changes are ignored.")
+    public String org = "qiot";
+
+    @JsonPropertyDescription("InfluxDB 2 bucket the raw telemetry is written to. Written to the binding secret when it is created, later changes are ignored.")
+    public String bucket = "telemetry";
+
+    @JsonPropertyDescription("How long raw telemetry is kept, as an InfluxDB duration such as 30d, or 0 to keep it forever. Must be longer than the longest rollup interval.")
+    public String retention = "30d";
+
+    @JsonPropertyDescription("Downsampled copies of the raw bucket, each in its own <bucket>_<every> bucket filled by an InfluxDB task.")
+    public List<InfluxDBRollup> rollups = new ArrayList<>(List.of(new InfluxDBRollup("5m", "90d"), new InfluxDBRollup("1h", "0")));
+}
@@ -0,0 +1,20 @@
+package io.qiot.user5;
+
+import com.fasterxml.jackson.annotation.JsonPropertyDescription;
+
+public class InfluxDBRollup {
+
+    @JsonPropertyDescription("Aggregation window and task interval, as an InfluxDB duration such as 5m or 1h. Each numeric field is averaged over the window.")
+    public String every;
+
+    @JsonPropertyDescription("How long the rollup is kept, as an InfluxDB duration such as 90d, or 0 to keep it forever.")
+    public String retention = "0";
+
+    public InfluxDBRollup() {
+    }
+
+    public InfluxDBRollup(String every, String retention) {
+        this.every = every;
+        this.retention = retention;
+    }
+}
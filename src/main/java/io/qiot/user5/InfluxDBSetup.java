@@ -0,0 +1,117 @@
+package io.qiot.user5;
+
+import java.util.regex.Pattern;
+
+import io.fabric8.kubernetes.api.model.ContainerBuilder;
+import io.fabric8.kubernetes.api.model.EnvVar;
+import io.fabric8.kubernetes.api.model.EnvVarBuilder;
+import io.fabric8.kubernetes.api.model.ObjectMetaBuilder;
+import io.fabric8.kubernetes.api.model.Quantity;
+import io.fabric8.kubernetes.api.model.batch.v1.Job;
+import io.fabric8.kubernetes.api.model.batch.v1.JobBuilder;
+import io.fabric8.kubernetes.client.CustomResource;
+
+/**
+ * The Job that brings an InfluxDB 2 in line with spec.influxDB: the retention of
+ * the raw bucket, one bucket per rollup and the tasks that downsample into them.
+ * The image only sets up the org, bucket and token on an empty volume, so the
+ * script is idempotent and runs again whenever it changes; the Job name carries
+ * a hash of it, since the pod template of a Job cannot be updated.
+ *
+ * Each rollup reads the raw bucket, so the raw retention has to cover the
+ * longest rollup interval.
+ */
+public class InfluxDBSetup {
+
+  static final Datastore SETUP = new Datastore("influxdb2-setup", "2.3.0-alpine", "influxdb");
+
+  private static final Pattern DURATION = Pattern.compile("[0-9]+(ns|us|ms|s|m|h|d|w)");
+
+  static Job job(CustomResource<?, ?> owner, InfluxDB spec, String influxdbURL, String bindingSecretName) {
+    final var script = script(spec);
+    final var labels = ComponentDescriptor.labels(owner, SETUP);
+    final var name = ComponentDescriptor.jobName(owner, SETUP, SETUP.getVersion()+"\n"+script);
+
+    final var container = new ContainerBuilder()
+      .withName("setup")
+      .withImage(SETUP.getImage()+":"+SETUP.getVersion())
+      .withCommand("sh", "-c", script)
+      .withEnv(
+        new EnvVar("INFLUX_HOST", "http://"+influxdbURL, null),
+        secretEnv("INFLUX_ORG", "INFLUXDB_ORG", bindingSecretName),
+        secretEnv("INFLUX_TOKEN", "INFLUXDB_TOKEN", bindingSecretName),
+        secretEnv("BUCKET", "INFLUXDB_BUCKET", bindingSecretName))
+      .withNewResources()
+        .addToRequests("cpu", new Quantity("50m"))
+        .addToRequests("memory", new Quantity("64Mi"))
+        .addToLimits("memory", new Quantity("128Mi"))
+      .endResources()
+    .build();
+
+    return new JobBuilder()
+      .withMetadata(new ObjectMetaBuilder(ComponentDescriptor.metadata(owner, SETUP, labels)).withName(name).build())
+      .withNewSpec()
+        .withBackoffLimit(6)
+        .withNewTemplate()
+          .withNewMetadata().withLabels(labels).endMetadata()
+          .withNewSpec()
+            .withRestartPolicy("OnFailure")
+            .withContainers(container)
+          .endSpec()
+        .endTemplate()
+      .endSpec()
+    .build();
+  }
+
+  static String script(InfluxDB spec) {
+    final var script = new StringBuilder()
+      .append("set -eu\n")
+      .append("ensure_bucket() {\n")
+      .append("  id=$(influx bucket list --name \"$1\" --hide-headers 2>/dev/null | awk '{print $1}' || true)\n")
+      .append("  if [ -z \"$id\" ]; then influx bucket create --name \"$1\" --retention \"$2\" >/dev/null\n")
+      .append("  else influx bucket update --id \"$id\" --retention \"$2\" >/dev/null; fi\n")
+      .append("}\n")
+      .append("ensure_task() {\n")
+      .append("  id=$(influx task list --hide-headers | awk -v n=\"$1\" '$2 == n {print $1}')\n")
+      .append("  if [ -z \"$id\" ]; then influx task create --file \"$2\" >/dev/null\n")
+      .append("  else influx task update --id \"$id\" --file \"$2\" >/dev/null; fi\n")
+      .append("}\n")
+      .append("ensure_bucket \"$BUCKET\" ").append(duration(spec.retention)).append('\n');
+    for(var rollup : spec.rollups) {
+      final var every = duration(rollup.every);
+      final var bucket = "${BUCKET}_"+every;
+      final var task = "downsample_${BUCKET}_"+every;
+      script
+        .append("ensure_bucket \"").append(bucket).append("\" ").append(duration(rollup.retention)).append('\n')
+        // Unquoted delimiter, so that ${BUCKET} is expanded
+        .append("cat > /tmp/").append(every).append(".flux <<EOF\n")
+        .append("import \"types\"\n")
+        .append("option task = {name: \"").append(task).append("\", every: ").append(every).append(", offset: 1m}\n")
+        .append("from(bucket: \"${BUCKET}\")\n")
+        .append("  |> range(start: -task.every)\n")
+        .append("  |> filter(fn: (r) => types.isType(v: r._value, type: \"float\") or types.isType(v: r._value, type: \"int\") or types.isType(v: r._value, type: \"uint\"))\n")
+        .append("  |> aggregateWindow(every: task.every, fn: mean, createEmpty: false)\n")
+        .append("  |> to(bucket: \"").append(bucket).append("\")\n")
+        .append("EOF\n")
+        .append("ensure_task \"").append(task).append("\" /tmp/").append(every).append(".flux\n");
+    }
+    return script.toString();
+  }
+
+  /** Guards the script against anything but a plain InfluxDB duration or 0 */
+  private static String duration(String value) {
+    if(value == null || !(value.equals("0") || DURATION.matcher(value).matches())) {
+      throw new IllegalArgumentException("Invalid InfluxDB duration '"+value+"', expected e.g. 30d, 1h or 0");
+    }
+    return value;
+  }
+
+  private static EnvVar secretEnv(String name, String key, String bindingSecretName) {
+    return new EnvVarBuilder()
+      .withName(name)
+      .withNewValueFrom()
+        .withNewSecretKeyRef(key, bindingSecretName, false)
+      .endValueFrom()
+    .build();
+  }
+}
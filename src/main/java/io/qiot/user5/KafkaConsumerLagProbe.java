@@ -0,0 +1,108 @@
+package io.qiot.user5;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Singleton;
+
+import org.apache.kafka.clients.admin.Admin;
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.admin.ListOffsetsResult.ListOffsetsResultInfo;
+import org.apache.kafka.clients.admin.OffsetSpec;
+import org.apache.kafka.common.TopicPartition;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import io.quarkus.logging.Log;
+
+/**
+ * Lag from the Kafka admin client: log end offset minus committed offset of the
+ * group, summed over the topic's partitions. A partition the group has not
+ * committed on yet, e.g. for a new group, lags from its log start offset, so a
+ * backlog found by a new group counts in full. One admin client is kept per
+ * bootstrap URL.
+ */
+@Singleton
+public class KafkaConsumerLagProbe implements ConsumerLagProbe {
+
+  private final Duration timeout;
+  private final Map<String, Admin> admins = new ConcurrentHashMap<>();
+
+  public KafkaConsumerLagProbe(
+      @ConfigProperty(name = "qiot.operator.lag-autoscaler.timeout", defaultValue = "10s") Duration timeout) {
+    this.timeout = timeout;
+  }
+
+  @Override
+  public Optional<LagSample> sample(String bootstrapServers, String consumerGroup, String topic) {
+    if(bootstrapServers == null || bootstrapServers.isBlank()) {
+      return Optional.empty();
+    }
+    final var admin = admins.computeIfAbsent(bootstrapServers, servers -> Admin.create(Map.of(
+      AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, servers,
+      AdminClientConfig.CLIENT_ID_CONFIG, "qiot-operator-lag",
+      AdminClientConfig.DEFAULT_API_TIMEOUT_MS_CONFIG, (int) timeout.toMillis(),
+      // Must not exceed the API timeout, the default of 30s would reject any timeout below it
+      AdminClientConfig.REQUEST_TIMEOUT_MS_CONFIG, (int) timeout.toMillis()
+    )));
+    try {
+      final var description = admin.describeTopics(List.of(topic)).allTopicNames()
+        .get(timeout.toMillis(), TimeUnit.MILLISECONDS).get(topic);
+      final var latest = new HashMap<TopicPartition, OffsetSpec>();
+      for(var partition : description.partitions()) {
+        latest.put(new TopicPartition(topic, partition.partition()), OffsetSpec.latest());
+      }
+      final var endOffsets = admin.listOffsets(latest).all().get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+      final var committed = admin.listConsumerGroupOffsets(consumerGroup).partitionsToOffsetAndMetadata()
+        .get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+
+      final var earliest = new HashMap<TopicPartition, OffsetSpec>();
+      for(var partition : latest.keySet()) {
+        if(committed.get(partition) == null) {
+          earliest.put(partition, OffsetSpec.earliest());
+        }
+      }
+      final var startOffsets = earliest.isEmpty() ? Map.<TopicPartition, ListOffsetsResultInfo>of()
+        : admin.listOffsets(earliest).all().get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+
+      long lag = 0;
+      for(var e : endOffsets.entrySet()) {
+        final var offset = committed.get(e.getKey());
+        final var from = offset != null ? offset.offset() : startOffsets.get(e.getKey()).offset();
+        lag += Math.max(0, e.getValue().offset()-from);
+      }
+      return Optional.of(new LagSample(lag, description.partitions().size()));
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return Optional.empty();
+    }
+    catch(ExecutionException | TimeoutException e) {
+      Log.debug("Unable to read lag of "+consumerGroup+" on "+topic+" at "+bootstrapServers, e);
+      return Optional.empty();
+    }
+  }
+
+  @Override
+  public void retain(Set<String> bootstrapServers) {
+    for(var e : admins.entrySet()) {
+      if(!bootstrapServers.contains(e.getKey()) && admins.remove(e.getKey(), e.getValue())) {
+        Log.debug("Closing the admin client of "+e.getKey()+", no longer used");
+        e.getValue().close(timeout);
+      }
+    }
+  }
+
+  @PreDestroy
+  void close() {
+    admins.values().forEach(Admin::close);
+  }
+}
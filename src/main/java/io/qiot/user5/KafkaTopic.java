@@ -0,0 +1,14 @@
+package io.qiot.user5;
+
+import io.fabric8.kubernetes.api.model.Namespaced;
+import io.fabric8.kubernetes.client.CustomResource;
+import io.fabric8.kubernetes.model.annotation.Group;
+import io.fabric8.kubernetes.model.annotation.Version;
+
+/** Strimzi's KafkaTopic, with only the spec fields the operator sets */
+@Version("v1beta2")
+@Group("kafka.strimzi.io")
+public class KafkaTopic extends CustomResource<KafkaTopicSpec, Void> implements Namespaced {
+
+  private static final long serialVersionUID = 1L;
+}
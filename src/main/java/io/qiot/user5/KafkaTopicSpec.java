@@ -0,0 +1,21 @@
+package io.qiot.user5;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonPropertyDescription;
+
+public class KafkaTopicSpec {
+
+    @JsonPropertyDescription("Name of the topic in Kafka")
+    public String topicName;
+
+    @JsonPropertyDescription("Number of partitions")
+    public int partitions;
+
+    @JsonPropertyDescription("Replication factor")
+    public int replicas;
+
+    @JsonPropertyDescription("Topic configuration, e.g. retention.ms")
+    public Map<String, String> config = new HashMap<>();
+}
@@ -0,0 +1,71 @@
+package io.qiot.user5;
+
+import java.util.Map;
+
+import io.fabric8.kubernetes.api.model.HasMetadata;
+import io.fabric8.kubernetes.api.model.ObjectMetaBuilder;
+import io.fabric8.kubernetes.client.CustomResource;
+
+/**
+ * Strimzi KafkaTopics of a Datacenter or Factory. They live in the Kafka
+ * cluster's namespace, where the topic operator watches, which usually is not the
+ * owner's, so instead of an owner reference they carry the owner's name and
+ * namespace as labels and are deleted when the owner is.
+ *
+ * The topics keep the names the devices and services already use, so several
+ * owners on one Kafka cluster share a topic. The first one manages it; another
+ * takes it over once that owner is gone, and a topic is only deleted along with
+ * the last owner using it.
+ */
+public class KafkaTopics {
+
+  public static final String CLUSTER_LABEL = "strimzi.io/cluster";
+
+  private static final String BOOTSTRAP_SUFFIX = "-kafka-bootstrap";
+
+  /** The Kafka cluster name, by default from a Strimzi bootstrap service host such as my-cluster-kafka-bootstrap.kafka.svc */
+  static String cluster(String bootstrapURL, String cluster) {
+    if(cluster != null && !cluster.isEmpty()) {
+      return cluster;
+    }
+    final var service = host(bootstrapURL).split("\\.")[0];
+    return service.endsWith(BOOTSTRAP_SUFFIX) ? service.substring(0, service.length()-BOOTSTRAP_SUFFIX.length()) : null;
+  }
+
+  /** The Kafka cluster namespace, by default from the bootstrap service host, else the owner's namespace */
+  static String namespace(String bootstrapURL, String namespace, String ownerNamespace) {
+    if(namespace != null && !namespace.isEmpty()) {
+      return namespace;
+    }
+    final var parts = host(bootstrapURL).split("\\.");
+    return parts.length > 1 && (parts.length == 2 || parts[2].equals("svc")) ? parts[1] : ownerNamespace;
+  }
+
+  private static String host(String bootstrapURL) {
+    final var first = bootstrapURL == null ? "" : bootstrapURL.split(",")[0].trim();
+    final var port = first.lastIndexOf(':');
+    return port >= 0 ? first.substring(0, port) : first;
+  }
+
+  static boolean isOwnedBy(HasMetadata topic, String ownerName, String ownerNamespace) {
+    final var labels = topic.getMetadata().getLabels();
+    return labels != null && ownerName.equals(labels.get(OwnedResources.OWNER_NAME_LABEL))
+      && ownerNamespace.equals(labels.get(OwnedResources.OWNER_NAMESPACE_LABEL));
+  }
+
+  static KafkaTopic topic(CustomResource<?, ?> owner, String cluster, String namespace, KafkaTopicSpec spec) {
+    final var topic = new KafkaTopic();
+    topic.setMetadata(new ObjectMetaBuilder()
+      .withName(spec.topicName)
+      .withNamespace(namespace)
+      .withLabels(Map.of(
+        CLUSTER_LABEL, cluster,
+        "app.kubernetes.io/part-of", owner.getCRDName(),
+        "app.kubernetes.io/managed-by", owner.getKind(),
+        OwnedResources.OWNER_NAME_LABEL, owner.getMetadata().getName(),
+        OwnedResources.OWNER_NAMESPACE_LABEL, owner.getMetadata().getNamespace()))
+    .build());
+    topic.setSpec(spec);
+    return topic;
+  }
+}
@@ -0,0 +1,27 @@
+package io.qiot.user5;
+
+import com.fasterxml.jackson.annotation.JsonPropertyDescription;
+
+public class LagAutoscaling {
+
+    @JsonPropertyDescription("Scale on consumer-group lag instead of CPU.")
+    public boolean enabled = true;
+
+    @JsonPropertyDescription("Consumer group of the service.")
+    public String consumerGroup = "event-collector";
+
+    @JsonPropertyDescription("Topic the service consumes. Its partition count caps the replica count. Defaults to the Datacenter's telemetry topic.")
+    public String topic = "";
+
+    @JsonPropertyDescription("Minimum replica count. Defaults to the replicas of the sizing profile.")
+    public Integer minReplicas;
+
+    @JsonPropertyDescription("Maximum replica count. Defaults to the maxReplicas of the sizing profile.")
+    public Integer maxReplicas;
+
+    @JsonPropertyDescription("Lag, in records summed over all partitions, that one replica is expected to work off.")
+    public long lagPerReplica = 1000;
+
+    @JsonPropertyDescription("Seconds to wait after a scale change before the next one.")
+    public int cooldownSeconds = 60;
+}
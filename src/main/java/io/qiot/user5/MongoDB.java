@@ -0,0 +1,15 @@
+package io.qiot.user5;
+
+import com.fasterxml.jackson.annotation.JsonPropertyDescription;
+
+public class MongoDB {
+
+    @JsonPropertyDescription("Number of mongod pods. 1 runs a standalone mongod, more a replica set authenticated with the keyfile in the binding secret; 3 or 5 keep a primary when one member fails. Change it one member at a time.")
+    public int members = 1;
+
+    @JsonPropertyDescription("Name of the replica set")
+    public String replicaSet = "rs0";
+
+    @JsonPropertyDescription("Read preference in the MONGODB_URL handed to the services, e.g. secondaryPreferred to spread reads over the secondaries or primary for read-your-writes")
+    public String readPreference = "secondaryPreferred";
+}
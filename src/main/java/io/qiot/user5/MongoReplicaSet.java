@@ -0,0 +1,173 @@
+package io.qiot.user5;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import io.fabric8.kubernetes.api.model.ContainerBuilder;
+import io.fabric8.kubernetes.api.model.EnvVar;
+import io.fabric8.kubernetes.api.model.EnvVarBuilder;
+import io.fabric8.kubernetes.api.model.ObjectMetaBuilder;
+import io.fabric8.kubernetes.api.model.Quantity;
+import io.fabric8.kubernetes.api.model.batch.v1.Job;
+import io.fabric8.kubernetes.api.model.batch.v1.JobBuilder;
+import io.fabric8.kubernetes.client.CustomResource;
+
+/**
+ * A MongoDB replica set over the pods of the mongo StatefulSet, addressed
+ * through its headless Service.
+ *
+ * The members authenticate to each other with the keyfile in the binding secret,
+ * which mongod only accepts from a file readable by its user alone, so the
+ * container writes it out before starting mongod. The replica set itself is
+ * initiated, and its members brought in line with spec.mongoDB.members, by a Job
+ * that runs once the StatefulSet is ready and again whenever the membership
+ * changes. Without a primary, e.g. after scaling down past the majority, the Job
+ * forces the new configuration on the first member.
+ */
+public class MongoReplicaSet {
+
+  static final Datastore SETUP = new Datastore("mongo-rs-setup", "4.4.3", "mongo");
+
+  private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]+");
+  private static final Pattern READ_PREFERENCE =
+    Pattern.compile("primary|primaryPreferred|secondary|secondaryPreferred|nearest");
+
+  private static final String SCRIPT = String.join("\n",
+    "function sameHosts(config) {",
+    "  var current = config.members.map(m => m.host);",
+    "  return current.length === hosts.length && hosts.every(h => current.includes(h));",
+    "}",
+    "var res = db.adminCommand({replSetGetConfig: 1});",
+    "if(!res.ok && res.code === 94) {",
+    "  assert.commandWorked(db.adminCommand({replSetInitiate: {_id: replicaSet, members: hosts.map((h, i) => ({_id: i, host: h}))}}));",
+    "  print('Initiated ' + replicaSet + ' with ' + hosts);",
+    "  quit(0);",
+    "}",
+    "assert.commandWorked(res);",
+    "var primary = db.isMaster().primary;",
+    "if(!primary) {",
+    "  var config = res.config;",
+    "  if(!sameHosts(config)) {",
+    "    var nextId = Math.max(...config.members.map(m => m._id)) + 1;",
+    "    config.members = config.members.filter(m => hosts.includes(m.host));",
+    "    hosts.filter(h => !config.members.some(m => m.host === h)).forEach(h => config.members.push({_id: nextId++, host: h}));",
+    "    assert.commandWorked(db.adminCommand({replSetReconfig: config, force: true}));",
+    "    print('Forced ' + hosts + ' without a primary');",
+    "  }",
+    "  quit(0);",
+    "}",
+    "var admin = new Mongo(primary).getDB('admin');",
+    "admin.auth(user, password);",
+    // Since 4.4 a reconfig may only add or remove one voting member
+    "for(;;) {",
+    "  var config = admin.adminCommand({replSetGetConfig: 1}).config;",
+    "  if(sameHosts(config)) {",
+    "    break;",
+    "  }",
+    "  var current = config.members.map(m => m.host);",
+    "  var added = hosts.filter(h => !current.includes(h));",
+    "  if(added.length) {",
+    "    config.members.push({_id: Math.max(...config.members.map(m => m._id)) + 1, host: added[0]});",
+    "  }",
+    "  else {",
+    "    var removed = current.filter(h => !hosts.includes(h))[0];",
+    "    config.members = config.members.filter(m => m.host !== removed);",
+    "  }",
+    "  config.version++;",
+    "  assert.commandWorked(admin.adminCommand({replSetReconfig: config}));",
+    "  print('Reconfigured ' + replicaSet + ' to ' + config.members.map(m => m.host));",
+    "  sleep(2000);",
+    "}",
+    "");
+
+  static boolean isEnabled(MongoDB spec) {
+    return spec.members > 1;
+  }
+
+  /** Host and port of every member, e.g. qiotdctest-mongo-0.qiotdctest-mongo.default.svc:27017 */
+  static List<String> hosts(String statefulSet, String namespace, int members) {
+    final var hosts = new ArrayList<String>();
+    for(int i = 0; i < members; i++) {
+      hosts.add(statefulSet+"-"+i+"."+statefulSet+"."+namespace+".svc:27017");
+    }
+    return hosts;
+  }
+
+  static String url(String user, String password, List<String> hosts, MongoDB spec) {
+    return "mongodb://"+user+":"+password+"@"+String.join(",", hosts)+"/?replicaSet="+name(spec)
+      +"&readPreference="+readPreference(spec)+"&authSource=admin";
+  }
+
+  /**
+   * The mongod command line, with the tuned configuration file; the keyfile
+   * comes from the MONGO_KEYFILE env var
+   */
+  static String[] command(MongoDB spec, String configFile) {
+    return new String[] { "sh", "-c",
+      "printf '%s' \"$MONGO_KEYFILE\" > /tmp/keyfile && chmod 400 /tmp/keyfile && chown mongodb /tmp/keyfile"
+        +" && exec docker-entrypoint.sh mongod --bind_ip_all --replSet "+name(spec)+" --keyFile /tmp/keyfile --config "+configFile };
+  }
+
+  static Job job(CustomResource<?, ?> owner, MongoDB spec, List<String> hosts, String bindingSecretName) {
+    final var arguments = "var replicaSet = '"+name(spec)+"', hosts = "
+      +hosts.stream().map(h -> "'"+h+"'").collect(Collectors.joining(", ", "[", "]"))+";";
+    final var labels = ComponentDescriptor.labels(owner, SETUP);
+    final var name = ComponentDescriptor.jobName(owner, SETUP, SETUP.getVersion()+"\n"+arguments+"\n"+SCRIPT);
+
+    final var container = new ContainerBuilder()
+      .withName("setup")
+      .withImage(SETUP.getImage()+":"+SETUP.getVersion())
+      .withCommand("sh", "-c", "cat > /tmp/replica-set.js <<'EOF'\n"+SCRIPT+"EOF\n"
+        +"exec mongo --host "+hosts.get(0)
+        +" -u \"$MONGO_USER\" -p \"$MONGO_PASSWORD\" --authenticationDatabase admin --quiet"
+        +" --eval \""+arguments+" var user = '$MONGO_USER', password = '$MONGO_PASSWORD';\" /tmp/replica-set.js\n")
+      .withEnv(
+        secretEnv("MONGO_USER", "MONGODB_ROOT_USER", bindingSecretName),
+        secretEnv("MONGO_PASSWORD", "MONGODB_ROOT_PASSWORD", bindingSecretName))
+      .withNewResources()
+        .addToRequests("cpu", new Quantity("50m"))
+        .addToRequests("memory", new Quantity("64Mi"))
+        .addToLimits("memory", new Quantity("128Mi"))
+      .endResources()
+    .build();
+
+    return new JobBuilder()
+      .withMetadata(new ObjectMetaBuilder(ComponentDescriptor.metadata(owner, SETUP, labels)).withName(name).build())
+      .withNewSpec()
+        .withBackoffLimit(6)
+        .withNewTemplate()
+          .withNewMetadata().withLabels(labels).endMetadata()
+          .withNewSpec()
+            .withRestartPolicy("OnFailure")
+            .withContainers(container)
+          .endSpec()
+        .endTemplate()
+      .endSpec()
+    .build();
+  }
+
+  private static String name(MongoDB spec) {
+    if(spec.replicaSet == null || !NAME.matcher(spec.replicaSet).matches()) {
+      throw new IllegalArgumentException("Invalid replica set name '"+spec.replicaSet+"'");
+    }
+    return spec.replicaSet;
+  }
+
+  private static String readPreference(MongoDB spec) {
+    if(spec.readPreference == null || !READ_PREFERENCE.matcher(spec.readPreference).matches()) {
+      throw new IllegalArgumentException("Invalid read preference '"+spec.readPreference+"'");
+    }
+    return spec.readPreference;
+  }
+
+  private static EnvVar secretEnv(String name, String key, String bindingSecretName) {
+    return new EnvVarBuilder()
+      .withName(name)
+      .withNewValueFrom()
+        .withNewSecretKeyRef(key, bindingSecretName, false)
+      .endValueFrom()
+    .build();
+  }
+}
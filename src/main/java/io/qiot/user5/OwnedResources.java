@@ -0,0 +1,166 @@
+package io.qiot.user5;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import io.fabric8.kubernetes.api.model.HasMetadata;
+import io.fabric8.kubernetes.api.model.apps.Deployment;
+import io.fabric8.kubernetes.api.model.apps.StatefulSet;
+import io.javaoperatorsdk.operator.api.config.informer.InformerConfiguration;
+import io.javaoperatorsdk.operator.api.reconciler.Constants;
+import io.javaoperatorsdk.operator.api.reconciler.EventSourceContext;
+import io.javaoperatorsdk.operator.processing.event.ResourceID;
+import io.javaoperatorsdk.operator.processing.event.source.EventSource;
+import io.javaoperatorsdk.operator.processing.event.source.IndexerResourceCache;
+import io.javaoperatorsdk.operator.processing.event.source.informer.InformerEventSource;
+import io.javaoperatorsdk.operator.processing.event.source.informer.Mappers;
+
+/**
+ * Informer caches for the objects a controller creates for its custom resources,
+ * one per resource type. Objects are selected by the managed-by label that
+ * createLabels puts on everything and mapped back to their owner through the
+ * owner reference set by createMetadata.
+ *
+ * Adding, deleting or changing the spec of an owned object triggers a reconcile of
+ * its owner, and so does a change in the replica counts of a StatefulSet or
+ * Deployment, which ends up in the owner's status. Other status-only updates do
+ * not.
+ *
+ * Objects in another namespace than their owner, e.g. {@link KafkaTopic}s, cannot
+ * have an owner reference; see {@link #withCrossNamespace}.
+ */
+public class OwnedResources<P extends HasMetadata> {
+
+  public static final String OWNER_NAME_LABEL = "user5.qiot.io/owner-name";
+  public static final String OWNER_NAMESPACE_LABEL = "user5.qiot.io/owner-namespace";
+
+  private final Map<Class<?>, InformerEventSource<?, P>> sources = new LinkedHashMap<>();
+  private final EventSourceContext<P> context;
+  private final String kind;
+  private final IndexerResourceCache<P> primaries;
+  private final List<Consumer<String>> ownerDeletedListeners = new CopyOnWriteArrayList<>();
+
+  @SafeVarargs
+  public OwnedResources(EventSourceContext<P> context, Class<? extends HasMetadata>... types) {
+    this.context = context;
+    this.primaries = context.getPrimaryCache();
+    this.kind = HasMetadata.getKind(context.getControllerConfiguration().getResourceClass());
+    for(var type : types) {
+      sources.put(type, informer(context, type, kind));
+    }
+  }
+
+  /**
+   * Adds an informer, over all namespaces, for objects that live outside their
+   * owner's namespace. They are mapped back to their owner through the
+   * {@link #OWNER_NAME_LABEL} and {@link #OWNER_NAMESPACE_LABEL} labels and are
+   * not garbage collected, so the owner has to delete them itself.
+   */
+  public OwnedResources<P> withCrossNamespace(Class<? extends HasMetadata> type) {
+    sources.put(type, crossNamespaceInformer(type));
+    return this;
+  }
+
+  private <R extends HasMetadata> InformerEventSource<R, P> crossNamespaceInformer(Class<R> type) {
+    return new InformerEventSource<>(InformerConfiguration.from(type)
+      .withNamespaces(Set.of(Constants.WATCH_ALL_NAMESPACES))
+      .withLabelSelector("app.kubernetes.io/managed-by="+kind)
+      .withSecondaryToPrimaryMapper(Mappers.fromLabel(OWNER_NAME_LABEL, OWNER_NAMESPACE_LABEL))
+      .withOnUpdateFilter(OwnedResources::specChanged)
+      .build(), context);
+  }
+
+  private <R extends HasMetadata> InformerEventSource<R, P> informer(
+      EventSourceContext<P> context, Class<R> type, String kind) {
+    return new InformerEventSource<>(InformerConfiguration.from(type, context)
+      .withLabelSelector("app.kubernetes.io/managed-by="+kind)
+      .withSecondaryToPrimaryMapper(Mappers.fromOwnerReference())
+      .withOnUpdateFilter((newResource, oldResource) -> specChanged(newResource, oldResource)
+        || !Objects.equals(replicaCounts(newResource), replicaCounts(oldResource)))
+      .withOnDeleteFilter((r, deletedFinalStateUnknown) -> {
+        ownerDeleted(r);
+        return true;
+      })
+      .build(), context);
+  }
+
+  private static boolean specChanged(HasMetadata newResource, HasMetadata oldResource) {
+    final var generation = newResource.getMetadata().getGeneration();
+    // Kinds without a generation, e.g. Service, always count as changed
+    return generation == null || !generation.equals(oldResource.getMetadata().getGeneration());
+  }
+
+  private static String replicaCounts(HasMetadata resource) {
+    if(resource instanceof StatefulSet && ((StatefulSet) resource).getStatus() != null) {
+      final var status = ((StatefulSet) resource).getStatus();
+      return status.getObservedGeneration()+"/"+status.getReadyReplicas()+"/"+status.getAvailableReplicas()+"/"
+        +status.getUpdatedReplicas();
+    }
+    if(resource instanceof Deployment && ((Deployment) resource).getStatus() != null) {
+      final var status = ((Deployment) resource).getStatus();
+      return status.getObservedGeneration()+"/"+status.getReadyReplicas()+"/"+status.getAvailableReplicas()+"/"
+        +status.getUpdatedReplicas();
+    }
+    return null;
+  }
+
+  /**
+   * Registers a callback for the uid of an owner that is gone, called when its
+   * owned objects are garbage collected, so per-owner state can be dropped.
+   */
+  public void onOwnerDeleted(Consumer<String> listener) {
+    ownerDeletedListeners.add(listener);
+  }
+
+  private void ownerDeleted(HasMetadata owned) {
+    for(var ref : owned.getMetadata().getOwnerReferences()) {
+      final var owner = primaries.get(new ResourceID(ref.getName(), owned.getMetadata().getNamespace()));
+      if(owner.isEmpty() || !ref.getUid().equals(owner.get().getMetadata().getUid())) {
+        ownerDeletedListeners.forEach(l -> l.accept(ref.getUid()));
+      }
+    }
+  }
+
+  public EventSource[] eventSources() {
+    return sources.values().toArray(new EventSource[0]);
+  }
+
+  @SuppressWarnings("unchecked")
+  public <R extends HasMetadata> InformerEventSource<R, P> source(Class<R> type) {
+    final var source = sources.get(type);
+    if(source == null) {
+      throw new IllegalArgumentException("No informer registered for "+type.getSimpleName());
+    }
+    return (InformerEventSource<R, P>) source;
+  }
+
+  public <R extends HasMetadata> List<R> list(Class<R> type, Predicate<R> predicate) {
+    return source(type).list(predicate).collect(Collectors.toList());
+  }
+
+  /** The owners, from the controller's cache */
+  public List<P> owners(Predicate<P> predicate) {
+    return primaries.list(predicate).collect(Collectors.toList());
+  }
+
+  /** Whether the owner named in the labels of an object outside its namespace still exists */
+  public boolean hasOwner(HasMetadata crossNamespace) {
+    final var labels = crossNamespace.getMetadata().getLabels();
+    if(labels == null || labels.get(OWNER_NAME_LABEL) == null) {
+      return false;
+    }
+    return primaries.get(new ResourceID(labels.get(OWNER_NAME_LABEL), labels.get(OWNER_NAMESPACE_LABEL))).isPresent();
+  }
+
+  public <R extends HasMetadata> Optional<R> get(Class<R> type, String namespace, String name) {
+    return source(type).get(new ResourceID(name, namespace));
+  }
+}
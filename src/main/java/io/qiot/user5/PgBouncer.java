@@ -0,0 +1,15 @@
+package io.qiot.user5;
+
+import com.fasterxml.jackson.annotation.JsonPropertyDescription;
+
+public class PgBouncer {
+
+    @JsonPropertyDescription("Run a PgBouncer pooler in transaction mode in front of PostgreSQL and hand its address to the services as PG_URL")
+    public boolean enabled = false;
+
+    @JsonPropertyDescription("Server connections per pooler replica, per database and user. Defaults to the sizing profile's connection budget divided by the replicas.")
+    public Integer defaultPoolSize;
+
+    @JsonPropertyDescription("Client connections each pooler replica accepts. Defaults to the sizing profile.")
+    public Integer maxClientConnections;
+}
@@ -0,0 +1,32 @@
+package io.qiot.user5;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonPropertyDescription;
+
+import io.fabric8.kubernetes.api.model.NodeAffinity;
+import io.fabric8.kubernetes.api.model.Toleration;
+
+public class Placement {
+
+    @JsonPropertyDescription("Spread the replicas of every service evenly across zones where the nodes allow it")
+    public boolean zoneSpread = true;
+
+    @JsonPropertyDescription("Node label the services are spread over")
+    public String zoneTopologyKey = "topology.kubernetes.io/zone";
+
+    @JsonPropertyDescription("Keep the datastore pods of the CR off each other's nodes: preferred, required or none. Required needs a node per datastore pod.")
+    public String datastoreAntiAffinity = "preferred";
+
+    @JsonPropertyDescription("Node labels the datastore pods must run on, e.g. of a node pool with local NVMe disks")
+    public Map<String, String> datastoreNodeSelector = new HashMap<>();
+
+    @JsonPropertyDescription("Node affinity of the datastore pods, in addition to datastoreNodeSelector")
+    public NodeAffinity datastoreNodeAffinity;
+
+    @JsonPropertyDescription("Tolerations of the datastore pods, e.g. for the taint of a dedicated node pool")
+    public List<Toleration> datastoreTolerations = new ArrayList<>();
+}
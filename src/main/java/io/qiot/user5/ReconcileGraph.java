@@ -0,0 +1,299 @@
+package io.qiot.user5;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import io.fabric8.kubernetes.api.model.HasMetadata;
+
+/**
+ * The component steps of a reconcile modelled as a DAG. A step depends on every
+ * step that writes one of the commonProperties keys it reads; steps without a
+ * path between them run concurrently, so a cold reconcile takes as long as the
+ * critical path instead of the sum of all steps.
+ *
+ * A step can also wait for other steps to report ready, e.g. a service for the
+ * datastore it connects to. Until then it and every step depending on it are
+ * held back, so the service is not rolled out only to crash-loop.
+ *
+ * When a run fails, the steps that succeeded and their commonProperties are
+ * kept, and the next run of the same generation resumes at the steps that
+ * failed or did not get to run. The steps writing what those read run again
+ * too, so they do not continue with values that went stale in the meantime,
+ * e.g. from a binding secret recreated between the attempts.
+ */
+public class ReconcileGraph<P extends HasMetadata> {
+
+  /**
+   * Gets its own copy of commonProperties, which it may change and return, or
+   * return another map. Null keys and values are rejected.
+   */
+  @FunctionalInterface
+  public interface Step<P> {
+    Map<String, String> reconcile(P resource, Map<String, String> commonProperties);
+  }
+
+  @FunctionalInterface
+  public interface ReadinessCheck<P> {
+    boolean isReady(P resource, String step);
+  }
+
+  private final Map<String, Node<P>> nodes = new LinkedHashMap<>();
+  private final Map<String, String> writers = new HashMap<>();
+  private final Map<String, LastRun> lastRuns = new ConcurrentHashMap<>();
+  private final Map<String, PartialRun> partialRuns = new ConcurrentHashMap<>();
+  private final ReconcileMetrics metrics;
+  private final ReadinessCheck<P> readiness;
+
+  public ReconcileGraph(ReconcileMetrics metrics, ReadinessCheck<P> readiness) {
+    this.metrics = metrics;
+    this.readiness = readiness;
+  }
+
+  /**
+   * Adds a step. Every key in reads must be written by a step added before, which
+   * keeps the graph acyclic by construction.
+   */
+  public ReconcileGraph<P> add(String name, Set<String> reads, Set<String> writes, Step<P> step) {
+    if(nodes.containsKey(name)) {
+      throw new IllegalArgumentException("Duplicate step "+name);
+    }
+    final var dependsOn = new ArrayList<String>();
+    for(var key : reads) {
+      final var writer = writers.get(key);
+      if(writer == null) {
+        throw new IllegalArgumentException("Step "+name+" reads "+key+" which no earlier step writes");
+      }
+      if(!dependsOn.contains(writer)) {
+        dependsOn.add(writer);
+      }
+    }
+    for(var key : writes) {
+      writers.put(key, name);
+    }
+    nodes.put(name, new Node<>(name, List.copyOf(dependsOn), List.of(), Set.copyOf(reads), Set.copyOf(writes), step));
+    return this;
+  }
+
+  /**
+   * Holds the step back until every one of readySteps, which it then also depends
+   * on, is ready.
+   */
+  public ReconcileGraph<P> waitFor(String step, String... readySteps) {
+    final var node = node(step);
+    final var dependsOn = new ArrayList<>(node.dependsOn);
+    final var waitsFor = new ArrayList<>(node.waitsFor);
+    for(var ready : readySteps) {
+      node(ready);
+      if(!dependsOn.contains(ready)) {
+        dependsOn.add(ready);
+      }
+      waitsFor.add(ready);
+    }
+    nodes.put(step, new Node<>(step, List.copyOf(dependsOn), List.copyOf(waitsFor), node.reads, node.writes,
+      node.step));
+    return this;
+  }
+
+  /**
+   * Runs all steps on the executor, each one as soon as its dependencies are done.
+   * A run without held back steps is remembered for the resource's generation so
+   * that {@link #repair} can later re-run single steps.
+   *
+   * @return the steps held back because a step they wait for is not ready
+   */
+  public Set<String> run(P resource, Executor executor) {
+    final var metadata = resource.getMetadata();
+    final var partial = partialRuns.remove(metadata.getUid());
+    final var resume = partial != null && Objects.equals(partial.generation, metadata.getGeneration());
+    final var commonProperties = new ConcurrentHashMap<String, String>(resume ? partial.commonProperties : Map.of());
+    final Set<String> done = ConcurrentHashMap.newKeySet();
+    final var steps = new LinkedHashSet<>(nodes.keySet());
+    if(resume) {
+      done.addAll(partial.done);
+      steps.removeAll(partial.done);
+      steps.addAll(producers(steps));
+      done.removeAll(steps);
+    }
+    final Set<String> heldBack;
+    try {
+      heldBack = execute(resource, executor, steps, commonProperties, done);
+    }
+    catch(RuntimeException e) {
+      partialRuns.put(metadata.getUid(),
+        new PartialRun(metadata.getGeneration(), Set.copyOf(done), Map.copyOf(commonProperties)));
+      throw e;
+    }
+    if(heldBack.isEmpty()) {
+      lastRuns.put(metadata.getUid(), new LastRun(metadata.getGeneration(), Map.copyOf(commonProperties)));
+    }
+    return heldBack;
+  }
+
+  /**
+   * Re-runs only the given steps, with the commonProperties remembered from the
+   * last full run. Steps outside the set are treated as done.
+   *
+   * @return the steps held back, empty optional if there is no full run of the
+   *         current generation to start from
+   */
+  public Optional<Set<String>> repair(P resource, Executor executor, Set<String> steps) {
+    final var metadata = resource.getMetadata();
+    final var lastRun = lastRuns.get(metadata.getUid());
+    if(lastRun == null || !Objects.equals(lastRun.generation, metadata.getGeneration())) {
+      return Optional.empty();
+    }
+    return Optional.of(execute(resource, executor, steps, new ConcurrentHashMap<>(lastRun.commonProperties),
+      ConcurrentHashMap.newKeySet()));
+  }
+
+  public void forget(String uid) {
+    partialRuns.remove(uid);
+    lastRuns.remove(uid);
+  }
+
+  /** The commonProperties keys the step reads */
+  public Set<String> reads(String step) {
+    return node(step).reads;
+  }
+
+  /** The commonProperties keys the step writes */
+  public Set<String> writes(String step) {
+    return node(step).writes;
+  }
+
+  /** The steps writing a key the given steps read, and in turn the ones writing what those read */
+  private Set<String> producers(Set<String> steps) {
+    final var producers = new LinkedHashSet<String>();
+    final var pending = new ArrayList<>(steps);
+    while(!pending.isEmpty()) {
+      final var node = node(pending.remove(pending.size()-1));
+      for(var dependency : node.dependsOn) {
+        if(!Collections.disjoint(node(dependency).writes, node.reads) && !steps.contains(dependency)
+            && producers.add(dependency)) {
+          pending.add(dependency);
+        }
+      }
+    }
+    return producers;
+  }
+
+  private Node<P> node(String step) {
+    final var node = nodes.get(step);
+    if(node == null) {
+      throw new IllegalArgumentException("Unknown step "+step);
+    }
+    return node;
+  }
+
+  // The first failure is rethrown once every step that could still run has finished
+  private Set<String> execute(P resource, Executor executor, Set<String> steps,
+      Map<String, String> commonProperties, Set<String> done) {
+    final Map<String, CompletableFuture<Void>> futures = new HashMap<>();
+    final Set<String> heldBack = ConcurrentHashMap.newKeySet();
+
+    for(var node : nodes.values()) {
+      if(!steps.contains(node.name)) {
+        continue;
+      }
+      final var deps = node.dependsOn.stream().map(futures::get).filter(Objects::nonNull)
+        .toArray(CompletableFuture<?>[]::new);
+      final var future = CompletableFuture.allOf(deps).thenRunAsync(() -> {
+        if(node.dependsOn.stream().anyMatch(heldBack::contains)
+            || node.waitsFor.stream().anyMatch(s -> !readiness.isReady(resource, s))) {
+          heldBack.add(node.name);
+          return;
+        }
+        final var sample = metrics.start();
+        try {
+          final var before = Map.copyOf(commonProperties);
+          final var result = node.step.reconcile(resource, new HashMap<>(before));
+          for(var e : result.entrySet()) {
+            if(e.getKey() == null || e.getValue() == null) {
+              throw new IllegalStateException("Step "+node.name+" set "+e.getKey()+" to "+e.getValue()
+                +", commonProperties take no nulls");
+            }
+          }
+          // Only what the step changed, so unchanged copies never overwrite a concurrent step's writes
+          for(var e : result.entrySet()) {
+            if(!e.getValue().equals(before.get(e.getKey()))) {
+              commonProperties.put(e.getKey(), e.getValue());
+            }
+          }
+          done.add(node.name);
+        }
+        catch(RuntimeException e) {
+          metrics.error(resource, node.name);
+          throw e;
+        }
+        finally {
+          metrics.componentReconciled(resource, node.name, sample);
+        }
+      }, executor);
+      futures.put(node.name, future);
+    }
+
+    try {
+      CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0])).join();
+    }
+    catch(CompletionException e) {
+      if(e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+    return heldBack;
+  }
+
+  private static class LastRun {
+    final Long generation;
+    final Map<String, String> commonProperties;
+
+    LastRun(Long generation, Map<String, String> commonProperties) {
+      this.generation = generation;
+      this.commonProperties = commonProperties;
+    }
+  }
+
+  private static class PartialRun {
+    final Long generation;
+    final Set<String> done;
+    final Map<String, String> commonProperties;
+
+    PartialRun(Long generation, Set<String> done, Map<String, String> commonProperties) {
+      this.generation = generation;
+      this.done = done;
+      this.commonProperties = commonProperties;
+    }
+  }
+
+  private static class Node<P> {
+    final String name;
+    final List<String> dependsOn;
+    final List<String> waitsFor;
+    final Set<String> reads;
+    final Set<String> writes;
+    final Step<P> step;
+
+    Node(String name, List<String> dependsOn, List<String> waitsFor, Set<String> reads, Set<String> writes,
+        Step<P> step) {
+      this.name = name;
+      this.dependsOn = dependsOn;
+      this.waitsFor = waitsFor;
+      this.reads = reads;
+      this.writes = writes;
+      this.step = step;
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package io.qiot.user5;
+
+import java.time.Duration;
+
+import javax.inject.Singleton;
+
+import io.fabric8.kubernetes.api.model.HasMetadata;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Reconcile metrics on the Prometheus registry, tagged by CR kind and, where it
+ * applies, component (postgres, influxdb, mongo, registration, plant-manager,
+ * ...). The counters are also tagged by namespace; the timers are not, since each
+ * publishes a histogram of some 70 buckets and a fleet has a namespace per CR.
+ *
+ * <ul>
+ * <li>qiot.reconcile: timer per reconcile, with result success or error</li>
+ * <li>qiot.reconcile.component: timer per component step</li>
+ * <li>qiot.api.calls: counter of API server calls by verb</li>
+ * <li>qiot.reconcile.outcome: counter of owned objects left alone (noop) or written (write)</li>
+ * <li>qiot.reconcile.errors: counter of failed component steps</li>
+ * <li>qiot.component.time.to.ready: timer from a component's rollout start until it is ready</li>
+ * </ul>
+ */
+@Singleton
+public class ReconcileMetrics {
+
+  private final MeterRegistry registry;
+
+  public ReconcileMetrics(MeterRegistry registry) {
+    this.registry = registry;
+  }
+
+  public Timer.Sample start() {
+    return Timer.start(registry);
+  }
+
+  public void reconciled(HasMetadata resource, Timer.Sample sample, boolean failed) {
+    sample.stop(Timer.builder("qiot.reconcile")
+      .description("Time to reconcile one custom resource")
+      .tags("kind", resource.getKind(), "result", failed ? "error" : "success")
+      .publishPercentileHistogram()
+      .register(registry));
+  }
+
+  public void componentReconciled(HasMetadata resource, String component, Timer.Sample sample) {
+    sample.stop(Timer.builder("qiot.reconcile.component")
+      .description("Time to reconcile one component of a custom resource")
+      .tags("kind", resource.getKind(), "component", component)
+      .publishPercentileHistogram()
+      .register(registry));
+  }
+
+  public void apiCall(HasMetadata resource, String component, String verb) {
+    Counter.builder("qiot.api.calls")
+      .description("Calls made to the API server")
+      .tags("kind", resource.getKind(), "namespace", resource.getMetadata().getNamespace(), "component", component,
+        "verb", verb)
+      .register(registry)
+      .increment();
+  }
+
+  public void outcome(HasMetadata resource, String component, boolean written) {
+    Counter.builder("qiot.reconcile.outcome")
+      .description("Owned objects that were already in sync (noop) or had to be written (write)")
+      .tags("kind", resource.getKind(), "namespace", resource.getMetadata().getNamespace(), "component", component,
+        "outcome", written ? "write" : "noop")
+      .register(registry)
+      .increment();
+  }
+
+  public void timeToReady(HasMetadata resource, String component, Duration duration) {
+    Timer.builder("qiot.component.time.to.ready")
+      .description("Time from a new generation of a component's StatefulSet or Deployment until it is ready")
+      .tags("kind", resource.getKind(), "component", component)
+      .publishPercentileHistogram()
+      .register(registry)
+      .record(duration);
+  }
+
+  public void error(HasMetadata resource, String component) {
+    Counter.builder("qiot.reconcile.errors")
+      .description("Component steps that failed")
+      .tags("kind", resource.getKind(), "namespace", resource.getMetadata().getNamespace(), "component", component)
+      .register(registry)
+      .increment();
+  }
+}
@@ -0,0 +1,297 @@
+package io.qiot.user5;
+
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Singleton;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import io.fabric8.kubernetes.api.model.HasMetadata;
+import io.fabric8.kubernetes.api.model.coordination.v1.LeaseBuilder;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.extended.leaderelection.LeaderCallbacks;
+import io.fabric8.kubernetes.client.extended.leaderelection.LeaderElectionConfigBuilder;
+import io.fabric8.kubernetes.client.extended.leaderelection.resourcelock.LeaseLock;
+import io.javaoperatorsdk.operator.api.reconciler.EventSourceContext;
+import io.javaoperatorsdk.operator.processing.event.ResourceID;
+import io.javaoperatorsdk.operator.processing.event.source.EventSource;
+import io.javaoperatorsdk.operator.processing.event.source.inbound.SimpleInboundEventSource;
+import io.quarkus.logging.Log;
+
+/**
+ * Decides which custom resources this operator replica reconciles, set by
+ * qiot.operator.coordination:
+ *
+ * <ul>
+ * <li>none: this replica reconciles everything it watches</li>
+ * <li>shards: replicas split the custom resources with consistent hashing on
+ * namespace/name. Each replica renews its own Lease, labelled
+ * {@link #SHARD_LABEL}, and the members are the replicas whose Lease has not
+ * expired. When a replica dies its Lease expires and its resources move to the
+ * survivors.</li>
+ * <li>leader: one replica, elected through the {@link #LEADER_LEASE} Lease,
+ * reconciles everything and the others stand by.</li>
+ * </ul>
+ *
+ * Every replica keeps watching and caching all resources, only reconciles are
+ * skipped, so a resource that moves to a replica, or a standby that becomes the
+ * leader, is reconciled right away from a warm cache instead of after a relist.
+ */
+@Singleton
+public class ReconcileOwnership {
+
+  public static final String SHARD_LABEL = "user5.qiot.io/operator-shard";
+  public static final String LEADER_LEASE = "qiot-operator-leader";
+  static final int VIRTUAL_NODES = 64;
+
+  enum Coordination { NONE, SHARDS, LEADER }
+
+  private final KubernetesClient client;
+  private final Coordination coordination;
+  private final String identity;
+  private final String leaseNamespace;
+  private final Duration leaseDuration;
+  private final Duration renewInterval;
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+  private ScheduledExecutorService scheduler;
+  private Thread election;
+  private volatile boolean leader;
+  private volatile boolean stopped;
+  private volatile HashRing ring = new HashRing(List.of(), VIRTUAL_NODES);
+  private volatile ZonedDateTime lastRenewed;
+
+  public ReconcileOwnership(KubernetesClient client,
+      @ConfigProperty(name = "qiot.operator.coordination", defaultValue = "none") String coordination,
+      @ConfigProperty(name = "qiot.operator.identity") Optional<String> identity,
+      @ConfigProperty(name = "qiot.operator.lease-namespace") Optional<String> leaseNamespace,
+      @ConfigProperty(name = "qiot.operator.lease-duration", defaultValue = "15s") Duration leaseDuration,
+      @ConfigProperty(name = "qiot.operator.lease-renew-interval", defaultValue = "5s") Duration renewInterval) {
+    this.client = client;
+    this.coordination = Coordination.valueOf(coordination.toUpperCase(Locale.ROOT));
+    this.identity = identity.or(() -> Optional.ofNullable(System.getenv("HOSTNAME")))
+      .orElseGet(() -> UUID.randomUUID().toString());
+    this.leaseNamespace = leaseNamespace.or(() -> Optional.ofNullable(client != null ? client.getNamespace() : null))
+      .orElse("default");
+    this.leaseDuration = leaseDuration;
+    this.renewInterval = renewInterval;
+    if(this.coordination == Coordination.SHARDS) {
+      this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        final var thread = new Thread(r, "qiot-coordination");
+        thread.setDaemon(true);
+        return thread;
+      });
+      scheduler.scheduleWithFixedDelay(this::renewShardLease, 0, renewInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+    else if(this.coordination == Coordination.LEADER) {
+      this.election = new Thread(this::elect, "qiot-leader-election");
+      election.setDaemon(true);
+      election.start();
+    }
+  }
+
+  public String getIdentity() {
+    return identity;
+  }
+
+  /** Whether this replica reconciles the resource */
+  public boolean owns(HasMetadata resource) {
+    if(coordination == Coordination.NONE) {
+      return true;
+    }
+    if(coordination == Coordination.LEADER) {
+      return leader;
+    }
+    return identity.equals(ring.owner(key(resource)));
+  }
+
+  /**
+   * An event source that triggers a reconcile of every primary this replica has
+   * just become the owner of.
+   */
+  public <P extends HasMetadata> EventSource eventSource(EventSourceContext<P> context) {
+    final var source = new SimpleInboundEventSource();
+    final var primaries = context.getPrimaryCache();
+    listeners.add(ownedBefore -> primaries.list(p -> owns(p) && !ownedBefore.test(p))
+      .forEach(p -> source.propagateEvent(ResourceID.fromResource(p))));
+    return source;
+  }
+
+  private static String key(HasMetadata resource) {
+    return resource.getMetadata().getNamespace()+"/"+resource.getMetadata().getName();
+  }
+
+  private String leaseName(String member) {
+    return "qiot-operator-shard-"+member;
+  }
+
+  private void renewShardLease() {
+    final var now = ZonedDateTime.now(ZoneOffset.UTC);
+    try {
+      client.leases().inNamespace(leaseNamespace).createOrReplace(new LeaseBuilder()
+        .withNewMetadata()
+          .withName(leaseName(identity))
+          .withNamespace(leaseNamespace)
+          .addToLabels(SHARD_LABEL, "member")
+        .endMetadata()
+        .withNewSpec()
+          .withHolderIdentity(identity)
+          .withLeaseDurationSeconds((int) leaseDuration.toSeconds())
+          .withRenewTime(now)
+        .endSpec()
+      .build());
+      lastRenewed = now;
+
+      final var members = new TreeSet<String>();
+      members.add(identity);
+      for(var lease : client.leases().inNamespace(leaseNamespace).withLabel(SHARD_LABEL).list().getItems()) {
+        final var spec = lease.getSpec();
+        if(spec == null || spec.getHolderIdentity() == null || spec.getRenewTime() == null
+            || spec.getLeaseDurationSeconds() == null) {
+          continue;
+        }
+        if(spec.getRenewTime().plusSeconds(spec.getLeaseDurationSeconds()).isAfter(now)) {
+          members.add(spec.getHolderIdentity());
+        }
+        else {
+          // Left behind by a replica that is gone
+          client.leases().inNamespace(leaseNamespace).withName(lease.getMetadata().getName()).delete();
+        }
+      }
+      updateRing(members);
+    }
+    catch(KubernetesClientException e) {
+      Log.warn("Unable to renew the shard lease of "+identity, e);
+      if(lastRenewed != null && lastRenewed.plus(leaseDuration).isBefore(now)) {
+        // The other replicas see this one as gone and have taken over its resources
+        updateRing(Set.of());
+      }
+    }
+  }
+
+  private void elect() {
+    while(!stopped) {
+      try {
+        // Returns once leadership is lost, after which this replica stands by and runs for it again
+        client.leaderElector().withConfig(new LeaderElectionConfigBuilder()
+          .withName("qiot-operator")
+          .withLock(new LeaseLock(leaseNamespace, LEADER_LEASE, identity))
+          .withLeaseDuration(leaseDuration)
+          .withRenewDeadline(leaseDuration.multipliedBy(2).dividedBy(3))
+          .withRetryPeriod(renewInterval)
+          .withLeaderCallbacks(new LeaderCallbacks(this::startLeading, this::stopLeading,
+            newLeader -> Log.info("Operator leader is now "+newLeader)))
+          .build()).build().run();
+      }
+      catch(RuntimeException e) {
+        Log.warn("Leader election of "+identity+" failed", e);
+      }
+      leader = false;
+      try {
+        Thread.sleep(renewInterval.toMillis());
+      }
+      catch(InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Lets a standby take over right away instead of after the lease expired.
+   * fabric8 standbys judge expiry by their own lease duration rather than the
+   * one in the Lease, so the renew time is moved back as well.
+   */
+  private void releaseLeaderLease() {
+    try {
+      final var lease = client.leases().inNamespace(leaseNamespace).withName(LEADER_LEASE).get();
+      if(lease == null || lease.getSpec() == null || !identity.equals(lease.getSpec().getHolderIdentity())) {
+        return;
+      }
+      lease.getSpec().setLeaseDurationSeconds(1);
+      lease.getSpec().setRenewTime(ZonedDateTime.now(ZoneOffset.UTC).minus(leaseDuration));
+      // Replaced rather than edited, the client cannot diff the Lease's ZonedDateTime fields
+      client.leases().inNamespace(leaseNamespace).withName(LEADER_LEASE)
+        .lockResourceVersion(lease.getMetadata().getResourceVersion()).replace(lease);
+    }
+    catch(KubernetesClientException e) {
+      Log.debug("Unable to release the leader lease of "+identity, e);
+    }
+  }
+
+  private void startLeading() {
+    Log.info(identity+" is now leading, reconciling all resources");
+    leader = true;
+    notifyListeners(p -> false);
+  }
+
+  private void stopLeading() {
+    leader = false;
+    Log.info(identity+" stopped leading and stands by");
+  }
+
+  private void updateRing(Collection<String> members) {
+    final var previous = ring;
+    if(previous.getMembers().equals(List.copyOf(members))) {
+      return;
+    }
+    ring = new HashRing(members, VIRTUAL_NODES);
+    Log.info("Operator shard members are now "+members);
+    notifyListeners(p -> identity.equals(previous.owner(key(p))));
+  }
+
+  private void notifyListeners(Predicate<HasMetadata> ownedBefore) {
+    for(var listener : listeners) {
+      listener.ownershipChanged(ownedBefore);
+    }
+  }
+
+  @PreDestroy
+  void shutdown() {
+    stopped = true;
+    final var wasLeader = leader;
+    leader = false;
+    if(election != null) {
+      election.interrupt();
+      try {
+        election.join(1000);
+      }
+      catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if(wasLeader) {
+        releaseLeaderLease();
+      }
+    }
+    if(scheduler == null) {
+      return;
+    }
+    scheduler.shutdownNow();
+    try {
+      // Lets the other replicas take over right away instead of after the lease expired
+      client.leases().inNamespace(leaseNamespace).withName(leaseName(identity)).delete();
+    }
+    catch(KubernetesClientException e) {
+      Log.debug("Unable to delete the shard lease of "+identity, e);
+    }
+  }
+
+  @FunctionalInterface
+  private interface Listener {
+    void ownershipChanged(Predicate<HasMetadata> ownedBefore);
+  }
+}
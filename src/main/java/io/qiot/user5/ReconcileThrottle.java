@@ -0,0 +1,154 @@
+package io.qiot.user5;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Paces reconciles so that an API server hiccup does not turn into a retry storm
+ * across hundreds of CRs.
+ *
+ * <ul>
+ * <li>A token bucket shared by all CRs caps how many reconciles that write start
+ * per second, with bursts up to qiot.operator.reconcile-burst. Once it is empty a
+ * CR reserves the next free slot and waits for it, so the waits grow with the
+ * backlog instead of every rejected CR coming back at once.</li>
+ * <li>A CR whose reconcile failed is retried with exponential backoff, each delay
+ * jittered between half and all of its nominal value so that CRs which failed
+ * together do not retry together.</li>
+ * </ul>
+ *
+ * Callers reschedule instead of blocking, so no reconcile thread waits here.
+ */
+@Singleton
+public class ReconcileThrottle {
+
+  private final double ratePerSecond;
+  private final double burst;
+  private final Duration initialInterval;
+  private final Duration maxInterval;
+  private final double multiplier;
+  private final LongSupplier nanoTime;
+  // primary uid -> failed attempts and when the next one may start
+  private final Map<String, Backoff> backoffs = new ConcurrentHashMap<>();
+  // primary uid -> when its reserved slot starts, guarded by this
+  private final Map<String, Long> reservations = new HashMap<>();
+  // negative while slots are reserved ahead of the refill
+  private double tokens;
+  private long refilledAt;
+
+  @Inject
+  public ReconcileThrottle(
+      @ConfigProperty(name = "qiot.operator.reconcile-rate", defaultValue = "20") double ratePerSecond,
+      @ConfigProperty(name = "qiot.operator.reconcile-burst", defaultValue = "50") int burst,
+      @ConfigProperty(name = "qiot.operator.retry.initial-interval", defaultValue = "1s") Duration initialInterval,
+      @ConfigProperty(name = "qiot.operator.retry.max-interval", defaultValue = "5m") Duration maxInterval,
+      @ConfigProperty(name = "qiot.operator.retry.multiplier", defaultValue = "2") double multiplier) {
+    this(ratePerSecond, burst, initialInterval, maxInterval, multiplier, System::nanoTime);
+  }
+
+  /** With another time source than System.nanoTime, for tests */
+  ReconcileThrottle(double ratePerSecond, int burst, Duration initialInterval, Duration maxInterval, double multiplier,
+      LongSupplier nanoTime) {
+    this.ratePerSecond = ratePerSecond;
+    this.burst = Math.max(1, burst);
+    this.initialInterval = initialInterval;
+    this.maxInterval = maxInterval;
+    this.multiplier = Math.max(1, multiplier);
+    this.nanoTime = nanoTime;
+    this.tokens = this.burst;
+    this.refilledAt = nanoTime.getAsLong();
+  }
+
+  /**
+   * Lets a reconcile of the CR start unless it is still backing off. One that
+   * writes takes a token, or reserves the next free slot when the bucket is empty.
+   *
+   * @param writes false for a resync of an applied generation with nothing drifted,
+   * which only reads caches and is not rate limited
+   * @return empty if the reconcile may start, otherwise how long to wait
+   */
+  public Optional<Duration> admit(String uid, boolean writes) {
+    final var backoff = backoffs.get(uid);
+    if(backoff != null) {
+      final var remaining = backoff.retryAt - nanoTime.getAsLong();
+      if(remaining > 0) {
+        return Optional.of(Duration.ofNanos(remaining));
+      }
+    }
+    if(!writes || ratePerSecond <= 0) {
+      return Optional.empty();
+    }
+    synchronized(this) {
+      final var now = nanoTime.getAsLong();
+      final var slot = reservations.remove(uid);
+      if(slot != null) {
+        // Paid for when it was reserved; rescheduling has millisecond precision
+        if(slot - now <= TimeUnit.MILLISECONDS.toNanos(1)) {
+          return Optional.empty();
+        }
+        reservations.put(uid, slot);
+        return Optional.of(Duration.ofNanos(slot - now));
+      }
+      tokens = Math.min(burst, tokens + (now - refilledAt) / 1e9 * ratePerSecond);
+      refilledAt = now;
+      tokens--;
+      if(tokens >= 0) {
+        return Optional.empty();
+      }
+      final var wait = (long) (-tokens / ratePerSecond * 1e9);
+      reservations.put(uid, now + wait);
+      return Optional.of(Duration.ofNanos(wait));
+    }
+  }
+
+  /** @return the delay before the CR's next attempt */
+  public Duration failed(String uid) {
+    final var backoff = backoffs.compute(uid, (key, previous) -> {
+      final var attempts = previous != null ? previous.attempts + 1 : 1;
+      final var nominal = Math.min(maxInterval.toNanos(),
+        initialInterval.toNanos() * Math.pow(multiplier, attempts - 1));
+      final var delay = jitter(Duration.ofNanos((long) nominal));
+      return new Backoff(attempts, delay, nanoTime.getAsLong() + delay.toNanos());
+    });
+    return backoff.delay;
+  }
+
+  public void succeeded(String uid) {
+    backoffs.remove(uid);
+  }
+
+  public void forget(String uid) {
+    backoffs.remove(uid);
+    synchronized(this) {
+      reservations.remove(uid);
+    }
+  }
+
+  private static Duration jitter(Duration delay) {
+    final var half = delay.toNanos() / 2;
+    return Duration.ofNanos(half + ThreadLocalRandom.current().nextLong(half + 1));
+  }
+
+  private static class Backoff {
+    final int attempts;
+    final Duration delay;
+    final long retryAt;
+
+    Backoff(int attempts, Duration delay, long retryAt) {
+      this.attempts = attempts;
+      this.delay = delay;
+      this.retryAt = retryAt;
+    }
+  }
+}
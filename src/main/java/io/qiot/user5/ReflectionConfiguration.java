@@ -0,0 +1,23 @@
+package io.qiot.user5;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+/**
+ * The classes Jackson reads and writes the CRs with, for the native image. The
+ * operator SDK registers the Datacenter and Factory classes themselves, but not
+ * every nested spec type, nor KafkaTopic, which is only watched as a secondary
+ * resource. A class missing here only shows at runtime, as fields lost or a
+ * failed deserialization. Add new spec and status classes to the list.
+ */
+@RegisterForReflection(targets = {
+  Datacenter.class, DatacenterSpec.class, DatacenterStatus.class,
+  Factory.class, FactorySpec.class, FactoryStatus.class,
+  ComponentStatus.class,
+  RegistrationService.class, PlantManagerService.class, GlobalProductLineService.class, EventCollectorService.class,
+  FactoryFacilityManagerService.class, FactoryProductLineService.class, FactoryProductionValidatorService.class,
+  SizingOverride.class, LagAutoscaling.class, PgBouncer.class, InfluxDB.class, InfluxDBRollup.class, MongoDB.class,
+  DatastoreVolume.class, DatastoreStorage.class, Placement.class,
+  KafkaTopic.class, KafkaTopicSpec.class
+})
+public class ReflectionConfiguration {
+}
@@ -0,0 +1,298 @@
+package io.qiot.user5;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import io.fabric8.kubernetes.api.model.HasMetadata;
+import io.fabric8.kubernetes.api.model.ObjectMetaBuilder;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.utils.Serialization;
+import io.javaoperatorsdk.operator.processing.event.ResourceID;
+import io.javaoperatorsdk.operator.processing.event.source.informer.InformerEventSource;
+
+/**
+ * Writes desired objects only when they differ from what is in the informer cache,
+ * by default through {@link ServerSideApply}.
+ *
+ * Every desired object is hashed and the hash stored in the {@link #SPEC_HASH_ANNOTATION}
+ * annotation. An object is written when the cached live object is missing, carries
+ * another hash, or has drifted since the operator last wrote it. Drift is tracked in
+ * memory through the live object's generation (resourceVersion for kinds without
+ * one), so a resync only costs cache reads. An object this process has not written
+ * yet, e.g. after a restart, is written once even if its hash matches: an edit that
+ * left the annotation alone, possibly made while the operator was down, would look
+ * in sync otherwise.
+ */
+public class ResourceApplier<P extends HasMetadata> {
+
+  public static final String SPEC_HASH_ANNOTATION = "user5.qiot.io/spec-hash";
+
+  private static final ObjectMapper HASH_MAPPER = Serialization.jsonMapper().copy()
+    .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+
+  private final KubernetesClient client;
+  private final OwnedResources<P> owned;
+  private final ServerSideApply serverSideApply;
+  private final ReconcileMetrics metrics;
+  // primary uid -> owned object -> component and generation (or resourceVersion) last seen in sync
+  private final Map<String, Map<OwnedKey, Tracked>> inSync = new ConcurrentHashMap<>();
+
+  public ResourceApplier(KubernetesClient client, OwnedResources<P> owned, ServerSideApply serverSideApply,
+      ReconcileMetrics metrics) {
+    this.client = client;
+    this.owned = owned;
+    this.serverSideApply = serverSideApply;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Applies the desired object unless the cached live object already matches it.
+   *
+   * @return true if the object was written to the API server
+   */
+  public boolean apply(P primary, String component, HasMetadata desired) {
+    return applyAll(primary, component, List.of(desired)) > 0;
+  }
+
+  /**
+   * Applies the desired objects of one component. Objects that match the cache
+   * are skipped; with server-side apply the remaining ones are sent back-to-back
+   * without reading them first, otherwise they are created or replaced in turn.
+   *
+   * @return the number of objects written to the API server
+   */
+  public int applyAll(P primary, String component, List<? extends HasMetadata> desired) {
+    final var known = inSync.computeIfAbsent(primary.getMetadata().getUid(), uid -> new ConcurrentHashMap<>());
+    final var changed = new ArrayList<Change>();
+    for(var d : desired) {
+      final var hash = annotate(d);
+
+      final var key = OwnedKey.of(d);
+      final var live = owned.get(key.type, key.namespace, key.name);
+      if(live.isPresent() && hash.equals(specHash(live.get()))) {
+        final var lastSeen = known.get(key);
+        final var current = driftToken(live.get());
+        if(lastSeen != null && lastSeen.token.equals(current)) {
+          known.put(key, new Tracked(component, current));
+          metrics.outcome(primary, component, false);
+          continue;
+        }
+      }
+      changed.add(new Change(key, d, live.orElse(null)));
+    }
+
+    if(serverSideApply.isEnabled()) {
+      final var pending = new ArrayList<CompletableFuture<? extends HasMetadata>>();
+      for(var c : changed) {
+        pending.add(serverSideApply.applyAsync(c.desired));
+        metrics.apiCall(primary, component, "patch");
+      }
+      for(int i = 0; i < changed.size(); i++) {
+        written(primary, known, component, changed.get(i), join(pending.get(i)));
+      }
+    }
+    else {
+      for(var c : changed) {
+        written(primary, known, component, c, client.resource(c.desired).createOrReplace());
+        metrics.apiCall(primary, component, "createOrReplace");
+      }
+    }
+    return changed.size();
+  }
+
+  /**
+   * Deletes an owned object that is no longer desired, if the cache has it.
+   *
+   * @return true if a delete was sent to the API server
+   */
+  public boolean delete(P primary, String component, Class<? extends HasMetadata> type, String name) {
+    final var namespace = primary.getMetadata().getNamespace();
+    final var live = owned.get(type, namespace, name);
+    if(live.isEmpty()) {
+      return false;
+    }
+    client.resource(live.get()).delete();
+    metrics.apiCall(primary, component, "delete");
+    final var known = inSync.get(primary.getMetadata().getUid());
+    if(known != null) {
+      known.remove(new OwnedKey(type, namespace, name));
+    }
+    return true;
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private void written(P primary, Map<OwnedKey, Tracked> known, String component, Change change, HasMetadata written) {
+    final InformerEventSource source = owned.source(change.key.type);
+    if(change.live != null) {
+      source.handleRecentResourceUpdate(ResourceID.fromResource(primary), written, change.live);
+    }
+    else {
+      source.handleRecentResourceCreate(ResourceID.fromResource(primary), written);
+    }
+    known.put(change.key, new Tracked(component, driftToken(written)));
+    metrics.outcome(primary, component, true);
+  }
+
+  private static HasMetadata join(CompletableFuture<? extends HasMetadata> future) {
+    try {
+      return future.join();
+    }
+    catch(CompletionException e) {
+      if(e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * The components with an owned object that was deleted or changed since it was
+   * last applied. Empty optional if nothing has been applied for this primary yet,
+   * e.g. after an operator restart.
+   */
+  public Optional<Set<String>> driftedComponents(P primary) {
+    final var known = inSync.get(primary.getMetadata().getUid());
+    if(known == null || known.isEmpty()) {
+      return Optional.empty();
+    }
+    final var drifted = new HashSet<String>();
+    for(var e : known.entrySet()) {
+      final var live = owned.get(e.getKey().type, e.getKey().namespace, e.getKey().name);
+      if(live.isEmpty() || !e.getValue().token.equals(driftToken(live.get()))) {
+        drifted.add(e.getValue().component);
+      }
+    }
+    return Optional.of(drifted);
+  }
+
+  /**
+   * The cached live objects of the given kinds per component, for the objects
+   * applied for this primary, in component order. A component
+   * whose object is missing from the cache maps to an empty list.
+   */
+  public Map<String, List<HasMetadata>> liveByComponent(P primary, Set<Class<? extends HasMetadata>> types) {
+    final var result = new TreeMap<String, List<HasMetadata>>();
+    final var known = inSync.get(primary.getMetadata().getUid());
+    if(known == null) {
+      return result;
+    }
+    for(var e : known.entrySet()) {
+      if(!types.contains(e.getKey().type)) {
+        continue;
+      }
+      final var objects = result.computeIfAbsent(e.getValue().component, c -> new ArrayList<>());
+      owned.get(e.getKey().type, e.getKey().namespace, e.getKey().name).ifPresent(objects::add);
+    }
+    return result;
+  }
+
+  public void forget(String primaryUid) {
+    inSync.remove(primaryUid);
+  }
+
+  private static String specHash(HasMetadata resource) {
+    final var annotations = resource.getMetadata().getAnnotations();
+    return annotations == null ? null : annotations.get(SPEC_HASH_ANNOTATION);
+  }
+
+  private static String driftToken(HasMetadata resource) {
+    final var generation = resource.getMetadata().getGeneration();
+    return generation != null ? "g"+generation : "r"+resource.getMetadata().getResourceVersion();
+  }
+
+  /**
+   * Puts the spec hash annotation on the desired object, unless it already has
+   * one because it comes from {@link ComponentTemplates}.
+   *
+   * @return the spec hash
+   */
+  static String annotate(HasMetadata desired) {
+    final var existing = specHash(desired);
+    if(existing != null) {
+      return existing;
+    }
+    final var hash = hash(desired);
+    // Copied because objects of a component may share one ObjectMeta, e.g. a StatefulSet and its Service
+    desired.setMetadata(new ObjectMetaBuilder(desired.getMetadata()).addToAnnotations(SPEC_HASH_ANNOTATION, hash).build());
+    return hash;
+  }
+
+  static String hash(HasMetadata desired) {
+    try {
+      final var digest = MessageDigest.getInstance("SHA-256");
+      final var json = HASH_MAPPER.writeValueAsString(desired);
+      return String.format("%064x", new BigInteger(1, digest.digest(json.getBytes(StandardCharsets.UTF_8))));
+    }
+    catch(NoSuchAlgorithmException | JsonProcessingException e) {
+      throw new IllegalStateException("Unable to hash "+desired.getKind()+" "+desired.getMetadata().getName(), e);
+    }
+  }
+
+  private static class Tracked {
+    final String component;
+    final String token;
+
+    Tracked(String component, String token) {
+      this.component = component;
+      this.token = token;
+    }
+  }
+
+  private static class Change {
+    final OwnedKey key;
+    final HasMetadata desired;
+    final HasMetadata live;
+
+    Change(OwnedKey key, HasMetadata desired, HasMetadata live) {
+      this.key = key;
+      this.desired = desired;
+      this.live = live;
+    }
+  }
+
+  private static class OwnedKey {
+    final Class<? extends HasMetadata> type;
+    final String namespace;
+    final String name;
+
+    OwnedKey(Class<? extends HasMetadata> type, String namespace, String name) {
+      this.type = type;
+      this.namespace = namespace;
+      this.name = name;
+    }
+
+    static OwnedKey of(HasMetadata resource) {
+      return new OwnedKey(resource.getClass(), resource.getMetadata().getNamespace(), resource.getMetadata().getName());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if(!(o instanceof OwnedKey)) {
+        return false;
+      }
+      final var other = (OwnedKey) o;
+      return type.equals(other.type) && namespace.equals(other.namespace) && name.equals(other.name);
+    }
+
+    @Override
+    public int hashCode() {
+      return (type.hashCode() * 31 + namespace.hashCode()) * 31 + name.hashCode();
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package io.qiot.user5;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+import javax.inject.Singleton;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import io.fabric8.kubernetes.api.model.GenericKubernetesResource;
+import io.fabric8.kubernetes.api.model.HasMetadata;
+import io.fabric8.kubernetes.api.model.Status;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.http.HttpResponse;
+import io.fabric8.kubernetes.client.utils.Serialization;
+import io.fabric8.kubernetes.client.utils.URLUtils;
+
+/**
+ * Server-side apply under the operator's own field manager. The client version in
+ * use has no apply patch type, so the PATCH is sent through the client's HTTP
+ * client, which already carries the cluster credentials.
+ *
+ * An apply is a single round trip without a prior GET, only the fields present in
+ * the desired object are sent and become owned by the field manager, and several
+ * objects can be applied back-to-back.
+ */
+@Singleton
+public class ServerSideApply {
+
+  public static final String APPLY_PATCH_CONTENT_TYPE = "application/apply-patch+yaml";
+
+  private final KubernetesClient client;
+  private final String fieldManager;
+  private final boolean enabled;
+
+  public ServerSideApply(KubernetesClient client,
+      @ConfigProperty(name = "qiot.operator.field-manager", defaultValue = "qiot-operator") String fieldManager,
+      @ConfigProperty(name = "qiot.operator.server-side-apply", defaultValue = "true") boolean enabled) {
+    this.client = client;
+    this.fieldManager = fieldManager;
+    this.enabled = enabled;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Sends the apply patch without waiting for the response. The future completes
+   * with the object as stored by the API server, or exceptionally with a
+   * {@link KubernetesClientException}.
+   */
+  @SuppressWarnings("unchecked")
+  public <R extends HasMetadata> CompletableFuture<R> applyAsync(R desired) {
+    final var httpClient = client.getHttpClient();
+    final var request = httpClient.newHttpRequestBuilder()
+      .uri(url(desired))
+      .method("PATCH", APPLY_PATCH_CONTENT_TYPE, Serialization.asJson(desired))
+      .build();
+    return httpClient.sendAsync(request, String.class).thenApply(response -> {
+      if(!response.isSuccessful()) {
+        throw failure(desired, response);
+      }
+      return (R) Serialization.unmarshal(response.body(), desired.getClass());
+    });
+  }
+
+  private String url(HasMetadata desired) {
+    final var apiVersion = desired.getApiVersion();
+    final var apiRoot = apiVersion.contains("/") ? "apis" : "api";
+    final var metadata = desired.getMetadata();
+    return URLUtils.join(client.getMasterUrl().toString(), apiRoot, apiVersion,
+      "namespaces", metadata.getNamespace(), plural(desired), metadata.getName())
+      +"?fieldManager="+URLEncoder.encode(fieldManager, StandardCharsets.UTF_8)+"&force=true";
+  }
+
+  private static String plural(HasMetadata desired) {
+    if(desired instanceof GenericKubernetesResource) {
+      // Custom resources of other operators, e.g. KafkaTopic -> kafkatopics
+      return desired.getKind().toLowerCase()+"s";
+    }
+    return HasMetadata.getPlural(desired.getClass());
+  }
+
+  private static KubernetesClientException failure(HasMetadata desired, HttpResponse<String> response) {
+    final var message = "Server-side apply of "+desired.getKind()+" "+desired.getMetadata().getName()+" failed";
+    try {
+      final Status status = Serialization.unmarshal(response.body(), Status.class);
+      return new KubernetesClientException(message+": "+status.getMessage(), response.code(), status);
+    }
+    catch(RuntimeException e) {
+      return new KubernetesClientException(message+" with HTTP "+response.code(), response.code(), null);
+    }
+  }
+}
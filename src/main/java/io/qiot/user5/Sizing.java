@@ -0,0 +1,226 @@
+package io.qiot.user5;
+
+import java.util.Map;
+
+import io.fabric8.kubernetes.api.model.IntOrString;
+import io.fabric8.kubernetes.api.model.Quantity;
+import io.fabric8.kubernetes.api.model.ResourceRequirements;
+import io.fabric8.kubernetes.api.model.ResourceRequirementsBuilder;
+import io.fabric8.kubernetes.api.model.apps.Deployment;
+import io.fabric8.kubernetes.api.model.autoscaling.v1.HorizontalPodAutoscaler;
+import io.fabric8.kubernetes.api.model.autoscaling.v1.HorizontalPodAutoscalerBuilder;
+import io.fabric8.kubernetes.api.model.policy.v1.PodDisruptionBudget;
+import io.fabric8.kubernetes.api.model.policy.v1.PodDisruptionBudgetBuilder;
+
+/**
+ * Container requests and limits, volume capacity and replica range of one
+ * component, taken from the profile table for spec.sizing (1 to 5) and then
+ * from spec.sizingOverrides for that component, if any.
+ *
+ * Datastores (postgres, influxdb, mongo) have their own rows; every other
+ * component is a stateless service and uses the service row.
+ */
+public class Sizing {
+
+  public static final int MIN_LEVEL = 1;
+  public static final int MAX_LEVEL = 5;
+
+  // cpu request, memory request, cpu limit, memory limit, storage or replicas; one row per level
+  private static final Map<String, String[][]> PROFILES = Map.of(
+    "postgres", new String[][] {
+      {"250m", "256Mi", "500m", "512Mi", "1Gi"},
+      {"500m", "512Mi", "1", "1Gi", "5Gi"},
+      {"1", "1Gi", "2", "2Gi", "20Gi"},
+      {"2", "4Gi", "4", "8Gi", "50Gi"},
+      {"4", "8Gi", "8", "16Gi", "100Gi"}
+    },
+    "influxdb", new String[][] {
+      {"250m", "512Mi", "500m", "1Gi", "2Gi"},
+      {"500m", "1Gi", "1", "2Gi", "10Gi"},
+      {"1", "2Gi", "2", "4Gi", "50Gi"},
+      {"2", "4Gi", "4", "8Gi", "100Gi"},
+      {"4", "8Gi", "8", "16Gi", "200Gi"}
+    },
+    "mongo", new String[][] {
+      {"250m", "256Mi", "500m", "512Mi", "1Gi"},
+      {"500m", "1Gi", "1", "2Gi", "5Gi"},
+      {"1", "2Gi", "2", "4Gi", "20Gi"},
+      {"2", "4Gi", "4", "8Gi", "50Gi"},
+      {"4", "8Gi", "8", "16Gi", "100Gi"}
+    }
+  );
+
+  // cpu request, memory request, cpu limit, memory limit, min replicas, max replicas, HPA CPU target %
+  private static final String[][] SERVICE_PROFILE = {
+    {"100m", "256Mi", "500m", "512Mi", "1", "2", "80"},
+    {"200m", "256Mi", "1", "512Mi", "2", "4", "75"},
+    {"250m", "384Mi", "1", "768Mi", "2", "6", "70"},
+    {"500m", "512Mi", "2", "1Gi", "3", "10", "70"},
+    {"1", "1Gi", "2", "2Gi", "4", "20", "65"}
+  };
+
+  // partitions, replication factor, retention hours, compression; partitions stay at or above the
+  // service's max replicas so that a consumer-lag autoscaler never runs out of partitions, the
+  // replication factor is capped at the brokers of the cluster
+  private static final String[][] TOPIC_PROFILE = {
+    {"2", "1", "24", "producer"},
+    {"4", "1", "24", "lz4"},
+    {"6", "3", "72", "lz4"},
+    {"12", "3", "168", "lz4"},
+    {"24", "3", "168", "lz4"}
+  };
+
+  public final String cpuRequest;
+  public final String memoryRequest;
+  public final String cpuLimit;
+  public final String memoryLimit;
+  /** Volume capacity, null for services */
+  public final String storage;
+  /** Replica count of a datastore, minimum replica count of a service */
+  public final int replicas;
+  public final int maxReplicas;
+  public final int targetCPUUtilizationPercentage;
+
+  private Sizing(String cpuRequest, String memoryRequest, String cpuLimit, String memoryLimit, String storage,
+      int replicas, int maxReplicas, int targetCPUUtilizationPercentage) {
+    this.cpuRequest = cpuRequest;
+    this.memoryRequest = memoryRequest;
+    this.cpuLimit = cpuLimit;
+    this.memoryLimit = memoryLimit;
+    this.storage = storage;
+    this.replicas = replicas;
+    this.maxReplicas = Math.max(replicas, maxReplicas);
+    this.targetCPUUtilizationPercentage = targetCPUUtilizationPercentage;
+  }
+
+  // replicas, server connections across all replicas, client connections per replica; the server
+  // connections stay below PostgreSQL's default max_connections of 100
+  private static final int[][] POOLER_PROFILE = {
+    {1, 20, 200},
+    {2, 40, 500},
+    {2, 60, 1000},
+    {2, 80, 2000},
+    {3, 90, 3000}
+  };
+
+  /**
+   * @param level spec.sizing, clamped to 1..5
+   * @param component graph step name, e.g. postgres or plant-manager
+   * @param overrides spec.sizingOverrides, may be null
+   */
+  public static Sizing of(int level, String component, Map<String, SizingOverride> overrides) {
+    final var index = Math.max(MIN_LEVEL, Math.min(MAX_LEVEL, level))-1;
+    final var datastore = PROFILES.get(component);
+    final var row = datastore != null ? datastore[index] : SERVICE_PROFILE[index];
+    final var override = overrides != null ? overrides.get(component) : null;
+    final var o = override != null ? override : new SizingOverride();
+    if(datastore != null) {
+      return new Sizing(or(o.cpuRequest, row[0]), or(o.memoryRequest, row[1]), or(o.cpuLimit, row[2]),
+        or(o.memoryLimit, row[3]), or(o.storage, row[4]), 1, 1, 0);
+    }
+    return new Sizing(or(o.cpuRequest, row[0]), or(o.memoryRequest, row[1]), or(o.cpuLimit, row[2]),
+      or(o.memoryLimit, row[3]), null, or(o.replicas, row[4]), or(o.maxReplicas, row[5]),
+      or(o.targetCPUUtilizationPercentage, row[6]));
+  }
+
+  /**
+   * Partitions, replication and retention of a Kafka topic for the sizing level.
+   * The partition count never drops below livePartitions, as Kafka cannot shrink
+   * a topic.
+   *
+   * @param livePartitions partitions of the existing topic, 0 if there is none
+   * @param brokers brokers in the Kafka cluster, a topic cannot have more replicas
+   */
+  public static KafkaTopicSpec topic(int level, String topicName, int livePartitions, int brokers) {
+    final var row = TOPIC_PROFILE[Math.max(MIN_LEVEL, Math.min(MAX_LEVEL, level))-1];
+    final var spec = new KafkaTopicSpec();
+    spec.topicName = topicName;
+    spec.partitions = Math.max(livePartitions, Integer.parseInt(row[0]));
+    spec.replicas = Math.max(1, Math.min(brokers, Integer.parseInt(row[1])));
+    spec.config.put("retention.ms", Long.toString(Long.parseLong(row[2]) * 3600_000));
+    spec.config.put("compression.type", row[3]);
+    spec.config.put("min.insync.replicas", Integer.toString(Math.max(1, spec.replicas - 1)));
+    return spec;
+  }
+
+  /**
+   * Replicas and pool sizes of the PgBouncer pooler. The server connection budget
+   * of the level is split across the replicas, so scaling the pooler does not
+   * raise the connections PostgreSQL sees.
+   */
+  public static Pooler pooler(int level, PgBouncer spec, Map<String, SizingOverride> overrides) {
+    final var row = POOLER_PROFILE[Math.max(MIN_LEVEL, Math.min(MAX_LEVEL, level))-1];
+    final var override = overrides != null ? overrides.get("pgbouncer") : null;
+    final var replicas = Math.max(1, override != null && override.replicas != null ? override.replicas : row[0]);
+    return new Pooler(replicas,
+      spec.defaultPoolSize != null ? spec.defaultPoolSize : Math.max(1, row[1] / replicas),
+      spec.maxClientConnections != null ? spec.maxClientConnections : row[2]);
+  }
+
+  public static class Pooler {
+    public final int replicas;
+    public final int defaultPoolSize;
+    public final int maxClientConnections;
+
+    Pooler(int replicas, int defaultPoolSize, int maxClientConnections) {
+      this.replicas = replicas;
+      this.defaultPoolSize = defaultPoolSize;
+      this.maxClientConnections = maxClientConnections;
+    }
+  }
+
+  private static String or(String value, String fallback) {
+    return value == null || value.isEmpty() ? fallback : value;
+  }
+
+  private static int or(Integer value, String fallback) {
+    return value != null ? value : Integer.parseInt(fallback);
+  }
+
+  /** Requests and limits for the component's container */
+  public ResourceRequirements resources() {
+    return new ResourceRequirementsBuilder()
+      .addToRequests("cpu", new Quantity(cpuRequest))
+      .addToRequests("memory", new Quantity(memoryRequest))
+      .addToLimits("cpu", new Quantity(cpuLimit))
+      .addToLimits("memory", new Quantity(memoryLimit))
+    .build();
+  }
+
+  /**
+   * Scales the service's Deployment between replicas and maxReplicas on CPU
+   * utilization. The Deployment itself leaves replicas unset so applying it
+   * never undoes a scale decision of the autoscaler.
+   */
+  public HorizontalPodAutoscaler autoscaler(Deployment deployment) {
+    return new HorizontalPodAutoscalerBuilder()
+      .withMetadata(deployment.getMetadata())
+      .withNewSpec()
+        .withNewScaleTargetRef()
+          .withApiVersion(deployment.getApiVersion())
+          .withKind(deployment.getKind())
+          .withName(deployment.getMetadata().getName())
+        .endScaleTargetRef()
+        .withMinReplicas(replicas)
+        .withMaxReplicas(maxReplicas)
+        .withTargetCPUUtilizationPercentage(targetCPUUtilizationPercentage)
+      .endSpec()
+    .build();
+  }
+
+  /**
+   * Lets a node drain evict one pod of the service at a time, so from sizing 2
+   * on, where the autoscaler keeps at least two replicas, a drain never takes
+   * the service to zero. A single replica is not protected, which would block
+   * drains forever.
+   */
+  public PodDisruptionBudget disruptionBudget(Deployment deployment) {
+    return new PodDisruptionBudgetBuilder()
+      .withMetadata(deployment.getMetadata())
+      .withNewSpec()
+        .withSelector(deployment.getSpec().getSelector())
+        .withMaxUnavailable(new IntOrString(1))
+      .endSpec()
+    .build();
+  }
+}
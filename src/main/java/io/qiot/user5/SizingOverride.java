@@ -0,0 +1,30 @@
+package io.qiot.user5;
+
+import com.fasterxml.jackson.annotation.JsonPropertyDescription;
+
+public class SizingOverride {
+
+    @JsonPropertyDescription("CPU request, e.g. 500m. Replaces the value of the sizing profile.")
+    public String cpuRequest;
+
+    @JsonPropertyDescription("CPU limit, e.g. 2. Replaces the value of the sizing profile.")
+    public String cpuLimit;
+
+    @JsonPropertyDescription("Memory request, e.g. 512Mi. Replaces the value of the sizing profile.")
+    public String memoryRequest;
+
+    @JsonPropertyDescription("Memory limit, e.g. 1Gi. Replaces the value of the sizing profile.")
+    public String memoryLimit;
+
+    @JsonPropertyDescription("Volume capacity of a datastore, e.g. 20Gi. Ignored for services.")
+    public String storage;
+
+    @JsonPropertyDescription("Minimum replica count of a service. Ignored for datastores.")
+    public Integer replicas;
+
+    @JsonPropertyDescription("Maximum replica count the autoscaler may scale a service to. Ignored for datastores.")
+    public Integer maxReplicas;
+
+    @JsonPropertyDescription("Average CPU utilization, in percent of the request, the autoscaler keeps a service at. Ignored for datastores.")
+    public Integer targetCPUUtilizationPercentage;
+}
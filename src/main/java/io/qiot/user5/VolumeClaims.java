@@ -0,0 +1,156 @@
+package io.qiot.user5;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import io.fabric8.kubernetes.api.model.HasMetadata;
+import io.fabric8.kubernetes.api.model.PersistentVolumeClaim;
+import io.fabric8.kubernetes.api.model.PersistentVolumeClaimBuilder;
+import io.fabric8.kubernetes.api.model.Quantity;
+import io.fabric8.kubernetes.api.model.apps.StatefulSet;
+import io.fabric8.kubernetes.api.model.apps.StatefulSetBuilder;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.quarkus.logging.Log;
+
+/**
+ * The volume claims of the datastores once their StatefulSet exists. The volume
+ * claim templates of a StatefulSet cannot be changed, so the live ones are kept:
+ * a larger capacity is applied by expanding the claim of every pod in place, while
+ * another storage class, access mode or volume only applies to a new StatefulSet.
+ */
+public class VolumeClaims<P extends HasMetadata> {
+
+  private static final long MB = 1024 * 1024;
+
+  private final KubernetesClient client;
+  private final OwnedResources<P> owned;
+  // primary uid/StatefulSet/claim template -> capacity and replicas last expanded to
+  private final Map<String, String> expanded = new ConcurrentHashMap<>();
+
+  public VolumeClaims(KubernetesClient client, OwnedResources<P> owned) {
+    this.client = client;
+    this.owned = owned;
+  }
+
+  /**
+   * Whether the StatefulSet has, or is to be created with, the named volume claim
+   * template; a volume cannot be added to or removed from an existing StatefulSet
+   *
+   * @param live the StatefulSet, empty if it does not exist yet
+   * @param requested whether the spec asks for the volume
+   */
+  static boolean uses(Optional<StatefulSet> live, String claim, boolean requested) {
+    if(live.isEmpty()) {
+      return requested;
+    }
+    final var uses = live.get().getSpec().getVolumeClaimTemplates().stream()
+      .anyMatch(t -> claim.equals(t.getMetadata().getName()));
+    if(uses != requested) {
+      Log.warnf("StatefulSet %s/%s %s volume %s, which cannot change until it is recreated",
+        live.get().getMetadata().getNamespace(), live.get().getMetadata().getName(),
+        uses ? "keeps" : "was created without", claim);
+    }
+    return uses;
+  }
+
+  /** The volume claim template names of the StatefulSet, empty if it does not exist yet */
+  static String claimNames(Optional<StatefulSet> live) {
+    return live.map(s -> s.getSpec().getVolumeClaimTemplates().stream()
+        .map(t -> t.getMetadata().getName()).sorted().collect(Collectors.joining(",", "[", "]")))
+      .orElse("");
+  }
+
+  /** A quarter of the data volume's capacity, at least 1Gi */
+  static String walCapacity(String dataCapacity) {
+    final var bytes = Quantity.getAmountInBytes(new Quantity(dataCapacity)).longValue();
+    return Math.max(1024, bytes / 4 / MB)+"Mi";
+  }
+
+  /**
+   * The desired objects with the live volume claim templates of every StatefulSet
+   * that already exists, after expanding its claims to the desired capacity
+   */
+  public List<HasMetadata> keepClaimTemplates(P primary, List<HasMetadata> desired) {
+    final var kept = new ArrayList<HasMetadata>(desired.size());
+    for(var d : desired) {
+      final var live = d instanceof StatefulSet
+        ? owned.get(StatefulSet.class, d.getMetadata().getNamespace(), d.getMetadata().getName())
+        : Optional.<StatefulSet>empty();
+      if(live.isEmpty()) {
+        kept.add(d);
+        continue;
+      }
+      final var statefulSet = (StatefulSet) d;
+      final var liveTemplates = live.get().getSpec().getVolumeClaimTemplates();
+      for(var template : statefulSet.getSpec().getVolumeClaimTemplates()) {
+        liveTemplates.stream()
+          .filter(t -> template.getMetadata().getName().equals(t.getMetadata().getName()))
+          .findFirst()
+          .ifPresent(t -> {
+            if(!Objects.equals(t.getSpec().getStorageClassName(), template.getSpec().getStorageClassName())
+                || !Objects.equals(t.getSpec().getAccessModes(), template.getSpec().getAccessModes())) {
+              Log.warnf("StatefulSet %s/%s keeps the storage class and access mode of volume %s",
+                statefulSet.getMetadata().getNamespace(), statefulSet.getMetadata().getName(),
+                template.getMetadata().getName());
+            }
+            expand(primary, statefulSet, template);
+          });
+      }
+      kept.add(new StatefulSetBuilder(statefulSet)
+        .editSpec().withVolumeClaimTemplates(liveTemplates).endSpec()
+      .build());
+    }
+    return kept;
+  }
+
+  public void forget(String primaryUid) {
+    expanded.keySet().removeIf(k -> k.startsWith(primaryUid+"/"));
+  }
+
+  /**
+   * Grows the claim of every pod, including pods scaled away, to the capacity of
+   * the template; claims are never shrunk
+   */
+  private void expand(P primary, StatefulSet statefulSet, PersistentVolumeClaim template) {
+    final var capacity = template.getSpec().getResources().getRequests().get("storage");
+    final var key = primary.getMetadata().getUid()+"/"+statefulSet.getMetadata().getName()+"/"
+      +template.getMetadata().getName();
+    final var state = capacity+"x"+statefulSet.getSpec().getReplicas();
+    if(state.equals(expanded.get(key))) {
+      return;
+    }
+    final var namespace = statefulSet.getMetadata().getNamespace();
+    final var prefix = template.getMetadata().getName()+"-"+statefulSet.getMetadata().getName()+"-";
+    final var requested = Quantity.getAmountInBytes(capacity);
+    var complete = true;
+    for(var claim : client.persistentVolumeClaims().inNamespace(namespace)
+        .withLabels(statefulSet.getSpec().getSelector().getMatchLabels()).list().getItems()) {
+      final var name = claim.getMetadata().getName();
+      final var current = claim.getSpec().getResources().getRequests().get("storage");
+      if(!name.startsWith(prefix) || current == null || Quantity.getAmountInBytes(current).compareTo(requested) >= 0) {
+        continue;
+      }
+      try {
+        client.persistentVolumeClaims().inNamespace(namespace).withName(name)
+          .edit(c -> new PersistentVolumeClaimBuilder(c)
+            .editSpec().editResources().addToRequests("storage", capacity).endResources().endSpec()
+          .build());
+        Log.infof("Expanding volume claim %s/%s from %s to %s", namespace, name, current, capacity);
+      }
+      catch(KubernetesClientException e) {
+        // e.g. a storage class without allowVolumeExpansion; tried again on the next reconcile
+        Log.warnf("Cannot expand volume claim %s/%s to %s: %s", namespace, name, capacity, e.getMessage());
+        complete = false;
+      }
+    }
+    if(complete) {
+      expanded.put(key, state);
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package io.qiot.user5;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import io.fabric8.kubernetes.api.model.ConfigMapBuilder;
+import io.fabric8.kubernetes.api.model.HasMetadata;
+import io.fabric8.kubernetes.api.model.ObjectMetaBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class ComponentTemplatesTest {
+
+  private final ReconcileGraph<Datacenter> graph = new ReconcileGraph<Datacenter>(
+      new ReconcileMetrics(new SimpleMeterRegistry()), (resource, step) -> true)
+    .add("binding", Set.of(), Set.of("SECRET"), (resource, properties) -> properties)
+    .add("postgres", Set.of("SECRET"), Set.of("PG_URL"), (resource, properties) -> properties);
+  private final ComponentTemplates<Datacenter> templates = new ComponentTemplates<>(graph);
+  private final AtomicInteger renders = new AtomicInteger();
+
+  @Test
+  void sameGenerationInputsAndLiveStateReuseTheRender() {
+    final var datacenter = datacenter(1L);
+    render(datacenter, "secret", "");
+    final var properties = properties("secret");
+    templates.render(datacenter, "postgres", properties, "", this::postgres);
+    assertEquals(1, renders.get());
+    assertEquals("postgres:5432", properties.get("PG_URL"));
+  }
+
+  @Test
+  void changedInputRendersAgain() {
+    final var datacenter = datacenter(1L);
+    render(datacenter, "secret", "");
+    render(datacenter, "recreated", "");
+    assertEquals(2, renders.get());
+  }
+
+  @Test
+  void newGenerationRendersAgain() {
+    render(datacenter(1L), "secret", "");
+    render(datacenter(2L), "secret", "");
+    assertEquals(2, renders.get());
+  }
+
+  @Test
+  void changedLiveStateRendersAgain() {
+    final var datacenter = datacenter(1L);
+    render(datacenter, "secret", "");
+    render(datacenter, "secret", "[postgresdb]");
+    render(datacenter, "secret", "[postgres-wal,postgresdb]");
+    render(datacenter, "secret", "[postgres-wal,postgresdb]");
+    assertEquals(3, renders.get());
+  }
+
+  @Test
+  void forgottenCrRendersAgain() {
+    final var datacenter = datacenter(1L);
+    render(datacenter, "secret", "");
+    templates.forget("uid-1");
+    render(datacenter, "secret", "");
+    assertEquals(2, renders.get());
+  }
+
+  private void render(Datacenter datacenter, String secret, String liveState) {
+    templates.render(datacenter, "postgres", properties(secret), liveState, this::postgres);
+  }
+
+  private List<HasMetadata> postgres(Datacenter resource, Map<String, String> properties) {
+    renders.incrementAndGet();
+    properties.put("PG_URL", "postgres:5432");
+    return List.of(new ConfigMapBuilder().withNewMetadata().withName("postgres").endMetadata()
+      .addToData("secret", properties.get("SECRET")).build());
+  }
+
+  private static Map<String, String> properties(String secret) {
+    return new HashMap<>(Map.of("SECRET", secret));
+  }
+
+  private static Datacenter datacenter(Long generation) {
+    final var datacenter = new Datacenter();
+    datacenter.setMetadata(new ObjectMetaBuilder().withName("dc").withNamespace("qiot").withUid("uid-1")
+      .withGeneration(generation).build());
+    return datacenter;
+  }
+}
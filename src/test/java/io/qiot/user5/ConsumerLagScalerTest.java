@@ -0,0 +1,203 @@
+package io.qiot.user5;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.fabric8.kubernetes.api.model.ObjectMetaBuilder;
+import io.fabric8.kubernetes.api.model.apps.DeploymentBuilder;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.server.mock.KubernetesServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.quarkus.test.junit.QuarkusTest;
+
+// Run inside Quarkus, whose build rewrites the io.quarkus.logging.Log calls of the scaler
+@QuarkusTest
+class ConsumerLagScalerTest {
+
+  private static final String NAMESPACE = "lag";
+  private static final String DEPLOYMENT = "event-collector";
+
+  private KubernetesServer server;
+  private KubernetesClient client;
+  private StubProbe probe;
+  private MutableClock clock;
+  private ConsumerLagScaler scaler;
+
+  @BeforeEach
+  void setUp() {
+    server = new KubernetesServer(false, true);
+    server.before();
+    client = server.getClient();
+    client.apps().deployments().inNamespace(NAMESPACE).create(new DeploymentBuilder()
+      .withNewMetadata().withName(DEPLOYMENT).withNamespace(NAMESPACE).endMetadata()
+      .withNewSpec().withReplicas(1).endSpec()
+      .build());
+    probe = new StubProbe();
+    clock = new MutableClock();
+    final var ownership = new ReconcileOwnership(null, "none", Optional.empty(), Optional.empty(),
+      Duration.ofSeconds(15), Duration.ofSeconds(5));
+    scaler = new ConsumerLagScaler(client, probe, new ReconcileMetrics(new SimpleMeterRegistry()), ownership, clock,
+      Executors.newSingleThreadScheduledExecutor());
+  }
+
+  @AfterEach
+  void tearDown() {
+    scaler.shutdown();
+    server.after();
+  }
+
+  @Test
+  void oneReplicaPerLagPerReplicaRecords() {
+    assertEquals(1, desired(0, 12, 1, 10));
+    assertEquals(1, desired(1000, 12, 1, 10));
+    assertEquals(2, desired(1001, 12, 1, 10));
+    assertEquals(5, desired(4500, 12, 1, 10));
+  }
+
+  @Test
+  void clampedToMinAndMax() {
+    assertEquals(3, desired(0, 12, 3, 10));
+    assertEquals(3, desired(1500, 12, 3, 10));
+    assertEquals(10, desired(1_000_000, 12, 1, 10));
+    assertEquals(10, desired(Long.MAX_VALUE, 12, 1, 10));
+  }
+
+  @Test
+  void neverMoreReplicasThanPartitions() {
+    assertEquals(4, desired(9000, 4, 1, 10));
+    // min above the partition count still yields one consumer per partition
+    assertEquals(4, desired(0, 4, 6, 10));
+    // unknown partition count, only max applies
+    assertEquals(9, desired(9000, 0, 1, 10));
+  }
+
+  @Test
+  void scalesDeploymentOnLag() {
+    track(1, 10, 60);
+    probe.sample = new ConsumerLagProbe.LagSample(3500, 12);
+    scaler.checkAll();
+    assertEquals(4, replicas());
+  }
+
+  @Test
+  void leavesDeploymentAloneWithoutSample() {
+    track(1, 10, 60);
+    probe.sample = null;
+    scaler.checkAll();
+    assertEquals(1, replicas());
+  }
+
+  @Test
+  void waitsForCooldownBetweenChanges() {
+    track(1, 10, 60);
+    probe.sample = new ConsumerLagProbe.LagSample(5000, 12);
+    scaler.checkAll();
+    assertEquals(5, replicas());
+
+    probe.sample = new ConsumerLagProbe.LagSample(500, 12);
+    clock.advance(Duration.ofSeconds(59));
+    scaler.checkAll();
+    assertEquals(5, replicas());
+
+    clock.advance(Duration.ofSeconds(1));
+    scaler.checkAll();
+    assertEquals(1, replicas());
+  }
+
+  @Test
+  void cooldownSurvivesRetracking() {
+    track(1, 10, 60);
+    probe.sample = new ConsumerLagProbe.LagSample(5000, 12);
+    scaler.checkAll();
+    // every reconcile tracks the target again, that must not reset the cooldown
+    track(1, 10, 60);
+    probe.sample = new ConsumerLagProbe.LagSample(500, 12);
+    clock.advance(Duration.ofSeconds(30));
+    scaler.checkAll();
+    assertEquals(5, replicas());
+  }
+
+  @Test
+  void forgottenTargetIsNotScaled() {
+    track(1, 10, 60);
+    scaler.forget("uid-1");
+    probe.sample = new ConsumerLagProbe.LagSample(5000, 12);
+    scaler.checkAll();
+    assertEquals(1, replicas());
+    assertEquals(Set.of(), probe.retained);
+  }
+
+  @Test
+  void probeKeepsOnlyTrackedBootstrapServers() {
+    track(1, 10, 60);
+    scaler.checkAll();
+    assertEquals(Set.of("kafka:9092"), probe.retained);
+  }
+
+  private static int desired(long lag, int partitions, int min, int max) {
+    return ConsumerLagScaler.desiredReplicas(new ConsumerLagProbe.LagSample(lag, partitions), 1000, min, max);
+  }
+
+  private void track(int min, int max, int cooldownSeconds) {
+    final var owner = new Datacenter();
+    owner.setMetadata(new ObjectMetaBuilder().withName("dc").withNamespace(NAMESPACE).withUid("uid-1").build());
+    final var spec = new LagAutoscaling();
+    spec.cooldownSeconds = cooldownSeconds;
+    scaler.track(owner, "event-collector", DEPLOYMENT, "kafka:9092", "telemetry", spec, min, max, this::replicas);
+  }
+
+  private int replicas() {
+    final var deployment = client.apps().deployments().inNamespace(NAMESPACE).withName(DEPLOYMENT).get();
+    return deployment != null ? deployment.getSpec().getReplicas() : -1;
+  }
+
+  private static class StubProbe implements ConsumerLagProbe {
+    volatile LagSample sample;
+    volatile Set<String> retained;
+
+    @Override
+    public Optional<LagSample> sample(String bootstrapServers, String consumerGroup, String topic) {
+      return Optional.ofNullable(sample);
+    }
+
+    @Override
+    public void retain(Set<String> bootstrapServers) {
+      retained = Set.copyOf(bootstrapServers);
+    }
+  }
+
+  private static class MutableClock extends Clock {
+    private Instant now = Instant.parse("2026-01-01T00:00:00Z");
+
+    void advance(Duration duration) {
+      now = now.plus(duration);
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public Instant instant() {
+      return now;
+    }
+  }
+}
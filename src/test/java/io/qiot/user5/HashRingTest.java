@@ -0,0 +1,83 @@
+package io.qiot.user5;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class HashRingTest {
+
+  private static final int KEYS = 3000;
+
+  @Test
+  void emptyRingHasNoOwner() {
+    assertNull(new HashRing(List.of(), ReconcileOwnership.VIRTUAL_NODES).owner("qiot/dc"));
+  }
+
+  @Test
+  void everyReplicaComputesTheSamePlacement() {
+    final var ring = new HashRing(List.of("a", "b", "c"), ReconcileOwnership.VIRTUAL_NODES);
+    final var reordered = new HashRing(List.of("c", "a", "b"), ReconcileOwnership.VIRTUAL_NODES);
+    for(int i = 0; i < KEYS; i++) {
+      assertEquals(ring.owner(key(i)), reordered.owner(key(i)));
+    }
+  }
+
+  @Test
+  void keysSpreadOverAllMembers() {
+    final var counts = counts(new HashRing(List.of("a", "b", "c"), ReconcileOwnership.VIRTUAL_NODES));
+    assertEquals(3, counts.size());
+    for(var count : counts.values()) {
+      assertTrue(count > KEYS / 5 && count < KEYS / 2, "Uneven spread "+counts);
+    }
+  }
+
+  @Test
+  void leavingMemberOnlyMovesItsOwnKeys() {
+    final var before = new HashRing(List.of("a", "b", "c"), ReconcileOwnership.VIRTUAL_NODES);
+    final var after = new HashRing(List.of("a", "b"), ReconcileOwnership.VIRTUAL_NODES);
+    final var movedTo = new HashMap<String, Integer>();
+    for(int i = 0; i < KEYS; i++) {
+      final var owner = before.owner(key(i));
+      if(owner.equals("c")) {
+        movedTo.merge(after.owner(key(i)), 1, Integer::sum);
+      }
+      else {
+        assertEquals(owner, after.owner(key(i)), key(i)+" moved although its owner stayed");
+      }
+    }
+    // Taken over by both survivors rather than piling onto one
+    assertEquals(2, movedTo.size(), "Moved to "+movedTo);
+  }
+
+  @Test
+  void joiningMemberOnlyTakesKeysForItself() {
+    final var before = new HashRing(List.of("a", "b"), ReconcileOwnership.VIRTUAL_NODES);
+    final var after = new HashRing(List.of("a", "b", "c"), ReconcileOwnership.VIRTUAL_NODES);
+    int moved = 0;
+    for(int i = 0; i < KEYS; i++) {
+      if(!before.owner(key(i)).equals(after.owner(key(i)))) {
+        assertEquals("c", after.owner(key(i)));
+        moved++;
+      }
+    }
+    assertTrue(moved > KEYS / 5 && moved < KEYS / 2, moved+" of "+KEYS+" keys moved");
+  }
+
+  private static Map<String, Integer> counts(HashRing ring) {
+    final var counts = new HashMap<String, Integer>();
+    for(int i = 0; i < KEYS; i++) {
+      counts.merge(ring.owner(key(i)), 1, Integer::sum);
+    }
+    return counts;
+  }
+
+  private static String key(int i) {
+    return "qiot-"+(i % 10)+"/datacenter-"+i;
+  }
+}
@@ -0,0 +1,145 @@
+package io.qiot.user5;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.clients.admin.Admin;
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.clients.admin.RecordsToDelete;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.network.ListenerName;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.common.utils.Time;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import io.quarkus.test.junit.QuarkusTest;
+import kafka.server.KafkaConfig;
+import kafka.server.KafkaServer;
+import scala.Option;
+
+/**
+ * The probe against a single Kafka broker and ZooKeeper running in the test JVM.
+ * The telemetry topic has three partitions holding 10, 20 and 0 records.
+ */
+// Run inside Quarkus, whose build rewrites the io.quarkus.logging.Log calls of the probe
+@QuarkusTest
+class KafkaConsumerLagProbeTest {
+
+  private static final String TOPIC = "telemetry";
+
+  private static Path dir;
+  private static ServerCnxnFactory zookeeper;
+  private static KafkaServer broker;
+  private static String bootstrapServers;
+  private static Admin admin;
+
+  private final KafkaConsumerLagProbe probe = new KafkaConsumerLagProbe(Duration.ofSeconds(10));
+
+  @BeforeAll
+  static void startBroker() throws Exception {
+    dir = Files.createTempDirectory("lag-probe");
+    zookeeper = ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", 0), 16);
+    zookeeper.startup(new ZooKeeperServer(dir.resolve("zookeeper").toFile(), dir.resolve("zookeeper").toFile(), 500));
+
+    final var properties = new Properties();
+    properties.put("broker.id", "0");
+    properties.put("zookeeper.connect", "127.0.0.1:"+zookeeper.getLocalPort());
+    properties.put("listeners", "PLAINTEXT://127.0.0.1:0");
+    properties.put("log.dirs", dir.resolve("kafka").toString());
+    properties.put("auto.create.topics.enable", "false");
+    properties.put("offsets.topic.replication.factor", "1");
+    properties.put("offsets.topic.num.partitions", "1");
+    properties.put("group.initial.rebalance.delay.ms", "0");
+    broker = new KafkaServer(KafkaConfig.fromProps(properties), Time.SYSTEM, Option.empty(), false);
+    broker.startup();
+    bootstrapServers = "127.0.0.1:"+broker.boundPort(ListenerName.normalised("PLAINTEXT"));
+
+    admin = Admin.create(Map.of(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers));
+    admin.createTopics(List.of(new NewTopic(TOPIC, 3, (short) 1))).all().get(30, TimeUnit.SECONDS);
+    try(var producer = new KafkaProducer<String, String>(Map.of(
+        ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers,
+        ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class,
+        ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class))) {
+      for(int i = 0; i < 10; i++) {
+        producer.send(new ProducerRecord<>(TOPIC, 0, null, "event"));
+      }
+      for(int i = 0; i < 20; i++) {
+        producer.send(new ProducerRecord<>(TOPIC, 1, null, "event"));
+      }
+    }
+  }
+
+  @AfterAll
+  static void stopBroker() throws IOException {
+    if(admin != null) {
+      admin.close();
+    }
+    if(broker != null) {
+      broker.shutdown();
+      broker.awaitShutdown();
+    }
+    if(zookeeper != null) {
+      zookeeper.shutdown();
+    }
+    try(var paths = Files.walk(dir)) {
+      paths.sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+    }
+  }
+
+  @AfterEach
+  void closeProbe() {
+    probe.close();
+  }
+
+  @Test
+  void lagIsEndOffsetMinusCommittedOffset() throws Exception {
+    commit("committed", Map.of(0, 4L, 1, 20L, 2, 0L));
+    final var sample = probe.sample(bootstrapServers, "committed", TOPIC).orElseThrow();
+    assertEquals(6, sample.lag);
+    assertEquals(3, sample.partitions);
+  }
+
+  @Test
+  void uncommittedPartitionsLagFromTheLogStart() throws Exception {
+    commit("partly-committed", Map.of(1, 15L));
+    // Partition 0 now starts at offset 3, as after retention
+    admin.deleteRecords(Map.of(new TopicPartition(TOPIC, 0), RecordsToDelete.beforeOffset(3))).all()
+      .get(30, TimeUnit.SECONDS);
+    assertEquals(7+5, probe.sample(bootstrapServers, "partly-committed", TOPIC).orElseThrow().lag);
+    // A group that never committed sees the whole backlog
+    assertEquals(7+20, probe.sample(bootstrapServers, "new-group", TOPIC).orElseThrow().lag);
+  }
+
+  @Test
+  void unknownTopicHasNoSample() {
+    assertTrue(probe.sample(bootstrapServers, "committed", "missing").isEmpty());
+  }
+
+  private static void commit(String group, Map<Integer, Long> offsets) throws Exception {
+    final var committed = new HashMap<TopicPartition, OffsetAndMetadata>();
+    offsets.forEach((partition, offset) -> committed.put(new TopicPartition(TOPIC, partition),
+      new OffsetAndMetadata(offset)));
+    admin.alterConsumerGroupOffsets(group, committed).all().get(30, TimeUnit.SECONDS);
+  }
+}
@@ -0,0 +1,146 @@
+package io.qiot.user5;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import io.fabric8.kubernetes.api.model.ObjectMetaBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class ReconcileGraphTest {
+
+  private static final Executor DIRECT = Runnable::run;
+
+  private final ReconcileGraph<Datacenter> graph = new ReconcileGraph<>(
+    new ReconcileMetrics(new SimpleMeterRegistry()), (resource, step) -> true);
+
+  @Test
+  void nullOutputFailsWithTheStepAndKey() {
+    graph.add("binding", Set.of(), Set.of("URL"), (resource, properties) -> {
+      final var result = new HashMap<String, String>();
+      result.put("URL", null);
+      return result;
+    });
+    final var e = assertThrows(IllegalStateException.class, () -> graph.run(datacenter(), DIRECT));
+    assertTrue(e.getMessage().contains("binding"), e.getMessage());
+    assertTrue(e.getMessage().contains("URL"), e.getMessage());
+  }
+
+  @Test
+  void nullPutFailsWithTheStepAndKey() {
+    graph.add("binding", Set.of(), Set.of("URL"), (resource, properties) -> {
+      properties.put("URL", null);
+      return properties;
+    });
+    final var e = assertThrows(IllegalStateException.class, () -> graph.run(datacenter(), DIRECT));
+    assertTrue(e.getMessage().contains("binding"), e.getMessage());
+  }
+
+  @Test
+  void dependentStepSeesWrittenProperties() {
+    final var seen = new HashMap<String, String>();
+    graph
+      .add("postgres", Set.of(), Set.of("PG_URL"), (resource, properties) -> {
+        properties.put("PG_URL", "postgres:5432");
+        return properties;
+      })
+      .add("service", Set.of("PG_URL"), Set.of(), (resource, properties) -> {
+        seen.putAll(properties);
+        return Map.of();
+      });
+    assertEquals(Set.of(), graph.run(datacenter(), DIRECT));
+    assertEquals("postgres:5432", seen.get("PG_URL"));
+  }
+
+  @Test
+  void retryResumesAtTheFailedStep() {
+    final var runs = new ConcurrentHashMap<String, Integer>();
+    final var failures = new AtomicInteger(1);
+    graph
+      .add("registration", Set.of(), Set.of("REGISTRATION_URL"), (resource, properties) -> {
+        runs.merge("registration", 1, Integer::sum);
+        properties.put("REGISTRATION_URL", "registration:8080");
+        return properties;
+      })
+      .add("influxdb", Set.of(), Set.of(), (resource, properties) -> {
+        runs.merge("influxdb", 1, Integer::sum);
+        if(failures.getAndDecrement() > 0) {
+          throw new IllegalStateException("API server unavailable");
+        }
+        return properties;
+      })
+      .add("plant-manager", Set.of("REGISTRATION_URL"), Set.of(), (resource, properties) -> {
+        runs.merge("plant-manager", 1, Integer::sum);
+        return properties;
+      });
+    assertThrows(IllegalStateException.class, () -> graph.run(datacenter(), DIRECT));
+    graph.run(datacenter(), DIRECT);
+    assertEquals(Map.of("registration", 1, "influxdb", 2, "plant-manager", 1), runs);
+  }
+
+  @Test
+  void retryRerunsTheProducersOfWhatTheFailedStepReads() {
+    final var secret = new AtomicReference<>("before");
+    final var seen = new ArrayList<String>();
+    final var failures = new AtomicInteger(1);
+    graph
+      .add("bindings", Set.of(), Set.of("SECRET"), (resource, properties) -> {
+        properties.put("SECRET", secret.get());
+        return properties;
+      })
+      .add("postgres", Set.of("SECRET"), Set.of("PG_URL"), (resource, properties) -> {
+        seen.add(properties.get("SECRET"));
+        if(failures.getAndDecrement() > 0) {
+          throw new IllegalStateException("API server unavailable");
+        }
+        properties.put("PG_URL", "postgres:5432");
+        return properties;
+      });
+    assertThrows(IllegalStateException.class, () -> graph.run(datacenter(), DIRECT));
+    // Recreated between the attempts
+    secret.set("after");
+    graph.run(datacenter(), DIRECT);
+    assertEquals(List.of("before", "after"), seen);
+  }
+
+  @Test
+  void newGenerationRunsEveryStep() {
+    final var runs = new AtomicInteger();
+    final var failures = new AtomicInteger(1);
+    graph
+      .add("registration", Set.of(), Set.of(), (resource, properties) -> {
+        runs.incrementAndGet();
+        return properties;
+      })
+      .add("influxdb", Set.of(), Set.of(), (resource, properties) -> {
+        if(failures.getAndDecrement() > 0) {
+          throw new IllegalStateException("API server unavailable");
+        }
+        return properties;
+      });
+    assertThrows(IllegalStateException.class, () -> graph.run(datacenter(), DIRECT));
+    final var changed = datacenter();
+    changed.getMetadata().setGeneration(2L);
+    graph.run(changed, DIRECT);
+    assertEquals(2, runs.get());
+  }
+
+  private static Datacenter datacenter() {
+    final var datacenter = new Datacenter();
+    datacenter.setMetadata(new ObjectMetaBuilder().withName("dc").withNamespace("qiot").withUid("uid-1")
+      .withGeneration(1L).build());
+    return datacenter;
+  }
+}
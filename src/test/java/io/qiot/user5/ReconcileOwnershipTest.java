@@ -0,0 +1,207 @@
+package io.qiot.user5;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.fabric8.kubernetes.api.model.ObjectMetaBuilder;
+import io.fabric8.kubernetes.api.model.coordination.v1.LeaseBuilder;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.server.mock.KubernetesServer;
+import io.quarkus.test.junit.QuarkusTest;
+
+/**
+ * Replicas coordinating through Leases on the fabric8 mock API server. Each
+ * {@link ReconcileOwnership} stands for one operator replica, in shards or in
+ * leader mode.
+ */
+// Run inside Quarkus, whose build rewrites the io.quarkus.logging.Log calls of ReconcileOwnership
+@QuarkusTest
+class ReconcileOwnershipTest {
+
+  private static final String NAMESPACE = "operators";
+  private static final Duration RENEW_INTERVAL = Duration.ofMillis(100);
+
+  private final List<ReconcileOwnership> replicas = new ArrayList<>();
+  private final List<Datacenter> datacenters = IntStream.range(0, 200).mapToObj(ReconcileOwnershipTest::datacenter)
+    .collect(Collectors.toList());
+  private KubernetesServer server;
+  private KubernetesClient client;
+
+  @BeforeEach
+  void setUp() {
+    server = new KubernetesServer(false, true);
+    server.before();
+    client = server.getClient();
+  }
+
+  @AfterEach
+  void tearDown() {
+    replicas.forEach(ReconcileOwnership::shutdown);
+    server.after();
+  }
+
+  @Test
+  void shardsSplitTheResources() {
+    final var a = replica("shards", "a");
+    final var b = replica("shards", "b");
+    await(() -> owned(a) > 0 && owned(b) > 0 && owned(a)+owned(b) == datacenters.size());
+    for(var datacenter : datacenters) {
+      assertTrue(a.owns(datacenter) != b.owns(datacenter), "Not owned by exactly one replica");
+    }
+  }
+
+  @Test
+  void expiredLeaseIsNotAMember() {
+    shardLease("gone", ZonedDateTime.now(ZoneOffset.UTC).minusMinutes(1));
+    final var a = replica("shards", "a");
+    await(() -> owned(a) == datacenters.size());
+    // Cleaned up by the survivor
+    await(() -> client.leases().inNamespace(NAMESPACE).withName("qiot-operator-shard-gone").get() == null);
+  }
+
+  @Test
+  void unexpiredLeaseIsAMember() {
+    shardLease("other", ZonedDateTime.now(ZoneOffset.UTC));
+    final var a = replica("shards", "a");
+    await(() -> owned(a) > 0);
+    assertTrue(owned(a) < datacenters.size());
+  }
+
+  @Test
+  void stoppedReplicaHandsItsShardToTheSurvivors() {
+    final var a = replica("shards", "a");
+    final var b = replica("shards", "b");
+    await(() -> owned(a) > 0 && owned(b) > 0);
+    b.shutdown();
+    await(() -> owned(a) == datacenters.size());
+  }
+
+  @Test
+  void onlyTheLeaderOwnsResources() {
+    final var a = replica("leader", "a");
+    final var b = replica("leader", "b");
+    await(() -> a.owns(datacenters.get(0)) || b.owns(datacenters.get(0)));
+    final var holder = a.owns(datacenters.get(0)) ? a : b;
+    final var standby = holder == a ? b : a;
+    // The standby keeps out while the holder renews
+    for(int i = 0; i < 10; i++) {
+      assertEquals(datacenters.size(), owned(holder));
+      assertEquals(0, owned(standby));
+      sleep(RENEW_INTERVAL);
+    }
+  }
+
+  @Test
+  void standbyTakesOverRightAwayWhenTheLeaderReleases() {
+    final var a = replica("leader", "a", Duration.ofSeconds(15));
+    await(() -> owned(a) == datacenters.size());
+    final var b = replica("leader", "b", Duration.ofSeconds(15));
+    sleep(RENEW_INTERVAL.multipliedBy(5));
+    assertEquals(0, owned(b));
+
+    final var released = System.nanoTime();
+    a.shutdown();
+    assertEquals(0, owned(a));
+    await(() -> owned(b) == datacenters.size());
+    final var takeover = Duration.ofNanos(System.nanoTime()-released);
+    assertTrue(takeover.compareTo(Duration.ofSeconds(5)) < 0, "Took over after "+takeover);
+  }
+
+  @Test
+  void standbyTakesOverOnceTheLeaseOfACrashedLeaderExpired() {
+    final var now = ZonedDateTime.now(ZoneOffset.UTC);
+    client.leases().inNamespace(NAMESPACE).create(new LeaseBuilder()
+      .withNewMetadata()
+        .withName(ReconcileOwnership.LEADER_LEASE)
+      .endMetadata()
+      .withNewSpec()
+        .withHolderIdentity("crashed")
+        .withLeaseDurationSeconds(2)
+        .withAcquireTime(now)
+        .withRenewTime(now)
+        .withLeaseTransitions(0)
+      .endSpec()
+      .build());
+    final var started = System.nanoTime();
+    final var b = replica("leader", "b", Duration.ofSeconds(2));
+    sleep(Duration.ofSeconds(1));
+    assertEquals(0, owned(b));
+    await(() -> owned(b) == datacenters.size());
+    final var takeover = Duration.ofNanos(System.nanoTime()-started);
+    assertTrue(takeover.compareTo(Duration.ofSeconds(2)) >= 0, "Took over after "+takeover);
+  }
+
+  private ReconcileOwnership replica(String coordination, String identity) {
+    return replica(coordination, identity, Duration.ofSeconds(15));
+  }
+
+  private ReconcileOwnership replica(String coordination, String identity, Duration leaseDuration) {
+    final var replica = new ReconcileOwnership(client, coordination, Optional.of(identity), Optional.of(NAMESPACE),
+      leaseDuration, RENEW_INTERVAL);
+    replicas.add(replica);
+    return replica;
+  }
+
+  private long owned(ReconcileOwnership replica) {
+    return datacenters.stream().filter(replica::owns).count();
+  }
+
+  private void shardLease(String identity, ZonedDateTime renewTime) {
+    client.leases().inNamespace(NAMESPACE).create(new LeaseBuilder()
+      .withNewMetadata()
+        .withName("qiot-operator-shard-"+identity)
+        .addToLabels(ReconcileOwnership.SHARD_LABEL, "member")
+      .endMetadata()
+      .withNewSpec()
+        .withHolderIdentity(identity)
+        .withLeaseDurationSeconds(15)
+        .withRenewTime(renewTime)
+      .endSpec()
+      .build());
+  }
+
+  private static void sleep(Duration duration) {
+    try {
+      Thread.sleep(duration.toMillis());
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void await(BooleanSupplier condition) {
+    final var deadline = System.nanoTime()+Duration.ofSeconds(20).toNanos();
+    while(!condition.getAsBoolean()) {
+      assertFalse(System.nanoTime() > deadline, "Timed out");
+      try {
+        Thread.sleep(50);
+      }
+      catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private static Datacenter datacenter(int i) {
+    final var datacenter = new Datacenter();
+    datacenter.setMetadata(new ObjectMetaBuilder().withName("dc-"+i).withNamespace("qiot-"+(i % 10))
+      .withUid("uid-"+i).build());
+    return datacenter;
+  }
+}
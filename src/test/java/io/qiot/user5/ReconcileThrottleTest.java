@@ -0,0 +1,116 @@
+package io.qiot.user5;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+class ReconcileThrottleTest {
+
+  private final AtomicLong now = new AtomicLong();
+  // 10 reconciles per second, bursts of 2, backoff from 1s doubling up to 8s
+  private final ReconcileThrottle throttle = new ReconcileThrottle(10, 2, Duration.ofSeconds(1), Duration.ofSeconds(8),
+    2, now::get);
+
+  @Test
+  void burstIsAdmittedAtOnce() {
+    assertEquals(Optional.empty(), throttle.admit("a", true));
+    assertEquals(Optional.empty(), throttle.admit("b", true));
+  }
+
+  @Test
+  void emptyBucketReservesTheNextFreeSlots() {
+    throttle.admit("a", true);
+    throttle.admit("b", true);
+    assertEquals(Optional.of(Duration.ofMillis(100)), throttle.admit("c", true));
+    assertEquals(Optional.of(Duration.ofMillis(200)), throttle.admit("d", true));
+  }
+
+  @Test
+  void reservedSlotIsKeptUntilItStarts() {
+    throttle.admit("a", true);
+    throttle.admit("b", true);
+    throttle.admit("c", true);
+    advance(Duration.ofMillis(40));
+    // Coming back early waits for the same slot rather than reserving another
+    assertEquals(Optional.of(Duration.ofMillis(60)), throttle.admit("c", true));
+    advance(Duration.ofMillis(60));
+    assertEquals(Optional.empty(), throttle.admit("c", true));
+    // The slot was paid for when it was reserved, the next CR queues behind it
+    assertEquals(Optional.of(Duration.ofMillis(100)), throttle.admit("d", true));
+  }
+
+  @Test
+  void bucketRefillsUpToTheBurst() {
+    throttle.admit("a", true);
+    throttle.admit("b", true);
+    advance(Duration.ofSeconds(10));
+    assertEquals(Optional.empty(), throttle.admit("c", true));
+    assertEquals(Optional.empty(), throttle.admit("d", true));
+    assertTrue(throttle.admit("e", true).isPresent());
+  }
+
+  @Test
+  void resyncWithoutWritesIsNotLimited() {
+    throttle.admit("a", true);
+    throttle.admit("b", true);
+    assertEquals(Optional.empty(), throttle.admit("c", false));
+  }
+
+  @Test
+  void zeroRateDisablesTheLimit() {
+    final var unlimited = new ReconcileThrottle(0, 1, Duration.ofSeconds(1), Duration.ofSeconds(8), 2, now::get);
+    for(int i = 0; i < 100; i++) {
+      assertEquals(Optional.empty(), unlimited.admit("cr-"+i, true));
+    }
+  }
+
+  @Test
+  void backoffGrowsExponentiallyWithJitter() {
+    for(var nominal : new long[] { 1000, 2000, 4000, 8000 }) {
+      assertBetween(nominal / 2, nominal, throttle.failed("a"));
+    }
+  }
+
+  @Test
+  void backoffIsCappedAtTheMaxInterval() {
+    for(int i = 0; i < 20; i++) {
+      throttle.failed("a");
+    }
+    assertBetween(4000, 8000, throttle.failed("a"));
+  }
+
+  @Test
+  void failedCrWaitsOutItsBackoff() {
+    final var delay = throttle.failed("a");
+    assertEquals(Optional.of(delay), throttle.admit("a", true));
+    // Also a resync, which the rate limit would let through
+    assertEquals(Optional.of(delay), throttle.admit("a", false));
+    advance(delay);
+    assertEquals(Optional.empty(), throttle.admit("a", true));
+    // Other CRs are not held back
+    assertEquals(Optional.empty(), throttle.admit("b", true));
+  }
+
+  @Test
+  void successResetsTheBackoff() {
+    throttle.failed("a");
+    throttle.failed("a");
+    throttle.succeeded("a");
+    assertEquals(Optional.empty(), throttle.admit("a", true));
+    assertBetween(500, 1000, throttle.failed("a"));
+  }
+
+  private void advance(Duration duration) {
+    now.addAndGet(duration.toNanos());
+  }
+
+  private static void assertBetween(long minMillis, long maxMillis, Duration delay) {
+    assertTrue(delay.compareTo(Duration.ofMillis(minMillis)) >= 0 && delay.compareTo(Duration.ofMillis(maxMillis)) <= 0,
+      delay+" not within "+minMillis+" and "+maxMillis+" ms");
+  }
+}
@@ -0,0 +1,74 @@
+package io.qiot.user5;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+/**
+ * Walks the types Jackson binds the CRs to, through fields, getters and generic
+ * arguments, and checks that every one in this package is registered for the
+ * native image.
+ */
+class ReflectionConfigurationTest {
+
+  @Test
+  void everyBoundClassIsRegistered() {
+    final var registered = Set.of(ReflectionConfiguration.class.getAnnotation(RegisterForReflection.class).targets());
+    final var missing = new TreeSet<String>();
+    final var seen = new HashSet<Class<?>>();
+    final var pending = new ArrayDeque<Type>(List.of(Datacenter.class, Factory.class, KafkaTopic.class));
+    while(!pending.isEmpty()) {
+      final var type = pending.pop();
+      if(type instanceof ParameterizedType) {
+        pending.addAll(List.of(((ParameterizedType) type).getActualTypeArguments()));
+        pending.push(((ParameterizedType) type).getRawType());
+        continue;
+      }
+      if(!(type instanceof Class) || !seen.add((Class<?>) type)) {
+        continue;
+      }
+      final var c = (Class<?>) type;
+      if(c.isArray()) {
+        pending.push(c.getComponentType());
+        continue;
+      }
+      if(!c.getPackageName().equals(ReflectionConfiguration.class.getPackageName()) || c.isEnum()) {
+        continue;
+      }
+      if(!registered.contains(c)) {
+        missing.add(c.getName());
+      }
+      if(c.getGenericSuperclass() != null) {
+        pending.push(c.getGenericSuperclass());
+      }
+      for(var field : c.getDeclaredFields()) {
+        if(!Modifier.isStatic(field.getModifiers())) {
+          pending.push(field.getGenericType());
+        }
+      }
+      for(var method : c.getMethods()) {
+        if(isGetter(method)) {
+          pending.push(method.getGenericReturnType());
+        }
+      }
+    }
+    assertEquals(Set.of(), missing, "Not in ReflectionConfiguration");
+  }
+
+  private static boolean isGetter(Method method) {
+    return method.getParameterCount() == 0 && !Modifier.isStatic(method.getModifiers())
+      && (method.getName().startsWith("get") || method.getName().startsWith("is"));
+  }
+}
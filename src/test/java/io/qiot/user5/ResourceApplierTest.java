@@ -0,0 +1,149 @@
+package io.qiot.user5;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.fabric8.kubernetes.api.model.ConfigMap;
+import io.fabric8.kubernetes.api.model.ConfigMapBuilder;
+import io.fabric8.kubernetes.api.model.ObjectMetaBuilder;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.server.mock.KubernetesServer;
+import io.javaoperatorsdk.operator.api.config.DefaultControllerConfiguration;
+import io.javaoperatorsdk.operator.api.reconciler.EventSourceContext;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * The applier against the fabric8 mock API server, with a real informer cache.
+ * The mock server has no server-side apply, so objects are written with
+ * createOrReplace. A new applier on the same cache stands for an operator
+ * restart.
+ */
+class ResourceApplierTest {
+
+  private static final String NAMESPACE = "apply";
+
+  private KubernetesServer server;
+  private KubernetesClient client;
+  private OwnedResources<Datacenter> owned;
+  private Datacenter primary;
+
+  @BeforeEach
+  void setUp() {
+    server = new KubernetesServer(false, true);
+    server.before();
+    client = server.getClient();
+    final var configuration = new DefaultControllerConfiguration<>(null, "datacenter", null, null, true,
+      Set.of(NAMESPACE), null, null, null, Datacenter.class, null, null, null, null, null, null);
+    owned = new OwnedResources<>(new EventSourceContext<>(null, configuration, client), ConfigMap.class);
+    final var source = owned.source(ConfigMap.class);
+    source.setEventHandler(event -> {});
+    source.start();
+    primary = new Datacenter();
+    primary.setMetadata(new ObjectMetaBuilder().withName("dc").withNamespace(NAMESPACE).withUid("uid-1").build());
+  }
+
+  @AfterEach
+  void tearDown() {
+    owned.source(ConfigMap.class).stop();
+    server.after();
+  }
+
+  @Test
+  void unchangedObjectIsSkipped() {
+    final var applier = applier();
+    assertTrue(applier.apply(primary, "config", desired("v1")));
+    awaitCached(c -> c.getData().get("key").equals("v1"));
+    assertFalse(applier.apply(primary, "config", desired("v1")));
+    assertEquals(Optional.of(Set.of()), applier.driftedComponents(primary));
+  }
+
+  @Test
+  void changedDesiredObjectIsWritten() {
+    final var applier = applier();
+    applier.apply(primary, "config", desired("v1"));
+    awaitCached(c -> c.getData().get("key").equals("v1"));
+    assertTrue(applier.apply(primary, "config", desired("v2")));
+    assertEquals("v2", live().getData().get("key"));
+  }
+
+  @Test
+  void outOfBandEditIsRepaired() {
+    final var applier = applier();
+    applier.apply(primary, "config", desired("v1"));
+    awaitCached(c -> c.getData().get("key").equals("v1"));
+    editKeepingHash();
+    assertEquals(Optional.of(Set.of("config")), applier.driftedComponents(primary));
+    assertTrue(applier.apply(primary, "config", desired("v1")));
+    assertEquals("v1", live().getData().get("key"));
+  }
+
+  @Test
+  void editMadeWhileTheOperatorWasDownIsRepairedAfterRestart() {
+    applier().apply(primary, "config", desired("v1"));
+    awaitCached(c -> c.getData().get("key").equals("v1"));
+    editKeepingHash();
+
+    final var restarted = applier();
+    assertEquals(Optional.empty(), restarted.driftedComponents(primary));
+    assertTrue(restarted.apply(primary, "config", desired("v1")));
+    assertEquals("v1", live().getData().get("key"));
+    awaitCached(c -> c.getData().get("key").equals("v1"));
+    // Written once, then skipped as usual
+    assertFalse(restarted.apply(primary, "config", desired("v1")));
+  }
+
+  private ResourceApplier<Datacenter> applier() {
+    return new ResourceApplier<>(client, owned, new ServerSideApply(client, "test", false),
+      new ReconcileMetrics(new SimpleMeterRegistry()));
+  }
+
+  private static ConfigMap desired(String value) {
+    return new ConfigMapBuilder()
+      .withNewMetadata()
+        .withName("config")
+        .withNamespace(NAMESPACE)
+        .addToLabels("app.kubernetes.io/managed-by", "Datacenter")
+      .endMetadata()
+      .withData(Map.of("key", value))
+      .build();
+  }
+
+  /** Like kubectl edit, which leaves the spec hash annotation as it was */
+  private void editKeepingHash() {
+    client.configMaps().inNamespace(NAMESPACE).withName("config").edit(c -> new ConfigMapBuilder(c)
+      .withData(Map.of("key", "edited")).build());
+    awaitCached(c -> c.getData().get("key").equals("edited"));
+  }
+
+  private ConfigMap live() {
+    return client.configMaps().inNamespace(NAMESPACE).withName("config").get();
+  }
+
+  private void awaitCached(Predicate<ConfigMap> condition) {
+    final var deadline = System.nanoTime()+Duration.ofSeconds(10).toNanos();
+    while(System.nanoTime() < deadline) {
+      if(owned.get(ConfigMap.class, NAMESPACE, "config").filter(condition).isPresent()) {
+        return;
+      }
+      try {
+        Thread.sleep(20);
+      }
+      catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+    throw new AssertionError("The informer cache did not catch up");
+  }
+}